@@ -0,0 +1,124 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基准测试共用的服务器状态与连接。
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 不写消息日志与磁盘缓存，用户表为不连接数据库的空表，不加入集群；
+     * 允许免密码登录，登录与消息都不限流，基准测试测量的是处理路径本身而不是限流。
+     *
+     * @return 基准测试使用的服务器状态
+     */
+    static ServerContext context() {
+        try {
+            AuthService auth = new AuthService(new GuestUserDao(), 1, 16,
+                    new LoginRateLimiter(Integer.MAX_VALUE, Integer.MAX_VALUE, 60_000), true);
+            return new ServerContext(new MediaCache(64L * 1024 * 1024, 8L * 1024 * 1024, null, 0), auth,
+                    new MessageJournal(null, 0, 0, 0, 0), new ClusterRelay(null, 0, 0),
+                    new RateLimiter(null, null));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 创建一个已登录的客户端处理器，登录在校验线程中异步完成，等到处理器上线后才返回。
+     *
+     * @param binary 是否协商二进制协议
+     * @throws IllegalStateException 如果登录失败或超时
+     */
+    static ClientHandler loggedIn(ServerContext context, String name, boolean binary) {
+        NullConnection connection = new NullConnection();
+        ClientHandler handler = new ClientHandler(connection, context);
+        if (binary) {
+            handler.handle(BinaryProtocol.HANDSHAKE + BinaryProtocol.VERSION);
+            byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+            handler.handle(MessageType.LOGIN, ByteBuffer.allocate(2 + utf8.length).putShort((short) utf8.length)
+                    .put(utf8).flip());
+        } else {
+            handler.handle(name);
+        }
+        // 登录结果发出后处理器才登记到在线用户表
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (context.clients().get(name) != handler) {
+            if (connection.loginFailed || System.nanoTime() > deadline) {
+                throw new IllegalStateException("基准测试用户登录失败：" + name);
+            }
+            Thread.onSpinWait();
+        }
+        return handler;
+    }
+
+    /**
+     * 没有注册用户的用户表，不连接数据库，所有用户名都可以免密码登录。
+     */
+    static final class GuestUserDao extends UserDao {
+
+        GuestUserDao() {
+            super(new ConnectionPool(() -> {
+                throw new SQLException("基准测试不连接数据库");
+            }, 1, 0), 0, 0, 0);
+        }
+
+        @Override
+        public User getUserByName(String username) {
+            return null;
+        }
+    }
+
+    /**
+     * 丢弃发送数据的连接，只累计字节数并记录二进制登录是否失败，异步任务立即在调用线程中执行。
+     */
+    static final class NullConnection implements Connection {
+
+        long bytes;
+        volatile boolean loginFailed;
+
+        @Override
+        public boolean send(ByteBuffer data) {
+            if (data.remaining() > BinaryProtocol.HEADER_SIZE
+                    && data.get(data.position()) == MessageType.LOGIN_RESULT.code()
+                    && LoginStatus.fromCode(data.get(data.position() + BinaryProtocol.HEADER_SIZE)) != LoginStatus.OK) {
+                loginFailed = true;
+            }
+            bytes += data.remaining();
+            return true;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public boolean awaitDrain(long bytes, Runnable task) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String remoteAddress() {
+            return "benchmark";
+        }
+
+        @Override
+        public String remoteHost() {
+            return "127.0.0.1";
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.chatroom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ClientHandler#broadcast} 的扇出开销：创建一条聊天消息并发送给全部接收者，
+ * 包括按协议编码一次、经过会话的重放缓冲区与入队，不包括 socket 写入。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int recipients;
+
+    // 二进制客户端所占的百分比，其余为文本客户端
+    @Param({"100", "50"})
+    int binaryPercent;
+
+    private List<ClientHandler> handlers;
+    private long offset;
+
+    @Setup
+    public void setUp() {
+        ServerContext context = BenchmarkSupport.context();
+        handlers = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            handlers.add(BenchmarkSupport.loggedIn(context, "user" + i, i * 100 < recipients * binaryPercent));
+        }
+    }
+
+    @Benchmark
+    public Frame chat() {
+        Frame frame = Frame.chat("alice", "今天下午三点在 A 座开会，记得带上周报", offset++);
+        ClientHandler.broadcast(handlers, frame);
+        return frame;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.chatroom;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 图片路径：按块编码（文本协议为 Base64）、将缓存图片展开为旧协议的数据块行，以及上传时的重组与校验。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+
+    private static final int CHUNK_SIZE = 24 * 1024;
+
+    @Param({"65536", "1048576"})
+    int imageBytes;
+
+    private byte[][] chunks;
+    private byte[] hash;
+    private ByteBuffer content;
+
+    @Setup
+    public void setUp() {
+        byte[] image = new byte[imageBytes];
+        new Random(42).nextBytes(image);
+        int count = (imageBytes + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        chunks = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = Arrays.copyOfRange(image, i * CHUNK_SIZE, Math.min(imageBytes, (i + 1) * CHUNK_SIZE));
+        }
+        hash = MediaUpload.sha256().digest(image);
+        content = ByteBuffer.wrap(image).asReadOnlyBuffer();
+    }
+
+    @Benchmark
+    public void textChunks(Blackhole blackhole) {
+        for (byte[] chunk : chunks) {
+            blackhole.consume(Frame.imageChunk("alice", chunk, null).buffer(false));
+        }
+    }
+
+    @Benchmark
+    public void binaryChunks(Blackhole blackhole) {
+        for (byte[] chunk : chunks) {
+            blackhole.consume(Frame.imageChunk("alice", chunk, null).buffer(true));
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer textImageRef() {
+        return Frame.imageRef("alice", hash, content).buffer(false);
+    }
+
+    @Benchmark
+    public MediaCache reassemble() throws Exception {
+        MediaCache cache = new MediaCache(imageBytes * 2L, imageBytes, null, 0);
+        MediaUpload upload = new MediaUpload(hash, imageBytes, imageBytes);
+        for (byte[] chunk : chunks) {
+            upload.append(chunk);
+        }
+        upload.complete(cache);
+        return cache;
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.chatroom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 端到端压测：用 {@link ChatClientGroup} 按指定速度逐步建立会话，其中一部分会话按固定总速率发送聊天消息，
+ * 全部会话接收广播并统计从发送到收到的延迟。所有会话共享与 CPU 核数相同的事件循环线程。
+ *
+ * <p>消息正文以发送时的 {@link System#nanoTime()} 开头，因此发送端与接收端必须在同一台机器上。
+ * 每秒输出一行在线会话数、吞吐量与 p50/p99/p99.9 延迟，结束时输出整个运行期间的统计。
+ * 服务器需要允许免密码登录，并放宽同一地址的登录频率限制；所有会话来自同一地址，
+ * 还需要放宽或关闭消息限流（-Dchat.limits.enabled=false）。</p>
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.example.chatroom.LoadGenerator \
+ *     [host] [port] [clients] [senders] [messagesPerSecond] [seconds] [clientsPerSecond]
+ * </pre>
+ *
+ * clientsPerSecond 为 0 时一次性建立全部会话，否则在发送的同时逐步增加会话，观察延迟随在线人数的变化。
+ */
+public class LoadGenerator {
+
+    private static final String MARKER = "@LOAD@";
+
+    private final LatencyHistogram perSecond = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder online = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    // 每条消息发送时的在线会话数之和，用于估算应收消息数
+    private final LongAdder expected = new LongAdder();
+    private final List<ChatClient> senders = new ArrayList<>();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int senders = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int rate = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+        int ramp = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+        try (ChatClientGroup group = new ChatClientGroup(Runtime.getRuntime().availableProcessors())) {
+            new LoadGenerator().run(group, host, port, clients, Math.min(senders, clients), rate, seconds, ramp);
+        }
+    }
+
+    private void run(ChatClientGroup group, String host, int port, int clients, int senderCount, int rate,
+                     int seconds, int ramp) throws Exception {
+        System.out.printf("%d 个会话，%d 个发送者，总速率 %d 条/秒，持续 %d 秒%n", clients, senderCount, rate, seconds);
+        // 发送者最先建立
+        List<CompletableFuture<ChatClient>> logins = new ArrayList<>();
+        for (int i = 0; i < senderCount; i++) {
+            logins.add(open(group, host, port, i));
+        }
+        for (CompletableFuture<ChatClient> login : logins) {
+            senders.add(login.join());
+        }
+        Thread rampThread = Thread.ofVirtual().name("load-ramp").start(() -> {
+            long start = System.nanoTime();
+            for (int i = senderCount; i < clients && running; i++) {
+                if (ramp > 0) {
+                    LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(i - senderCount) / ramp - System.nanoTime());
+                }
+                open(group, host, port, i);
+            }
+        });
+        if (ramp == 0) {
+            rampThread.join();
+            while (online.sum() + failed.sum() < clients) {
+                Thread.sleep(10);
+            }
+        }
+        Thread sendThread = Thread.ofVirtual().name("load-sender").start(() -> sendLoop(rate));
+
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (int second = 1; second <= seconds; second++) {
+            Thread.sleep(1000);
+            long nowSent = sent.sum();
+            long nowReceived = received.sum();
+            long[] latency = perSecond.interval(50, 99, 99.9);
+            System.out.printf(Locale.ROOT, "%3ds  online=%d  sent/s=%d  received/s=%d  p50=%.2fms  p99=%.2fms"
+                            + "  p99.9=%.2fms%n", second, online.sum(), nowSent - lastSent, nowReceived - lastReceived,
+                    millis(latency[0]), millis(latency[1]), millis(latency[2]));
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+        }
+        running = false;
+        sendThread.join();
+        rampThread.join();
+        // 等待最后一批消息送达
+        Thread.sleep(1000);
+        long[] latency = total.interval(50, 99, 99.9, 100);
+        System.out.printf(Locale.ROOT, "合计  sent=%d  received=%d  expected≈%d  failedLogins=%d"
+                        + "  p50=%.2fms  p99=%.2fms  p99.9=%.2fms  max=%.2fms%n",
+                sent.sum(), received.sum(), expected.sum(), failed.sum(),
+                millis(latency[0]), millis(latency[1]), millis(latency[2]), millis(latency[3]));
+    }
+
+    /**
+     * 建立一个会话并免密码登录。
+     */
+    private CompletableFuture<ChatClient> open(ChatClientGroup group, String host, int port, int index) {
+        return group.connect(host, port, new ChatClient.Listener() {
+            @Override
+            public void onChat(String sender, long offset, String text) {
+                if (text.startsWith(MARKER)) {
+                    long latency = System.nanoTime() - Long.parseLong(text.substring(MARKER.length()));
+                    perSecond.record(latency);
+                    total.record(latency);
+                    received.increment();
+                }
+            }
+        }).thenCompose(client -> client.login("load" + index, null).thenApply(status -> {
+            if (status != LoginStatus.OK) {
+                throw new IllegalStateException(status.message());
+            }
+            return client;
+        })).whenComplete((client, error) -> {
+            if (error != null) {
+                failed.increment();
+            } else {
+                online.increment();
+            }
+        });
+    }
+
+    /**
+     * 按总速率轮流使用各个发送者发送消息，落后时连续补发。
+     */
+    private void sendLoop(int rate) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long next = System.nanoTime();
+        int index = 0;
+        while (running) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+                continue;
+            }
+            senders.get(index).sendChat(MARKER + System.nanoTime());
+            index = (index + 1) % senders.size();
+            sent.increment();
+            expected.add(online.sum());
+            next += intervalNanos;
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
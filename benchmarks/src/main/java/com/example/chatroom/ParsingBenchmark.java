@@ -0,0 +1,85 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 接收路径：从读缓冲区解码一行或一帧，经过文本协议的前缀判断与 {@code @LINE_BREAK@} 替换，
+ * 写入消息日志后广播给所在房间（只有发送者自己）。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark {
+
+    private InboundDecoder textDecoder;
+    private InboundDecoder binaryDecoder;
+    private ByteBuffer chatLine;
+    private ByteBuffer multilineLine;
+    private ByteBuffer imageChunkLine;
+    private ByteBuffer joinRoomLine;
+    private ByteBuffer chatFrame;
+
+    @Setup
+    public void setUp() {
+        ServerContext context = BenchmarkSupport.context();
+        textDecoder = new InboundDecoder(BenchmarkSupport.loggedIn(context, "legacy", false));
+        binaryDecoder = new InboundDecoder(BenchmarkSupport.loggedIn(context, "binary", true));
+        chatLine = line("今天下午三点在 A 座开会，记得带上周报");
+        multilineLine = line(String.join("@LINE_BREAK@", "第一行", "第二行", "第三行", "第四行", "第五行", "第六行"));
+        byte[] chunk = new byte[24 * 1024];
+        // 不属于任何上传的数据块会被丢弃，每次调用都是一次只有一个数据块的完整上传
+        imageChunkLine = line("@IMAGE_START@1\n@IMAGE_CHUNK@" + Base64.getEncoder().encodeToString(chunk)
+                + "\n@IMAGE_END@");
+        joinRoomLine = line("@JOIN_ROOM@" + RoomRegistry.DEFAULT_ROOM);
+        byte[] text = "今天下午三点在 A 座开会，记得带上周报".getBytes(StandardCharsets.UTF_8);
+        chatFrame = BinaryProtocol.putHeader(ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + text.length),
+                MessageType.CHAT, text.length).put(text).flip();
+    }
+
+    private static ByteBuffer line(String text) {
+        return ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public boolean textChat() throws IOException {
+        return textDecoder.decode(chatLine.duplicate());
+    }
+
+    @Benchmark
+    public boolean textMultiline() throws IOException {
+        return textDecoder.decode(multilineLine.duplicate());
+    }
+
+    @Benchmark
+    public boolean textImageChunk() throws IOException {
+        return textDecoder.decode(imageChunkLine.duplicate());
+    }
+
+    @Benchmark
+    public boolean textJoinRoom() throws IOException {
+        return textDecoder.decode(joinRoomLine.duplicate());
+    }
+
+    @Benchmark
+    public boolean binaryChat() throws IOException {
+        // 连接引擎每次读取都使用同一个读缓冲区，解码器复用它的视图
+        return binaryDecoder.decode(chatFrame.rewind());
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.chatroom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 在线用户列表的编码：登录时的完整快照，以及合并后的上下线增量。
+ * 文本协议的增量仍附带完整的 {@code @USERLIST@} 行，代价与在线人数成正比。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserListBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int users;
+
+    private List<String> names;
+    private List<String> joined;
+    private List<String> left;
+
+    @Setup
+    public void setUp() {
+        names = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            names.add("用户" + i);
+        }
+        joined = names.subList(0, Math.min(20, users));
+        left = List.of("离开的用户");
+    }
+
+    @Benchmark
+    public Object textSnapshot() {
+        return Frame.userList(1, names).buffer(false);
+    }
+
+    @Benchmark
+    public Object binarySnapshot() {
+        return Frame.userList(1, names).buffer(true);
+    }
+
+    @Benchmark
+    public Object textDelta() {
+        return Frame.presence(2, joined, left, names).buffer(false);
+    }
+
+    @Benchmark
+    public Object binaryDelta() {
+        return Frame.presence(2, joined, left, names).buffer(true);
+    }
+}
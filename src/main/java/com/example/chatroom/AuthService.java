@@ -0,0 +1,153 @@
+package com.example.chatroom;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 服务器端登录校验。查询数据库与计算密码哈希都在有界线程池中执行，不占用 I/O 线程；
+ * 队列已满时立即返回 BUSY，避免集中登录时无限堆积任务。
+ *
+ * <p>用户不存在与密码错误都返回 {@link LoginStatus#BAD_CREDENTIALS}，用户不存在时同样计算一次密码哈希，
+ * 响应时间也不暴露用户名是否已注册。免密码登录（访客）不能使用已注册的用户名。</p>
+ *
+ * <p>旧的文本协议不带密码，默认配置（chat.auth.allowGuests=false）下文本客户端无法登录，
+ * 需要兼容旧客户端时开启免密码登录。</p>
+ */
+public class AuthService implements AutoCloseable {
+
+    private static final int DEFAULT_QUEUE_SIZE = 1024;
+    private static final int DEFAULT_MAX_ATTEMPTS_PER_HOST = 30;
+    private static final int DEFAULT_MAX_FAILURES_PER_USER = 5;
+    private static final long DEFAULT_RATE_WINDOW_MILLIS = 60_000;
+
+    private final UserDao userDao;
+    private final ThreadPoolExecutor executor;
+    private final LoginRateLimiter rateLimiter;
+    private final boolean allowGuests;
+    // 用户不存在时用于校验的哈希，使两种失败的耗时相同
+    private final String absentUserHash = PasswordHasher.hash("");
+
+    /**
+     * @param userDao     用户数据访问对象
+     * @param threads     校验线程数
+     * @param queueSize   等待校验的登录请求上限
+     * @param rateLimiter 登录限流
+     * @param allowGuests 是否允许不带密码的登录
+     */
+    AuthService(UserDao userDao, int threads, int queueSize, LoginRateLimiter rateLimiter, boolean allowGuests) {
+        this.userDao = userDao;
+        this.rateLimiter = rateLimiter;
+        this.allowGuests = allowGuests;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread thread = new Thread(r, "auth-" + counter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * 按系统属性 chat.auth.threads、chat.auth.queue、chat.auth.allowGuests、
+     * chat.auth.maxAttemptsPerHost 与 chat.auth.maxFailuresPerUser 创建，
+     * 数据库连接池大小与校验线程数一致。
+     */
+    public static AuthService fromSystemProperties() {
+        int threads = Integer.getInteger("chat.auth.threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+        boolean allowGuests = Boolean.getBoolean("chat.auth.allowGuests");
+        if (!allowGuests) {
+            Log.info("未开启免密码登录（chat.auth.allowGuests），旧的文本客户端无法登录");
+        }
+        return new AuthService(new UserDao(threads),
+                threads,
+                Integer.getInteger("chat.auth.queue", DEFAULT_QUEUE_SIZE),
+                new LoginRateLimiter(Integer.getInteger("chat.auth.maxAttemptsPerHost", DEFAULT_MAX_ATTEMPTS_PER_HOST),
+                        Integer.getInteger("chat.auth.maxFailuresPerUser", DEFAULT_MAX_FAILURES_PER_USER),
+                        DEFAULT_RATE_WINDOW_MILLIS),
+                allowGuests);
+    }
+
+    /**
+     * 异步校验登录，回调在校验线程中执行，校验抛出异常时以 ERROR 回调，回调总会执行一次。
+     *
+     * @param username 用户名
+     * @param password 密码，为 null 表示免密码登录
+     * @param host     客户端地址，用于限流
+     * @param result   结果回调
+     */
+    public void authenticate(String username, String password, String host, Consumer<LoginStatus> result) {
+        long start = System.nanoTime();
+        Consumer<LoginStatus> callback = status -> {
+            // 登录延迟包括在校验线程池中排队的时间
+            ServerMetrics.auth(System.nanoTime() - start);
+            result.accept(status);
+        };
+        if (password == null && !allowGuests) {
+            callback.accept(LoginStatus.GUESTS_DISABLED);
+            return;
+        }
+        if (!rateLimiter.tryAcquire(host, username)) {
+            callback.accept(LoginStatus.RATE_LIMITED);
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                LoginStatus status;
+                try {
+                    status = password == null ? checkGuest(username) : check(username, password);
+                } catch (RuntimeException e) {
+                    Log.error("登录校验失败：" + username, e);
+                    status = LoginStatus.ERROR;
+                }
+                callback.accept(status);
+            });
+        } catch (RejectedExecutionException e) {
+            callback.accept(LoginStatus.BUSY);
+        }
+    }
+
+    private LoginStatus checkGuest(String username) {
+        try {
+            if (userDao.getUserByName(username) != null) {
+                // 已注册的用户名只能用密码登录
+                rateLimiter.recordFailure(username);
+                return LoginStatus.BAD_CREDENTIALS;
+            }
+            return LoginStatus.OK;
+        } catch (SQLException e) {
+            Log.error("登录校验失败：" + username, e);
+            return LoginStatus.ERROR;
+        }
+    }
+
+    private LoginStatus check(String username, String password) {
+        try {
+            UserDao.User user = userDao.getUserByName(username);
+            boolean verified = PasswordHasher.verify(user != null ? user.getPassword() : absentUserHash, password);
+            if (user == null || !verified) {
+                rateLimiter.recordFailure(username);
+                return LoginStatus.BAD_CREDENTIALS;
+            }
+            rateLimiter.recordSuccess(username);
+            if (PasswordHasher.needsRehash(user.getPassword())) {
+                // 将旧的明文密码升级为加盐哈希
+                userDao.updatePassword(username, PasswordHasher.hash(password));
+            }
+            return LoginStatus.OK;
+        } catch (SQLException e) {
+            Log.error("登录校验失败：" + username, e);
+            return LoginStatus.ERROR;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        userDao.close();
+    }
+}
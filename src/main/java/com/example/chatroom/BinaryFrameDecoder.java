@@ -0,0 +1,117 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 二进制帧解码器：从字节流中拆出完整的帧，跨读取边界的帧会暂存到连接自己的缓冲区。
+ *
+ * <p>稳定收发时解码不分配内存：整帧都在读缓冲区中时，回调收到的是同一个视图对象，每帧只调整它的位置；
+ * 跨边界的帧头与不超过 {@link #RETAINED_BYTES} 的帧拼接在解码器保留的缓冲区中，更大的帧才单独分配。</p>
+ */
+final class BinaryFrameDecoder {
+
+    /**
+     * 帧回调，载荷只在回调期间有效；返回 false 表示停止解码。
+     */
+    interface FrameHandler {
+        boolean onFrame(MessageType type, ByteBuffer payload);
+    }
+
+    // 保留的拼接缓冲区的上限，覆盖常见的聊天消息，空闲连接不会因偶尔的大帧长期占用内存
+    private static final int RETAINED_BYTES = 4096;
+
+    private final ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE);
+    private ByteBuffer assembly;
+    private ByteBuffer pending;
+    // 读缓冲区的视图，读缓冲区在连接的生命周期内通常不变
+    private ByteBuffer view;
+    private ByteBuffer viewSource;
+
+    /**
+     * @param in      处于读模式的缓冲区，调用后会被完全消费
+     * @param handler 帧回调
+     * @return 回调要求停止时返回 false
+     * @throws IOException 如果帧类型未知或长度超过上限
+     */
+    boolean decode(ByteBuffer in, FrameHandler handler) throws IOException {
+        while (in.hasRemaining()) {
+            if (pending == null) {
+                if (in.remaining() >= BinaryProtocol.HEADER_SIZE) {
+                    int length = payloadLength(in, in.position());
+                    if (in.remaining() >= BinaryProtocol.HEADER_SIZE + length) {
+                        // 整帧都在本次读取中，直接在原缓冲区上解析
+                        MessageType type = type(in, in.position());
+                        int start = in.position() + BinaryProtocol.HEADER_SIZE;
+                        ByteBuffer payload = view(in, start, length);
+                        in.position(start + length);
+                        if (!handler.onFrame(type, payload)) {
+                            return false;
+                        }
+                        continue;
+                    }
+                }
+                pending = header.clear();
+            }
+            transfer(in, pending);
+            if (pending.hasRemaining()) {
+                return true;
+            }
+            if (pending == header) {
+                int length = payloadLength(header, 0);
+                if (length > 0) {
+                    pending = assembly(BinaryProtocol.HEADER_SIZE + length).put(header.flip());
+                    continue;
+                }
+            }
+            ByteBuffer frame = pending.flip();
+            pending = null;
+            MessageType type = type(frame, 0);
+            if (!handler.onFrame(type, frame.position(BinaryProtocol.HEADER_SIZE))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer view(ByteBuffer in, int start, int length) {
+        if (viewSource != in) {
+            view = in.duplicate();
+            viewSource = in;
+        }
+        return view.limit(start + length).position(start);
+    }
+
+    private ByteBuffer assembly(int size) {
+        if (size > RETAINED_BYTES) {
+            return ByteBuffer.allocate(size);
+        }
+        if (assembly == null || assembly.capacity() < size) {
+            assembly = ByteBuffer.allocate(size);
+        }
+        return assembly.clear().limit(size);
+    }
+
+    private static MessageType type(ByteBuffer buffer, int offset) throws IOException {
+        MessageType type = MessageType.fromCode(buffer.get(offset));
+        if (type == null) {
+            throw new IOException("未知的消息类型：" + buffer.get(offset));
+        }
+        return type;
+    }
+
+    private static int payloadLength(ByteBuffer buffer, int offset) throws IOException {
+        int length = buffer.getInt(offset + 1);
+        if (length < 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+            throw new IOException("帧长度超出限制：" + length);
+        }
+        return length;
+    }
+
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int n = Math.min(from.remaining(), to.remaining());
+        to.put(to.position(), from, from.position(), n);
+        to.position(to.position() + n);
+        from.position(from.position() + n);
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.chatroom;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 二进制协议的常量与编解码工具，客户端与服务器共用。
+ *
+ * <p>握手：客户端连接后先发送一行文本 {@code @BINARY@<版本>}，服务器回复一行
+ * {@code @BINARY_OK@<版本>}，此后双方改用二进制帧。未发送握手行的旧客户端继续使用文本协议。
+ * 客户端可以在版本号后追加 {@code " deflate"} 请求帧压缩，服务器同意时在确认行中原样追加，
+ * 之后可能收到 {@link MessageType#COMPRESSED} 帧。</p>
+ *
+ * <p>帧格式：1 字节类型 + 4 字节大端载荷长度 + 载荷。带发送者的载荷以
+ * 2 字节长度 + UTF-8 用户名开头。</p>
+ */
+public final class BinaryProtocol {
+
+    public static final String HANDSHAKE = "@BINARY@";
+    public static final String HANDSHAKE_OK = "@BINARY_OK@";
+    public static final int VERSION = 1;
+    public static final String COMPRESSION = "deflate";
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * 解析握手行中的版本号。
+     *
+     * @param line 客户端发送的第一行
+     * @return 协商后的版本号，不是有效握手行时返回 -1
+     */
+    public static int negotiate(String line) {
+        if (!line.startsWith(HANDSHAKE)) {
+            return -1;
+        }
+        try {
+            int requested = Integer.parseInt(line.substring(HANDSHAKE.length()).trim().split(" ", 2)[0]);
+            return requested >= 1 ? Math.min(requested, VERSION) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param line 客户端发送的握手行
+     * @return 客户端是否请求了帧压缩
+     */
+    public static boolean requestsCompression(String line) {
+        String[] parts = line.substring(HANDSHAKE.length()).trim().split(" ");
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equals(COMPRESSION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 在缓冲区中写入帧头。
+     */
+    public static ByteBuffer putHeader(ByteBuffer buffer, MessageType type, int payloadLength) {
+        return buffer.put(type.code()).putInt(payloadLength);
+    }
+
+    /**
+     * 写入带 2 字节长度前缀的 UTF-8 字符串。
+     */
+    public static ByteBuffer putShortString(ByteBuffer buffer, byte[] utf8) {
+        return buffer.putShort((short) utf8.length).put(utf8);
+    }
+
+    /**
+     * 读取带 2 字节长度前缀的 UTF-8 字符串。
+     *
+     * @throws ProtocolException 如果长度前缀缺失或声明的长度超过缓冲区剩余字节
+     */
+    public static String getShortString(ByteBuffer buffer) throws ProtocolException {
+        requireRemaining(buffer, 2);
+        int length = buffer.getShort() & 0xFFFF;
+        requireRemaining(buffer, length);
+        return getString(buffer, length);
+    }
+
+    /**
+     * 检查载荷中还有足够的字节，在读取定长字段之前调用。
+     *
+     * @throws ProtocolException 如果剩余字节少于 bytes
+     */
+    public static void requireRemaining(ByteBuffer buffer, int bytes) throws ProtocolException {
+        if (buffer.remaining() < bytes) {
+            throw new ProtocolException("载荷不完整：需要 " + bytes + " 字节，剩余 " + buffer.remaining() + " 字节");
+        }
+    }
+
+    /**
+     * 计算字符串的 UTF-8 编码字节数，不实际编码。
+     */
+    public static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // 代理对两个字符共 4 字节
+                bytes += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 将缓冲区剩余部分读取为 UTF-8 字符串。
+     */
+    public static String getString(ByteBuffer buffer) {
+        return getString(buffer, buffer.remaining());
+    }
+
+    private static String getString(ByteBuffer buffer, int length) {
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.chatroom;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 广播分配统计：记录每次广播的编码字节数与广播线程实际分配的内存，
+ * 用于确认广播的内存分配与接收者数量无关。
+ * 线程分配计数只包含堆内存，1 KB 以上的广播帧编码在直接内存中，由 {@link Frame} 通过
+ * {@link #directAllocated(int)} 另外计入当前线程，两者之和为分配统计。
+ * 通过 -Dchat.metrics.allocation=true 开启线程分配计数。
+ */
+public final class BroadcastMetrics {
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+    private static final boolean ENABLED = Boolean.getBoolean("chat.metrics.allocation") && THREADS != null;
+
+    private static final LongAdder broadcasts = new LongAdder();
+    private static final LongAdder recipients = new LongAdder();
+    private static final LongAdder encodedBytes = new LongAdder();
+    private static final LongAdder allocatedBytes = new LongAdder();
+    // 每个线程累计分配的直接内存字节数，只在开启统计时更新
+    private static final ThreadLocal<long[]> directBytes = ThreadLocal.withInitial(() -> new long[1]);
+
+    private BroadcastMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * @return 当前线程累计分配的堆内存与直接内存字节数，未开启统计时返回 0
+     */
+    static long allocatedBytes() {
+        return ENABLED ? THREADS.getCurrentThreadAllocatedBytes() + directBytes.get()[0] : 0;
+    }
+
+    /**
+     * 记录当前线程分配的一块直接内存。
+     */
+    static void directAllocated(int bytes) {
+        if (ENABLED) {
+            directBytes.get()[0] += bytes;
+        }
+    }
+
+    /**
+     * 记录一次广播。
+     *
+     * @param recipientCount 接收者数量
+     * @param frameSize      编码后的帧大小
+     * @param allocatedBefore 广播开始前 {@link #allocatedBytes()} 的返回值
+     */
+    static void record(int recipientCount, int frameSize, long allocatedBefore) {
+        broadcasts.increment();
+        recipients.add(recipientCount);
+        encodedBytes.add(frameSize);
+        if (ENABLED) {
+            allocatedBytes.add(allocatedBytes() - allocatedBefore);
+        }
+    }
+
+    /**
+     * @return 形如 "broadcasts=.. avgRecipients=.. encodedBytes/broadcast=.. allocatedBytes/broadcast=.." 的统计摘要
+     */
+    public static String report() {
+        long count = Math.max(1, broadcasts.sum());
+        return String.format("broadcasts=%d avgRecipients=%.1f encodedBytes/broadcast=%d allocatedBytes/broadcast=%d",
+                broadcasts.sum(),
+                (double) recipients.sum() / count,
+                encodedBytes.sum() / count,
+                allocatedBytes.sum() / count);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,1094 @@
+package com.example.chatroom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Inflater;
+
+/**
+ * 不依赖界面的聊天客户端，使用二进制协议。
+ *
+ * <p>客户端由 {@link ChatClientGroup#connect} 创建，同一组的客户端共享少量事件循环线程。
+ * 所有方法都可以从任意线程调用，发送的帧先进入队列，再由事件循环写出；
+ * 收到的消息通过 {@link Listener} 回调，回调在事件循环线程中执行，不能阻塞，界面程序应转交给自己的线程。</p>
+ *
+ * <p>协议细节都由客户端处理：图片的分块重组与按额度上传、按哈希拉取服务器缓存的图片、本地图片缓存，
+ * 连接意外断开后在服务器的宽限期内恢复会话，服务器停机时在通知的窗口内随机等待后重新连接并登录，
+ * 以及回复服务器的心跳探测。握手时默认请求帧压缩，
+ * 通过 -Dchat.client.compression=false 关闭。</p>
+ */
+public final class ChatClient {
+
+    // 图片分块大小与接收单张图片的内存上限，分块取 3 的倍数使旧客户端收到的 Base64 可以直接拼接
+    private static final int IMAGE_CHUNK_SIZE = 30 * 1024;
+    private static final int MAX_INCOMING_IMAGE_BYTES = 16 * 1024 * 1024;
+    private static final long CREDIT_TIMEOUT_SECONDS = 30;
+    // 本地图片缓存的字节上限
+    private static final long MAX_LOCAL_CACHE_BYTES = 64L * 1024 * 1024;
+    // 断线后尝试恢复会话的总时长与重试间隔，总时长应小于服务器的会话宽限期
+    private static final long RESUME_TIMEOUT_MILLIS = 25_000;
+    private static final long RESUME_RETRY_MILLIS = 1000;
+    // 登录时服务器正在停机、没有收到重连窗口时使用的窗口
+    private static final int DEFAULT_RESTART_WINDOW_MILLIS = 10_000;
+    private static final boolean COMPRESSION =
+            Boolean.parseBoolean(System.getProperty("chat.client.compression", "true"));
+
+    /**
+     * 客户端事件回调，默认实现忽略事件。
+     */
+    public interface Listener {
+
+        /**
+         * @param offset 消息在服务器日志中的偏移量，请求历史消息时以它为起点
+         */
+        default void onChat(String sender, long offset, String text) {
+        }
+
+        default void onSystem(String text) {
+        }
+
+        default void onDirect(String sender, String target, String text) {
+        }
+
+        /**
+         * 在线用户的完整快照。
+         */
+        default void onUserList(long version, List<String> users) {
+        }
+
+        /**
+         * 合并后的上下线增量，版本不大于最近快照的增量应丢弃。
+         */
+        default void onPresence(long version, List<String> joined, List<String> left) {
+        }
+
+        default void onRoomJoined(String room) {
+        }
+
+        /**
+         * 历史消息回放结束。
+         *
+         * @param resumeOffset 还有更早的消息未发送时为继续请求的偏移量，否则为 -1
+         */
+        default void onHistoryEnd(long resumeOffset) {
+        }
+
+        /**
+         * 收到一张完整的图片，包括本客户端自己发送的图片。
+         */
+        default void onImage(String sender, byte[] image) {
+        }
+
+        /**
+         * 收到服务器转码后的图片预览，完整版本需要时用 {@link ChatClient#fetchImage(String)} 拉取。
+         * 默认把预览当作完整的图片交给 {@link #onImage}。
+         *
+         * @param fullImage 完整版本的标识
+         */
+        default void onImagePreview(String sender, byte[] preview, String fullImage) {
+            onImage(sender, preview);
+        }
+
+        /**
+         * 引用的图片已被服务器缓存淘汰，无法显示。
+         */
+        default void onImageExpired(String sender) {
+        }
+
+        /**
+         * 发送过快，服务器丢弃了一条消息。被丢弃的图片上传与搜索请求会异常完成，无需在此处理。
+         *
+         * @param dropped          被丢弃的消息类型
+         * @param retryAfterMillis 建议的重试等待时间
+         */
+        default void onThrottled(MessageType dropped, long retryAfterMillis) {
+        }
+
+        /**
+         * 连接意外断开或服务器正在重启，正在尝试恢复会话或重新登录。
+         */
+        default void onReconnecting() {
+        }
+
+        /**
+         * 会话已恢复，断线期间的消息已补发；服务器重启后重新登录时断线期间的消息不补发，
+         * 随后会收到 {@link #onRoomJoined}，可以在那里重新加载历史消息。
+         */
+        default void onReconnected() {
+        }
+
+        /**
+         * 客户端已关闭，不会再收到任何回调。
+         *
+         * @param cause 连接断开且无法恢复的原因，主动关闭时为 null
+         */
+        default void onClosed(IOException cause) {
+        }
+    }
+
+    private final ChatClientGroup group;
+    private final NioEventLoop loop;
+    private final InetSocketAddress address;
+    private final Listener listener;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final CompletableFuture<ChatClient> connected = new CompletableFuture<>();
+    private volatile CompletableFuture<LoginStatus> loginResult;
+    private volatile String username;
+    private volatile String password;
+    private volatile boolean closed;
+
+    // 以下字段只在事件循环线程中访问
+    private Link link;
+    private boolean finished;
+    // 可恢复会话的令牌与会话建立后收到的帧数
+    private byte[] sessionToken;
+    private long framesReceived;
+    // 压缩帧的解压器，每个帧独立压缩，连接之间无需保留状态
+    private final Inflater inflater = new Inflater();
+    // 正在恢复会话时为放弃恢复的时间，否则为 0
+    private long resumeDeadline;
+    // 服务器通知停机后的重连窗口，没有通知时为 0
+    private int restartWindow;
+    // 服务器重启后正在重新登录时为放弃的时间，否则为 0
+    private long reloginDeadline;
+    // 当前房间，重新登录后重新加入，为 null 时在默认房间
+    private String room;
+    // 正在接收的图片，按发送者区分
+    private final Map<String, IncomingImage> incomingImages = new HashMap<>();
+    // 正在向服务器拉取的图片，键为内容 SHA-256 的十六进制形式
+    private final Map<String, PendingFetch> pendingFetches = new HashMap<>();
+    // 等待结果的搜索请求，键为请求编号
+    private final Map<Integer, CompletableFuture<List<SearchHit>>> pendingSearches = new HashMap<>();
+    private int nextSearchId;
+    // 本地图片缓存，键同上，按 LRU 淘汰
+    private final LinkedHashMap<String, byte[]> localMediaCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long localMediaCacheBytes;
+    // 待上传的图片，逐张发送，队首为正在上传的图片
+    private final ArrayDeque<Upload> uploads = new ArrayDeque<>();
+    // 服务器授予的图片数据块额度
+    private int imageCredits;
+
+    ChatClient(ChatClientGroup group, NioEventLoop loop, InetSocketAddress address, Listener listener) {
+        this.group = group;
+        this.loop = loop;
+        this.address = address;
+        this.listener = listener;
+    }
+
+    /**
+     * 建立连接并协商二进制协议。
+     */
+    CompletableFuture<ChatClient> connect() {
+        loop.execute(this::open);
+        return connected;
+    }
+
+    /**
+     * 发送 LOGIN 帧，连接建立后才能调用。
+     *
+     * @param password 密码，为 null 表示不带密码登录
+     * @return 服务器返回的登录结果，连接断开时异常完成
+     */
+    public CompletableFuture<LoginStatus> login(String name, String password) {
+        CompletableFuture<LoginStatus> result = new CompletableFuture<>();
+        username = name;
+        this.password = password;
+        loginResult = result;
+        send(MessageType.LOGIN, loginPayload(name, password));
+        return result;
+    }
+
+    private static byte[] loginPayload(String name, String password) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] passwordBytes = password != null ? password.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        return ByteBuffer.allocate(2 + nameBytes.length + passwordBytes.length)
+                .putShort((short) nameBytes.length).put(nameBytes).put(passwordBytes).array();
+    }
+
+    /**
+     * @return 登录时使用的用户名
+     */
+    public String username() {
+        return username;
+    }
+
+    /**
+     * 向当前房间发送消息，二进制协议按长度分帧，换行符可以直接发送。
+     */
+    public void sendChat(String text) {
+        send(MessageType.CHAT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void sendDirect(String target, String text) {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        send(MessageType.DIRECT, ByteBuffer.allocate(2 + targetBytes.length + body.length)
+                .putShort((short) targetBytes.length).put(targetBytes).put(body).array());
+    }
+
+    public void joinRoom(String room) {
+        send(MessageType.JOIN_ROOM, room.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 请求当前房间偏移量大于 sinceOffset 的历史消息，为负数时请求最近的消息。
+     */
+    public void requestHistory(long sinceOffset) {
+        send(MessageType.HISTORY, ByteBuffer.allocate(8).putLong(sinceOffset).array());
+    }
+
+    /**
+     * 按关键词搜索当前房间的历史消息。中文按任意两个以上相邻的字匹配，英文与数字按整词匹配。
+     *
+     * @return 按相关度排列的结果，连接断开时异常完成
+     */
+    public CompletableFuture<List<SearchHit>> search(String query) {
+        CompletableFuture<List<SearchHit>> result = new CompletableFuture<>();
+        byte[] body = query.getBytes(StandardCharsets.UTF_8);
+        loop.execute(() -> {
+            if (finished) {
+                result.completeExceptionally(new IOException("客户端已关闭"));
+                return;
+            }
+            int requestId = ++nextSearchId;
+            pendingSearches.put(requestId, result);
+            send(MessageType.SEARCH, ByteBuffer.allocate(4 + body.length).putInt(requestId).put(body).array());
+        });
+        return result;
+    }
+
+    /**
+     * 上传一张图片：先声明哈希，服务器已缓存时无需上传，否则按服务器授予的额度分块发送。
+     * 多张图片依次上传，文本消息可以穿插在数据块之间。
+     *
+     * @return 上传完成时完成，连接断开或等待额度超时时异常完成
+     */
+    public CompletableFuture<Void> sendImage(byte[] image) {
+        Upload upload = new Upload(image, MediaUpload.sha256().digest(image));
+        loop.execute(() -> {
+            if (finished) {
+                upload.future.completeExceptionally(new IOException("客户端已关闭"));
+                return;
+            }
+            uploads.add(upload);
+            if (uploads.size() == 1) {
+                startUpload();
+            }
+        });
+        return upload.future;
+    }
+
+    /**
+     * 拉取图片的完整版本，本地已缓存时直接完成。
+     *
+     * @param image {@link Listener#onImagePreview} 中的完整版本标识
+     * @return 图片内容，服务器缓存已淘汰该图片或连接断开时异常完成
+     */
+    public CompletableFuture<byte[]> fetchImage(String image) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        byte[] hash = HexFormat.of().parseHex(image);
+        loop.execute(() -> {
+            if (finished) {
+                result.completeExceptionally(new IOException("客户端已关闭"));
+                return;
+            }
+            byte[] cached = localMediaCache.get(image);
+            if (cached != null) {
+                result.complete(cached);
+            } else {
+                fetch(hash).futures.add(result);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 通知服务器退出并关闭连接，不再恢复会话。
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        loop.execute(() -> {
+            if (link == null) {
+                finish(null);
+                return;
+            }
+            if (link.ready) {
+                outbound.clear();
+                link.writing.add(frame(MessageType.EXIT, new byte[0], 0, 0));
+                link.flush();
+            }
+            lost(link, null);
+        });
+    }
+
+    private void send(MessageType type, byte[] payload) {
+        send(type, payload, 0, payload.length);
+    }
+
+    private void send(MessageType type, byte[] payload, int offset, int length) {
+        if (closed) {
+            return;
+        }
+        outbound.add(frame(type, payload, offset, length));
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    private static ByteBuffer frame(MessageType type, byte[] payload, int offset, int length) {
+        return BinaryProtocol.putHeader(ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + length), type, length)
+                .put(payload, offset, length).flip();
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (link != null) {
+            link.flush();
+        }
+    }
+
+    private void open() {
+        if (closed) {
+            finish(null);
+            return;
+        }
+        Link attempt = null;
+        try {
+            attempt = new Link(SocketChannel.open());
+            link = attempt;
+            attempt.start();
+        } catch (IOException e) {
+            if (attempt != null) {
+                lost(attempt, e);
+            } else {
+                finish(e);
+            }
+        }
+    }
+
+    /**
+     * 握手完成：新连接可以开始发送，恢复会话的连接先发送 RESUME，服务器重启后的连接先用原来的用户名与密码登录，
+     * 等服务器确认后再发送队列中的帧。
+     */
+    private void handshakeDone(Link current) {
+        if (resumeDeadline > 0) {
+            current.writing.add(frame(MessageType.RESUME, ByteBuffer.allocate(sessionToken.length + 8)
+                    .put(sessionToken).putLong(framesReceived).array(), 0, sessionToken.length + 8));
+        } else if (reloginDeadline > 0) {
+            byte[] payload = loginPayload(username, password);
+            current.writing.add(frame(MessageType.LOGIN, payload, 0, payload.length));
+        } else {
+            current.ready = true;
+            connected.complete(this);
+        }
+        current.flush();
+    }
+
+    /**
+     * 连接断开：已登录且不是主动关闭时在宽限期内重连并恢复会话，服务器通知过停机时重新登录，否则关闭客户端。
+     */
+    private void lost(Link failed, IOException cause) {
+        if (link != failed) {
+            return;
+        }
+        failed.shutdown();
+        link = null;
+        failUploads(cause);
+        if (closed || group.isClosed()) {
+            finish(null);
+            return;
+        }
+        if (restartWindow > 0 || reloginDeadline > 0) {
+            relogin(cause);
+            return;
+        }
+        if (sessionToken == null) {
+            finish(cause);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (resumeDeadline == 0) {
+            resumeDeadline = now + RESUME_TIMEOUT_MILLIS;
+            listener.onReconnecting();
+            open();
+        } else if (now < resumeDeadline) {
+            group.schedule(() -> loop.execute(this::open), RESUME_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            finish(cause);
+        }
+    }
+
+    /**
+     * 服务器停机后重新连接：第一次在重连窗口内随机等待，使所有客户端的重连分散到整个窗口，之后按固定间隔重试。
+     */
+    private void relogin(IOException cause) {
+        long now = System.currentTimeMillis();
+        if (restartWindow > 0) {
+            int window = restartWindow;
+            restartWindow = 0;
+            sessionToken = null;
+            resumeDeadline = 0;
+            reloginDeadline = now + window + RESUME_TIMEOUT_MILLIS;
+            listener.onReconnecting();
+            long delay = ThreadLocalRandom.current().nextLong(window + 1L);
+            group.schedule(() -> loop.execute(this::open), delay, TimeUnit.MILLISECONDS);
+        } else if (now < reloginDeadline) {
+            group.schedule(() -> loop.execute(this::open), RESUME_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            reloginDeadline = 0;
+            finish(cause);
+        }
+    }
+
+    /**
+     * 重新登录的结果：成功后重新加入原来的房间，再发送断线期间排队的帧。
+     */
+    private void onRelogin(LoginStatus status) {
+        if (status == LoginStatus.OK) {
+            reloginDeadline = 0;
+            byte[] name = (room != null ? room : RoomRegistry.DEFAULT_ROOM).getBytes(StandardCharsets.UTF_8);
+            link.writing.add(frame(MessageType.JOIN_ROOM, name, 0, name.length));
+            link.ready = true;
+            link.flush();
+            listener.onReconnected();
+        } else if (status == LoginStatus.SHUTTING_DOWN) {
+            // 连上的服务器也在停机，重新等待
+            reloginDeadline = 0;
+            restartWindow = DEFAULT_RESTART_WINDOW_MILLIS;
+            lost(link, new IOException(status.message()));
+        } else {
+            reloginDeadline = 0;
+            lost(link, new IOException(status.message()));
+        }
+    }
+
+    private void finish(IOException cause) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        closed = true;
+        outbound.clear();
+        IOException error = cause != null ? cause : new IOException("客户端已关闭");
+        connected.completeExceptionally(error);
+        CompletableFuture<LoginStatus> login = loginResult;
+        if (login != null) {
+            login.completeExceptionally(error);
+        }
+        failUploads(error);
+        for (PendingFetch fetch : pendingFetches.values()) {
+            fetch.futures.forEach(future -> future.completeExceptionally(error));
+        }
+        pendingFetches.clear();
+        pendingSearches.values().forEach(future -> future.completeExceptionally(error));
+        pendingSearches.clear();
+        listener.onClosed(cause);
+    }
+
+    private void onFrame(MessageType type, ByteBuffer payload) {
+        // 会话建立后收到的帧都计数，令牌帧与直接写入连接的心跳帧除外
+        if (sessionToken != null && type != MessageType.SESSION && type != MessageType.PING
+                && type != MessageType.PONG) {
+            framesReceived++;
+        }
+        try {
+            dispatch(type, payload);
+        } catch (ProtocolException | RuntimeException e) {
+            Log.error("处理消息失败：" + type, e);
+        }
+    }
+
+    private void dispatch(MessageType type, ByteBuffer payload) throws ProtocolException {
+        switch (type) {
+            case LOGIN_RESULT: {
+                LoginStatus status = payload.hasRemaining() ? LoginStatus.fromCode(payload.get()) : LoginStatus.ERROR;
+                if (resumeDeadline > 0) {
+                    if (status == LoginStatus.SHUTTING_DOWN) {
+                        // 服务器正在停机，改为等待重启后重新登录
+                        resumeDeadline = 0;
+                        restartWindow = DEFAULT_RESTART_WINDOW_MILLIS;
+                    } else {
+                        // 会话已过期，无法恢复
+                        sessionToken = null;
+                    }
+                    lost(link, new IOException(status.message()));
+                } else if (reloginDeadline > 0) {
+                    onRelogin(status);
+                } else if (loginResult != null) {
+                    loginResult.complete(status);
+                }
+                break;
+            }
+            case SESSION: {
+                byte[] token = new byte[payload.remaining()];
+                payload.get(token);
+                if (resumeDeadline > 0) {
+                    resumeDeadline = 0;
+                    link.ready = true;
+                    link.flush();
+                    listener.onReconnected();
+                } else {
+                    sessionToken = token;
+                    framesReceived = 0;
+                }
+                break;
+            }
+            case USER_LIST: {
+                long version = payload.getLong();
+                List<String> users = new ArrayList<>();
+                for (String user : BinaryProtocol.getString(payload).split("\n")) {
+                    if (!user.trim().isEmpty()) {
+                        users.add(user);
+                    }
+                }
+                listener.onUserList(version, users);
+                break;
+            }
+            case PRESENCE: {
+                long version = payload.getLong();
+                List<String> joined = readNames(payload);
+                List<String> left = readNames(payload);
+                listener.onPresence(version, joined, left);
+                break;
+            }
+            case SYSTEM:
+                listener.onSystem(BinaryProtocol.getString(payload));
+                break;
+            case DIRECT: {
+                String sender = BinaryProtocol.getShortString(payload);
+                String target = BinaryProtocol.getShortString(payload);
+                listener.onDirect(sender, target, BinaryProtocol.getString(payload));
+                break;
+            }
+            case JOIN_ROOM: {
+                String joined = BinaryProtocol.getString(payload);
+                room = joined;
+                listener.onRoomJoined(joined);
+                break;
+            }
+            case RECONNECT:
+                // 服务器随后关闭连接，断开时按窗口重连
+                restartWindow = Math.max(1, payload.getInt());
+                break;
+            case HISTORY:
+                listener.onHistoryEnd(payload.getLong());
+                break;
+            case PING:
+                send(MessageType.PONG, new byte[0]);
+                break;
+            case PONG:
+                break;
+            case THROTTLED: {
+                MessageType dropped = MessageType.fromCode(payload.get());
+                long retryAfter = payload.getLong();
+                onThrottled(dropped, retryAfter, payload.getInt());
+                break;
+            }
+            case SEARCH: {
+                CompletableFuture<List<SearchHit>> result = pendingSearches.remove(payload.getInt());
+                if (result != null) {
+                    result.complete(readSearchHits(payload));
+                }
+                break;
+            }
+            case CHAT: {
+                String sender = BinaryProtocol.getShortString(payload);
+                long offset = payload.getLong();
+                listener.onChat(sender, offset, BinaryProtocol.getString(payload));
+                break;
+            }
+            case IMAGE_START: {
+                String sender = BinaryProtocol.getShortString(payload);
+                int expectedChunks = payload.getInt();
+                byte[] hash = null;
+                if (payload.remaining() >= MediaCache.HASH_SIZE) {
+                    hash = new byte[MediaCache.HASH_SIZE];
+                    payload.get(hash);
+                }
+                incomingImages.put(sender, new IncomingImage(expectedChunks, hash));
+                break;
+            }
+            case IMAGE_CHUNK:
+                onImageChunk(BinaryProtocol.getShortString(payload), payload);
+                break;
+            case IMAGE_END:
+                // 丢弃未完成的图片
+                incomingImages.remove(BinaryProtocol.getShortString(payload));
+                break;
+            case CREDIT:
+                imageCredits += payload.getInt();
+                pumpUpload();
+                break;
+            case IMAGE_CACHED: {
+                byte[] hash = MediaUpload.readHash(payload);
+                Upload upload = uploads.peek();
+                if (upload != null && Arrays.equals(hash, upload.hash)) {
+                    // 服务器已缓存，无需上传，服务器直接广播引用
+                    uploads.poll();
+                    upload.future.complete(null);
+                    startUpload();
+                }
+                break;
+            }
+            case IMAGE_REF: {
+                String sender = BinaryProtocol.getShortString(payload);
+                byte[] hash = MediaUpload.readHash(payload);
+                payload.getInt();
+                // 转码过的图片引用的是缩略图，之后是完整版本的哈希与字节数
+                onImageRef(sender, hash, payload.hasRemaining() ? MediaCache.key(MediaUpload.readHash(payload)) : null);
+                break;
+            }
+            case MEDIA_CHUNK: {
+                byte[] hash = MediaUpload.readHash(payload);
+                int total = payload.getInt();
+                int offset = payload.getInt();
+                onMediaChunk(hash, total, offset, payload);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void onImageChunk(String sender, ByteBuffer data) {
+        IncomingImage image = incomingImages.get(sender);
+        if (image == null) {
+            return;
+        }
+        if (image.buffer.size() + data.remaining() > MAX_INCOMING_IMAGE_BYTES) {
+            Log.warn("图片超过大小限制，已丢弃：" + sender);
+            incomingImages.remove(sender);
+            return;
+        }
+        write(image.buffer, data);
+        image.receivedChunks++;
+        if (image.receivedChunks == image.expectedChunks) {
+            incomingImages.remove(sender);
+            byte[] imageBytes = image.buffer.toByteArray();
+            if (image.hash != null) {
+                cacheLocally(image.hash, imageBytes);
+            }
+            listener.onImage(sender, imageBytes);
+        }
+    }
+
+    /**
+     * 收到图片引用：本地已缓存则直接回调，否则从服务器拉取，同一图片被多人引用时只拉取一次。
+     *
+     * @param fullImage 引用的是缩略图时为完整版本的标识，否则为 null
+     */
+    private void onImageRef(String sender, byte[] hash, String fullImage) {
+        byte[] cached = localMediaCache.get(MediaCache.key(hash));
+        if (cached != null) {
+            deliverImage(sender, cached, fullImage);
+            return;
+        }
+        PendingFetch fetch = fetch(hash);
+        fetch.senders.add(sender);
+        fetch.fullImages.add(fullImage);
+    }
+
+    private void deliverImage(String sender, byte[] image, String fullImage) {
+        if (fullImage != null) {
+            listener.onImagePreview(sender, image, fullImage);
+        } else {
+            listener.onImage(sender, image);
+        }
+    }
+
+    private void onThrottled(MessageType dropped, long retryAfterMillis, int requestId) {
+        IOException error = new IOException("发送过于频繁，请在 " + retryAfterMillis + " 毫秒后重试");
+        if (dropped == MessageType.SEARCH) {
+            CompletableFuture<List<SearchHit>> result = pendingSearches.remove(requestId);
+            if (result != null) {
+                result.completeExceptionally(error);
+            }
+        } else if (dropped == MessageType.IMAGE_OFFER || dropped == MessageType.IMAGE_START) {
+            Upload upload = uploads.poll();
+            if (upload != null) {
+                upload.future.completeExceptionally(error);
+                startUpload();
+            }
+        }
+        listener.onThrottled(dropped, retryAfterMillis);
+    }
+
+    private static List<SearchHit> readSearchHits(ByteBuffer payload) throws ProtocolException {
+        int count = payload.getInt();
+        List<SearchHit> hits = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long offset = payload.getLong();
+            long timestamp = payload.getLong();
+            String sender = BinaryProtocol.getShortString(payload);
+            int length = payload.getInt();
+            ByteBuffer text = payload.slice(payload.position(), length);
+            payload.position(payload.position() + length);
+            hits.add(new SearchHit(offset, timestamp, sender, BinaryProtocol.getString(text)));
+        }
+        return hits;
+    }
+
+    /**
+     * @return 该图片正在进行的拉取，没有时开始拉取
+     */
+    private PendingFetch fetch(byte[] hash) {
+        String key = MediaCache.key(hash);
+        PendingFetch fetch = pendingFetches.get(key);
+        if (fetch == null) {
+            fetch = new PendingFetch();
+            pendingFetches.put(key, fetch);
+            requestMedia(hash, 0);
+        }
+        return fetch;
+    }
+
+    /**
+     * 收到缓存图片的一个片段，未收完时继续请求下一段。
+     */
+    private void onMediaChunk(byte[] hash, int total, int offset, ByteBuffer data) {
+        String key = MediaCache.key(hash);
+        PendingFetch fetch = pendingFetches.get(key);
+        if (fetch == null || offset != fetch.buffer.size()) {
+            return;
+        }
+        if (total < 0 || total > MAX_INCOMING_IMAGE_BYTES) {
+            // 服务器缓存已淘汰该图片
+            pendingFetches.remove(key);
+            fetch.senders.forEach(listener::onImageExpired);
+            fetch.futures.forEach(future -> future.completeExceptionally(new IOException("图片已被服务器缓存淘汰")));
+            return;
+        }
+        write(fetch.buffer, data);
+        if (fetch.buffer.size() < total) {
+            requestMedia(hash, fetch.buffer.size());
+            return;
+        }
+        pendingFetches.remove(key);
+        byte[] imageBytes = fetch.buffer.toByteArray();
+        cacheLocally(hash, imageBytes);
+        for (int i = 0; i < fetch.senders.size(); i++) {
+            deliverImage(fetch.senders.get(i), imageBytes, fetch.fullImages.get(i));
+        }
+        fetch.futures.forEach(future -> future.complete(imageBytes));
+    }
+
+    private void requestMedia(byte[] hash, int offset) {
+        send(MessageType.IMAGE_FETCH, ByteBuffer.allocate(MediaCache.HASH_SIZE + 4).put(hash).putInt(offset).array());
+    }
+
+    private void cacheLocally(byte[] hash, byte[] imageBytes) {
+        if (localMediaCache.put(MediaCache.key(hash), imageBytes) == null) {
+            localMediaCacheBytes += imageBytes.length;
+        }
+        Iterator<byte[]> it = localMediaCache.values().iterator();
+        while (localMediaCacheBytes > MAX_LOCAL_CACHE_BYTES && it.hasNext()) {
+            localMediaCacheBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * 声明队首的图片，丢弃上一次传输遗留的额度。
+     */
+    private void startUpload() {
+        Upload upload = uploads.peek();
+        if (upload == null) {
+            return;
+        }
+        cacheLocally(upload.hash, upload.image);
+        imageCredits = 0;
+        send(MessageType.IMAGE_OFFER, ByteBuffer.allocate(MediaCache.HASH_SIZE + 8)
+                .put(upload.hash).putInt(upload.image.length).putInt(upload.chunks).array());
+        pumpUpload();
+    }
+
+    /**
+     * 按额度发送数据块：每发送一个数据块消耗一个额度，额度用完时等待服务器补充。
+     */
+    private void pumpUpload() {
+        Upload upload = uploads.peek();
+        if (upload == null) {
+            return;
+        }
+        while (imageCredits > 0 && upload.nextChunk < upload.chunks) {
+            int start = upload.nextChunk * IMAGE_CHUNK_SIZE;
+            int end = Math.min(start + IMAGE_CHUNK_SIZE, upload.image.length);
+            send(MessageType.IMAGE_CHUNK, upload.image, start, end - start);
+            upload.nextChunk++;
+            imageCredits--;
+        }
+        if (upload.nextChunk < upload.chunks) {
+            scheduleCreditTimeout(upload);
+            return;
+        }
+        send(MessageType.IMAGE_END, new byte[0]);
+        uploads.poll();
+        upload.future.complete(null);
+        startUpload();
+    }
+
+    private void scheduleCreditTimeout(Upload upload) {
+        int progress = upload.nextChunk;
+        group.schedule(() -> loop.execute(() -> {
+            if (uploads.peek() == upload && upload.nextChunk == progress) {
+                uploads.poll();
+                upload.future.completeExceptionally(new IOException("等待服务器确认超时"));
+                startUpload();
+            }
+        }), CREDIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void failUploads(IOException cause) {
+        IOException error = cause != null ? cause : new IOException("客户端已关闭");
+        Upload upload;
+        while ((upload = uploads.poll()) != null) {
+            upload.future.completeExceptionally(error);
+        }
+        imageCredits = 0;
+    }
+
+    private static List<String> readNames(ByteBuffer payload) throws ProtocolException {
+        int count = payload.getInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(BinaryProtocol.getShortString(payload));
+        }
+        return names;
+    }
+
+    private static void write(ByteArrayOutputStream out, ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        out.writeBytes(bytes);
+    }
+
+    /**
+     * 正在接收的图片，多个用户同时发送图片时互不干扰。
+     */
+    private static final class IncomingImage {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final int expectedChunks;
+        final byte[] hash;
+        int receivedChunks;
+
+        IncomingImage(int expectedChunks, byte[] hash) {
+            this.expectedChunks = expectedChunks;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * 正在从服务器拉取的缓存图片、引用它的发送者以及主动拉取完整版本的调用方。
+     */
+    private static final class PendingFetch {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final List<String> senders = new ArrayList<>();
+        // 与 senders 一一对应，引用的是缩略图时为完整版本的标识
+        final List<String> fullImages = new ArrayList<>();
+        final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+    }
+
+    private static final class Upload {
+        final byte[] image;
+        final byte[] hash;
+        final int chunks;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        int nextChunk;
+
+        Upload(byte[] image, byte[] hash) {
+            this.image = image;
+            this.hash = hash;
+            this.chunks = (image.length + IMAGE_CHUNK_SIZE - 1) / IMAGE_CHUNK_SIZE;
+        }
+    }
+
+    /**
+     * 一次 TCP 连接。恢复会话时建立新的连接，会话状态保留在客户端中。
+     */
+    private final class Link implements NioEventLoop.Handler {
+
+        final SocketChannel channel;
+        final BinaryFrameDecoder decoder = new BinaryFrameDecoder();
+        // 优先于发送队列写出的数据：握手、RESUME 与 EXIT，以及未写完的帧
+        final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        final ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+        SelectionKey key;
+        boolean handshaken;
+        // 解压失败的原因，解码回调无法抛出受检异常，由读取循环抛出
+        IOException inflateError;
+        // 是否可以发送队列中的帧：新连接在握手之后，恢复会话的连接在服务器确认之后
+        boolean ready;
+
+        Link(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void start() throws IOException {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            String compression = COMPRESSION ? " " + BinaryProtocol.COMPRESSION : "";
+            writing.add(ByteBuffer.wrap((BinaryProtocol.HANDSHAKE + BinaryProtocol.VERSION + compression + "\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+            if (channel.connect(address)) {
+                key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+                flush();
+            } else {
+                key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        @Override
+        public void onConnectable() {
+            try {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                flush();
+            } catch (IOException e) {
+                lost(this, e);
+            }
+        }
+
+        @Override
+        public void onReadable() {
+            ByteBuffer buffer = loop.readBuffer();
+            try {
+                while (link == this) {
+                    int n = channel.read(buffer.clear());
+                    if (n < 0) {
+                        throw new EOFException("服务器关闭了连接");
+                    }
+                    if (n == 0) {
+                        return;
+                    }
+                    buffer.flip();
+                    if (handshaken || readHandshake(buffer)) {
+                        decoder.decode(buffer, this::onFrame);
+                    }
+                    if (inflateError != null) {
+                        throw inflateError;
+                    }
+                }
+            } catch (IOException e) {
+                lost(this, e);
+            }
+        }
+
+        private boolean onFrame(MessageType type, ByteBuffer payload) {
+            if (type == MessageType.COMPRESSED) {
+                try {
+                    ByteBuffer frame = FrameCompression.decompress(inflater, payload);
+                    type = MessageType.fromCode(frame.get());
+                    payload = frame.position(BinaryProtocol.HEADER_SIZE).slice();
+                    if (type == null || type == MessageType.COMPRESSED) {
+                        throw new IOException("无效的压缩帧");
+                    }
+                } catch (IOException e) {
+                    inflateError = e;
+                    return false;
+                }
+            }
+            ChatClient.this.onFrame(type, payload);
+            return link == this;
+        }
+
+        /**
+         * 读取服务器的握手确认行。
+         *
+         * @return 确认行已读完，缓冲区中剩余的是二进制帧
+         */
+        private boolean readHandshake(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b != '\n') {
+                    handshake.write(b);
+                    continue;
+                }
+                String reply = handshake.toString(StandardCharsets.UTF_8).trim();
+                if (!reply.startsWith(BinaryProtocol.HANDSHAKE_OK)) {
+                    throw new IOException("服务器不支持二进制协议");
+                }
+                handshaken = true;
+                handshakeDone(this);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onWritable() {
+            flush();
+        }
+
+        void flush() {
+            if (link != this || key == null || !channel.isConnected()) {
+                return;
+            }
+            try {
+                while (true) {
+                    ByteBuffer head = writing.peek();
+                    if (head == null && ready && (head = outbound.poll()) != null) {
+                        writing.add(head);
+                    }
+                    if (head == null) {
+                        break;
+                    }
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        // socket 发送缓冲区已满，等待可写事件
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writing.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                lost(this, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            lost(this, new IOException("事件循环已关闭"));
+        }
+
+        void shutdown() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (ClosedChannelException ignored) {
+                // 已经关闭
+            } catch (IOException e) {
+                Log.warn("关闭连接失败：" + address, e);
+            }
+        }
+    }
+}
@@ -2,38 +2,72 @@ package com.example.chatroom;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
-import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.Socket;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.util.Base64;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 public class ChatClientGUI extends JFrame {
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 8888;
     
-    private JTextPane chatPane;
+    private JList<ChatRow> messageList;
+    private JScrollPane chatScroll;
+    private final MessageListModel messages = new MessageListModel();
     private JTextArea messageArea;
     private JButton sendButton;
     private JList<String> userList;
     private DefaultListModel<String> userListModel;
-    private Socket socket;
-    private PrintWriter writer;
-    private String username;
-    private StyledDocument doc;
-    private final Color MY_MESSAGE_COLOR = new Color(225, 255, 225);
-    private final Color OTHER_MESSAGE_COLOR = new Color(255, 255, 255);
+    // 与 userListModel 内容一致，用于快速判断用户是否在线；两者都只在 EDT 中访问
+    private final Set<String> onlineUsers = new HashSet<>();
+    private long presenceVersion = -1;
+    private ChatClientGroup clientGroup;
+    private ChatClient client;
+    private volatile String username;
     private JButton imageButton;
+    private JButton roomButton;
+    private JButton searchButton;
     private final int MAX_IMAGE_SIZE = 800;
+    // 一次上下线增量超过该人数时只显示汇总提示
+    private static final int MAX_PRESENCE_NOTICES = 10;
+    // 停留在底部时聊天记录保留的行数，向上翻看历史时最多扩展到的行数，以及保留的图片总字节数
+    private static final int MAX_ROWS = 1000;
+    private static final int MAX_SCROLLBACK_ROWS = 2000;
+    private static final long MAX_IMAGE_BYTES = 32L * 1024 * 1024;
+    // 向上翻看时每次请求的日志偏移量跨度，与服务器单次回放的消息数上限一致；房间消息稀疏时最多连续向前请求的次数
+    private static final int HISTORY_PAGE = 200;
+    private static final int MAX_SCROLLBACK_STEPS = 20;
+    // 界面更新的最短间隔，约为一帧
+    private static final int FRAME_MILLIS = 16;
+    // 接收线程产生的界面更新，按到达顺序排队，由 EDT 每帧批量应用：ChatRow 为新的一行，Runnable 为其他更新
+    private final Queue<Object> pendingUpdates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    private final Timer updateTimer = new Timer(FRAME_MILLIS, e -> applyUpdates());
+    // 图片的解码、缩放与编码在后台线程中进行，不占用 EDT
+    private final ExecutorService imageWorkers = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "image-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 正在向上加载历史时为加载前最早一条消息的偏移量，否则为 -1，只在 EDT 中访问
+    private long scrollBackTarget = -1;
+    private long scrollBackFrom;
+    private int scrollBackSteps;
 
-    private final UserDao userDao = new UserDao();
-    
     public ChatClientGUI() {
         // 设置窗口基本属性
         setTitle("聊天室");
@@ -55,11 +89,18 @@ public class ChatClientGUI extends JFrame {
         // 创建右侧主聊天区域
         JPanel chatPanel = new JPanel(new BorderLayout(5, 5));
         
-        // 聊天记录区域使用JTextPane
-        chatPane = new JTextPane();
-        chatPane.setEditable(false);
-        doc = chatPane.getStyledDocument();
-        JScrollPane chatScroll = new JScrollPane(chatPane);
+        // 聊天记录只渲染可见的行，宽度跟随窗口
+        messageList = new JList<>(messages) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true;
+            }
+        };
+        messageList.setCellRenderer(new MessageCellRenderer(messageList, imageWorkers));
+        updateTimer.setRepeats(false);
+        messageList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        chatScroll = new JScrollPane(messageList);
+        chatScroll.getVerticalScrollBar().setUnitIncrement(16);
         chatScroll.setBorder(BorderFactory.createTitledBorder("聊天记录"));
         
         // 创建底部消息发送区域
@@ -70,13 +111,19 @@ public class ChatClientGUI extends JFrame {
         JScrollPane messageScroll = new JScrollPane(messageArea);
         
         // 创建按钮面板
-        JPanel buttonPanel = new JPanel(new GridLayout(2, 1, 0, 5));
+        JPanel buttonPanel = new JPanel(new GridLayout(4, 1, 0, 5));
         sendButton = new JButton("发送");
         imageButton = new JButton("图片");
+        roomButton = new JButton("房间");
+        searchButton = new JButton("搜索");
         sendButton.setPreferredSize(new Dimension(80, 25));
         imageButton.setPreferredSize(new Dimension(80, 25));
+        roomButton.setPreferredSize(new Dimension(80, 25));
+        searchButton.setPreferredSize(new Dimension(80, 25));
         buttonPanel.add(sendButton);
         buttonPanel.add(imageButton);
+        buttonPanel.add(roomButton);
+        buttonPanel.add(searchButton);
         
         bottomPanel.add(messageScroll, BorderLayout.CENTER);
         bottomPanel.add(buttonPanel, BorderLayout.EAST);
@@ -124,159 +171,338 @@ public class ChatClientGUI extends JFrame {
         
         // 添加图片按钮事件
         imageButton.addActionListener(e -> sendImage());
+        
+        // 切换房间
+        roomButton.addActionListener(e -> joinRoom());
+        
+        // 搜索当前房间的历史消息
+        searchButton.addActionListener(e -> searchHistory());
+        
+        // 宽度变化后按新宽度重新计算行高
+        messageList.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                messageList.setFixedCellHeight(1);
+                messageList.setFixedCellHeight(-1);
+            }
+        });
+        
+        // 滚动到顶部时加载更早的历史消息
+        chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && e.getValue() == 0 && chatScroll.getVerticalScrollBar().getMaximum()
+                    > chatScroll.getVerticalScrollBar().getVisibleAmount()) {
+                loadOlderHistory();
+            }
+        });
+        
+        // 双击图片查看原图
+        messageList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int index = messageList.locationToIndex(e.getPoint());
+                if (e.getClickCount() == 2 && index >= 0 && messages.getElementAt(index).isImage()) {
+                    showFullImage(messages.getElementAt(index));
+                }
+            }
+        });
+        
+        // 双击在线用户发送私聊
+        userList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && userList.getSelectedValue() != null) {
+                    sendDirectMessage(userList.getSelectedValue());
+                }
+            }
+        });
     }
     
     private void appendMessage(String sender, String message, boolean isMyMessage) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                // 创建气泡样式
-                Style style = chatPane.addStyle("BubbleStyle", null);
-                StyleConstants.setBackground(style, isMyMessage ? MY_MESSAGE_COLOR : OTHER_MESSAGE_COLOR);
-                StyleConstants.setForeground(style, Color.BLACK);
-                StyleConstants.setFontSize(style, 14);
-                
-                // 添加时间和发送者
-                SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-                String time = sdf.format(new Date());
-                String header = String.format("[%s] %s\n", time, sender);
-                
-                // 设置对齐方式
-                StyleConstants.setAlignment(style, isMyMessage ? StyleConstants.ALIGN_RIGHT : StyleConstants.ALIGN_LEFT);
-                
-                // 插入消息，将特殊标记替换回换行符
-                doc.insertString(doc.getLength(), header, style);
-                // 在 lambda 内部创建新的字符串，而不是修改参数
-                String processedMessage = message.replaceAll("@LINE_BREAK@", "\n");
-                doc.insertString(doc.getLength(), processedMessage + "\n\n", style);
-                
-                // 滚动到底部
-                chatPane.setCaretPosition(doc.getLength());
-            } catch (BadLocationException e) {
-                e.printStackTrace();
+        appendMessage(sender, message, isMyMessage, -1);
+    }
+    
+    /**
+     * @param offset 聊天消息在服务器日志中的偏移量，其他消息为 -1
+     */
+    private void appendMessage(String sender, String message, boolean isMyMessage, long offset) {
+        post(ChatRow.text(sender, message, isMyMessage, offset));
+    }
+    
+    /**
+     * @param fullImage imageBytes 是服务器生成的预览时为完整版本的标识，否则为 null
+     */
+    private void appendImage(String sender, byte[] imageBytes, boolean isMyMessage, String fullImage) {
+        // 只读取图片头部，缩略图在显示时才解码
+        post(ChatRow.image(sender, imageBytes, isMyMessage, fullImage));
+    }
+    
+    /**
+     * 提交一个界面更新，可从任意线程调用。空闲后的第一个更新启动一帧的定时器，
+     * 此后到达的更新在同一帧中一起应用，EDT 队列中最多只有一个待处理的批次。
+     *
+     * @param update 新的一行 {@link ChatRow}，或在 EDT 中执行的 {@link Runnable}
+     */
+    private void post(Object update) {
+        pendingUpdates.add(update);
+        if (updateScheduled.compareAndSet(false, true)) {
+            updateTimer.restart();
+        }
+    }
+    
+    /**
+     * 在 EDT 中按顺序应用排队的更新，相邻的新行合并为一次插入、淘汰与滚动。
+     */
+    private void applyUpdates() {
+        updateScheduled.set(false);
+        List<ChatRow> rows = new ArrayList<>();
+        Object update;
+        while ((update = pendingUpdates.poll()) != null) {
+            if (update instanceof ChatRow) {
+                rows.add((ChatRow) update);
+            } else {
+                addRows(rows);
+                rows.clear();
+                ((Runnable) update).run();
             }
-        });
+        }
+        addRows(rows);
     }
     
-    private void receiveMessages() {
+    /**
+     * 在 EDT 中加入一批行。停留在底部时跟随新消息并淘汰超出窗口的旧消息；
+     * 正在翻看历史时保持当前可见内容不动，窗口可以扩展到 MAX_SCROLLBACK_ROWS。
+     */
+    private void addRows(List<ChatRow> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        JScrollBar bar = chatScroll.getVerticalScrollBar();
+        boolean follow = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+        ChatRow anchor = follow ? null : firstVisibleRow();
+        int anchorY = anchor != null ? rowY(anchor) : 0;
+        // 跟随底部时一批中超出窗口的部分加入后也会立即淘汰，直接跳过
+        int first = follow ? Math.max(0, rows.size() - MAX_ROWS) : 0;
+        boolean added = false;
+        for (ChatRow row : rows.subList(first, rows.size())) {
+            added |= messages.add(row) >= 0;
+        }
+        if (!added) {
+            return;
+        }
+        // 先按行数、再按图片总字节数确定要淘汰的行数，最新的一行总是保留
+        int excess = Math.max(0, messages.getSize() - (follow ? MAX_ROWS : MAX_SCROLLBACK_ROWS));
+        long imageBytes = messages.imageBytes();
+        for (int i = 0; i < messages.getSize() - 1 && (i < excess || imageBytes > MAX_IMAGE_BYTES); i++) {
+            ChatRow old = messages.getElementAt(i);
+            if (old.isImage()) {
+                imageBytes -= old.image.length;
+            }
+            excess = i + 1;
+        }
+        messages.removeFirst(excess);
+        chatScroll.validate();
+        if (follow) {
+            messageList.ensureIndexIsVisible(messages.getSize() - 1);
+        } else if (anchor != null) {
+            // 顶部插入或淘汰了行，按锚点行恢复滚动位置
+            int index = messages.indexOf(anchor);
+            if (index >= 0) {
+                Point view = chatScroll.getViewport().getViewPosition();
+                view.y = Math.max(0, messageList.getCellBounds(index, index).y - anchorY);
+                chatScroll.getViewport().setViewPosition(view);
+            }
+        }
+    }
+    
+    private ChatRow firstVisibleRow() {
+        int index = messageList.getFirstVisibleIndex();
+        return index >= 0 ? messages.getElementAt(index) : null;
+    }
+    
+    /**
+     * @return 行的顶部相对视口顶部的距离
+     */
+    private int rowY(ChatRow row) {
+        int index = messages.indexOf(row);
+        return messageList.getCellBounds(index, index).y - chatScroll.getViewport().getViewPosition().y;
+    }
+    
+    /**
+     * 向前请求一页历史消息。服务器按偏移量正向回放，所以从当前最早消息之前一页的位置开始请求，
+     * 已显示的消息按偏移量去重。
+     */
+    private void loadOlderHistory() {
+        long oldest = messages.oldestOffset();
+        if (scrollBackTarget >= 0 || oldest <= 0 || messages.getSize() >= MAX_SCROLLBACK_ROWS) {
+            return;
+        }
+        scrollBackTarget = oldest;
+        scrollBackFrom = oldest;
+        scrollBackSteps = 0;
+        requestOlderPage();
+    }
+    
+    private void requestOlderPage() {
+        scrollBackFrom = Math.max(0, scrollBackFrom - HISTORY_PAGE);
+        scrollBackSteps++;
+        // 负数表示请求最近的消息，所以最早只能从偏移量 1 开始
+        client.requestHistory(Math.max(0, scrollBackFrom - 1));
+    }
+    
+    /**
+     * 一页历史回放结束：单次回放达到上限时从返回的偏移量继续，本页没有当前房间的消息时继续向前。
+     */
+    private void onOlderPageEnd(long resumeOffset) {
+        if (scrollBackTarget < 0) {
+            return;
+        }
+        if (resumeOffset >= 0 && resumeOffset < scrollBackTarget - 1) {
+            client.requestHistory(resumeOffset);
+        } else if (messages.oldestOffset() == scrollBackTarget && scrollBackFrom > 0
+                && scrollBackSteps < MAX_SCROLLBACK_STEPS) {
+            requestOlderPage();
+        } else {
+            scrollBackTarget = -1;
+        }
+    }
+    
+    /**
+     * 在后台解码原图后用对话框显示，只收到预览的图片先从服务器拉取完整版本。
+     */
+    private void showFullImage(ChatRow row) {
+        if (row.fullImage == null) {
+            imageWorkers.execute(() -> showImage(row, row.image));
+            return;
+        }
+        client.fetchImage(row.fullImage).whenCompleteAsync((image, error) -> {
+            if (error != null) {
+                showError("无法加载原图：" + error.getMessage());
+            } else {
+                showImage(row, image);
+            }
+        }, imageWorkers);
+    }
+
+    /**
+     * 在后台线程中解码，在 EDT 中显示。
+     */
+    private void showImage(ChatRow row, byte[] bytes) {
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String message;
-            StringBuilder imageBuilder = null;
-            String imageSender = null;
-            int expectedChunks = 0;
-            int receivedChunks = 0;
-            
-            while ((message = reader.readLine()) != null) {
-                if (message.startsWith("@USERLIST@")) {
-                    final String userListMessage = message;
-                    SwingUtilities.invokeLater(() -> updateUserList(userListMessage.substring(10)));
-                } 
-                else {
-                    final String currentMessage = message;
-                    String sender = "";
-                    String content = currentMessage;
-                    
-                    if (currentMessage.contains(": ")) {
-                        sender = currentMessage.substring(0, currentMessage.indexOf(": "));
-                        content = currentMessage.substring(currentMessage.indexOf(": ") + 2);
-                    }
-                    
-                    final String finalSender = sender;
-                    final String finalContent = content;
-                    
-                    // 处理图片消息
-                    if (content.startsWith("@IMAGE_START@")) {
-                        try {
-                            // 直接从内容中提取数字部分
-                            String numStr = content.replaceAll("[^0-9]", "");
-                            expectedChunks = Integer.parseInt(numStr);
-                            imageBuilder = new StringBuilder();
-                            receivedChunks = 0;
-                            imageSender = sender;
-                            System.out.println("开始接收图片，预期块数：" + expectedChunks); // 调试信息
-                        } catch (NumberFormatException e) {
-                            System.err.println("无法解析图片块数量: " + content);
-                            imageBuilder = null;
-                            imageSender = null;
-                        }
-                    }
-                    else if (content.startsWith("@IMAGE_CHUNK@") && imageBuilder != null) {
-                        try {
-                            String imageData = content.substring(13);
-                            imageBuilder.append(imageData);
-                            receivedChunks++;
-                            System.out.println("接收到图片块：" + receivedChunks + "/" + expectedChunks); // 调试信息
-                            
-                            // 如果收到所有分块，则显示图片
-                            if (receivedChunks == expectedChunks) {
-                                String base64Image = imageBuilder.toString();
-                                final boolean isMyMessage = imageSender.equals(username);
-                                String finalImageSender = imageSender;
-                                SwingUtilities.invokeLater(() ->
-                                    appendImage(
-                                            finalImageSender,
-                                        base64Image, 
-                                        isMyMessage
-                                    )
-                                );
-                                imageBuilder = null;
-                                imageSender = null;
-                                System.out.println("图片接收完成"); // 调试信息
-                            }
-                        } catch (Exception e) {
-                            System.err.println("处理图片块时出错: " + e.getMessage());
-                            imageBuilder = null;
-                            imageSender = null;
-                        }
-                    }
-                    else if (content.startsWith("@IMAGE_END@")) {
-                        // 重置图片构建器
-                        imageBuilder = null;
-                        imageSender = null;
-                        System.out.println("图片传输结束"); // 调试信息
-                    }
-                    else if (!content.startsWith("@IMAGE")) {
-                        // 处理普通文本消息
-                        final boolean isMyMessage = finalSender.equals(username);
-                        SwingUtilities.invokeLater(() -> 
-                            appendMessage(
-                                finalSender.isEmpty() ? "系统消息" : finalSender, 
-                                finalContent, 
-                                isMyMessage
-                            )
-                        );
-                    }
-                }
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            if (image == null) {
+                return;
             }
+            SwingUtilities.invokeLater(() -> {
+                JScrollPane scroll = new JScrollPane(new JLabel(new ImageIcon(image)));
+                Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+                scroll.setPreferredSize(new Dimension(Math.min(image.getWidth() + 20, screen.width * 4 / 5),
+                        Math.min(image.getHeight() + 20, screen.height * 4 / 5)));
+                JOptionPane.showMessageDialog(this, scroll, row.header, JOptionPane.PLAIN_MESSAGE);
+            });
         } catch (IOException e) {
-            if (!socket.isClosed()) {
-                JOptionPane.showMessageDialog(this, 
-                    "与服务器的连接已断开！", 
-                    "错误", 
-                    JOptionPane.ERROR_MESSAGE);
-            }
+            showError("无法显示图片：" + e.getMessage());
         }
     }
+    
+    private void showError(String message) {
+        SwingUtilities.invokeLater(() ->
+                JOptionPane.showMessageDialog(this, message, "错误", JOptionPane.ERROR_MESSAGE));
+    }
+    
+    /**
+     * 把客户端回调转交给 EDT 更新界面。
+     */
+    private class GuiListener implements ChatClient.Listener {
 
-    private boolean authenticateUser(String username, String password) {
-        try{
-            UserDao.User user = userDao.getUserByName(username);
-            if (user == null) {
-                // 用户不存在
-                JOptionPane.showMessageDialog(this, "用户不存在", "登录失败", JOptionPane.WARNING_MESSAGE);
-            } else if (!password.equals(user.getPassword())) {
-                // 密码不匹配
-                JOptionPane.showMessageDialog(this, "用户密码错误", "登录失败", JOptionPane.WARNING_MESSAGE);
-            } else {
-                // 登录成功
-                JOptionPane.showMessageDialog(this, "登录成功", "登录成功", JOptionPane.INFORMATION_MESSAGE);
-                return true;
+        @Override
+        public void onChat(String sender, long offset, String text) {
+            appendMessage(sender, text, sender.equals(username), offset);
+        }
+
+        @Override
+        public void onSystem(String text) {
+            appendMessage("系统消息", text, false);
+        }
+
+        @Override
+        public void onDirect(String sender, String target, String text) {
+            appendMessage(sender + " → " + target + "（私聊）", text, sender.equals(username));
+        }
+
+        @Override
+        public void onUserList(long version, List<String> users) {
+            post((Runnable) () -> updateUserList(version, users));
+        }
+
+        @Override
+        public void onPresence(long version, List<String> joined, List<String> left) {
+            post((Runnable) () -> applyPresence(version, joined, left));
+        }
+
+        @Override
+        public void onRoomJoined(String room) {
+            post((Runnable) () -> {
+                setTitle("聊天室 - " + username + " [" + room + "]");
+                // 新房间的消息偏移量与旧房间交错，清空后重新加载
+                messages.clear();
+                scrollBackTarget = -1;
+            });
+            appendMessage("系统消息", "你已进入房间：" + room, false);
+            // 加载新房间最近的消息
+            client.requestHistory(-1);
+        }
+
+        @Override
+        public void onHistoryEnd(long resumeOffset) {
+            post((Runnable) () -> onOlderPageEnd(resumeOffset));
+        }
+
+        @Override
+        public void onThrottled(MessageType dropped, long retryAfterMillis) {
+            if (dropped == MessageType.HISTORY) {
+                // 放弃本次向上加载，下次滚动到顶部时重试
+                post((Runnable) () -> scrollBackTarget = -1);
+            } else if (dropped == MessageType.CHAT || dropped == MessageType.DIRECT
+                    || dropped == MessageType.JOIN_ROOM) {
+                appendMessage("系统消息", "发送过于频繁，消息未送达，请在 "
+                        + Math.max(1, (retryAfterMillis + 999) / 1000) + " 秒后重试", false);
+            }
+        }
+
+        @Override
+        public void onImage(String sender, byte[] image) {
+            appendImage(sender, image, sender.equals(username), null);
+        }
+
+        @Override
+        public void onImagePreview(String sender, byte[] preview, String fullImage) {
+            appendImage(sender, preview, sender.equals(username), fullImage);
+        }
+
+        @Override
+        public void onImageExpired(String sender) {
+            appendMessage(sender, "[图片已过期]", sender.equals(username));
+        }
+
+        @Override
+        public void onReconnecting() {
+            appendMessage("系统消息", "连接已断开，正在重新连接……", false);
+        }
+
+        @Override
+        public void onReconnected() {
+            appendMessage("系统消息", "已重新连接", false);
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            if (cause != null) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(ChatClientGUI.this,
+                    "与服务器的连接已断开！",
+                    "错误",
+                    JOptionPane.ERROR_MESSAGE));
             }
-            return false;
-        } catch (Exception e){
-            System.out.println(e.getMessage());
         }
-        return false;
     }
 
     private String showPasswordDialog(Component parent) {
@@ -306,43 +532,122 @@ public class ChatClientGUI extends JFrame {
     private void sendMessage() {
         String message = messageArea.getText().trim();
         if (!message.isEmpty()) {
-            // 将所有换行符替换为特殊标记
-            message = message.replaceAll("\n", "@LINE_BREAK@");
-            writer.println(message);
+            client.sendChat(message);
             messageArea.setText("");
         }
         messageArea.requestFocus();
     }
     
-    private void disconnect() {
-        if (writer != null) {
-            writer.println("exit");
+    private void joinRoom() {
+        String room = JOptionPane.showInputDialog(this, "请输入要进入的房间名：", "切换房间", JOptionPane.QUESTION_MESSAGE);
+        if (room == null || room.trim().isEmpty()) {
+            return;
         }
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+        client.joinRoom(room.trim());
+    }
+    
+    private void searchHistory() {
+        String query = JOptionPane.showInputDialog(this, "搜索当前房间的历史消息：", "搜索", JOptionPane.QUESTION_MESSAGE);
+        if (query == null || query.trim().isEmpty()) {
+            return;
+        }
+        client.search(query.trim()).whenComplete((hits, error) -> {
+            if (error != null) {
+                showError("搜索失败：" + error.getMessage());
+                return;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            SwingUtilities.invokeLater(() -> showSearchResults(query.trim(), hits));
+        });
+    }
+    
+    private void showSearchResults(String query, List<SearchHit> hits) {
+        if (hits.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "没有找到包含“" + query + "”的消息", "搜索", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        DefaultListModel<String> model = new DefaultListModel<>();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (SearchHit hit : hits) {
+            model.addElement(format.format(new Date(hit.timestamp())) + "  " + hit.sender() + ": "
+                    + hit.text().replace('\n', ' '));
+        }
+        JScrollPane scroll = new JScrollPane(new JList<>(model));
+        scroll.setPreferredSize(new Dimension(520, 320));
+        JOptionPane.showMessageDialog(this, scroll, "搜索结果：" + query, JOptionPane.PLAIN_MESSAGE);
+    }
+    
+    private void sendDirectMessage(String target) {
+        String message = JOptionPane.showInputDialog(this, "发送给 " + target + " 的私聊消息：", "私聊", JOptionPane.PLAIN_MESSAGE);
+        if (message == null || message.trim().isEmpty()) {
+            return;
+        }
+        client.sendDirect(target, message);
+    }
+    
+    private void disconnect() {
+        if (client != null) {
+            client.close();
         }
     }
     
-    private void updateUserList(String userListStr) {
+    /**
+     * 用服务器发送的完整快照替换在线用户列表。
+     */
+    private void updateUserList(long version, List<String> snapshot) {
+        presenceVersion = version;
+        onlineUsers.clear();
+        List<String> users = new ArrayList<>();
+        for (String user : snapshot) {
+            if (onlineUsers.add(user)) {
+                users.add(user);
+            }
+        }
         userListModel.clear();
-        String[] users = userListStr.split(",");
-        for (String user : users) {
-            if (!user.trim().isEmpty()) {
-                userListModel.addElement(user);
+        userListModel.addAll(users);
+    }
+
+    /**
+     * 应用合并后的上下线增量，早于当前快照的增量直接丢弃。
+     */
+    private void applyPresence(long version, List<String> joined, List<String> left) {
+        if (version <= presenceVersion) {
+            return;
+        }
+        presenceVersion = version;
+        if (joined.size() + left.size() <= MAX_PRESENCE_NOTICES) {
+            joined.forEach(name -> appendMessage("系统消息", name + " 加入了聊天室！", false));
+            left.forEach(name -> appendMessage("系统消息", name + " 离开了聊天室！", false));
+        } else {
+            appendMessage("系统消息", joined.size() + " 位用户加入、" + left.size() + " 位用户离开了聊天室", false);
+        }
+        // 有人下线时整体重建一次列表，避免逐个 removeElement 的线性查找
+        if (!left.isEmpty() && onlineUsers.removeAll(left)) {
+            List<String> remaining = new ArrayList<>();
+            for (int i = 0; i < userListModel.size(); i++) {
+                String user = userListModel.get(i);
+                if (onlineUsers.contains(user)) {
+                    remaining.add(user);
+                }
             }
+            userListModel.clear();
+            userListModel.addAll(remaining);
         }
+        List<String> added = new ArrayList<>();
+        for (String name : joined) {
+            if (onlineUsers.add(name)) {
+                added.add(name);
+            }
+        }
+        userListModel.addAll(added);
     }
-    
+
     private void connectToServer() {
         try {
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            writer = new PrintWriter(socket.getOutputStream(), true);
+            // 界面只有一个会话，一个事件循环线程即可
+            clientGroup = new ChatClientGroup(1);
+            client = clientGroup.connect(SERVER_ADDRESS, SERVER_PORT, new GuiListener()).get();
 
-            // 获取用户名
+            // 获取用户名并由服务器校验，失败时可重新输入
             while(true){
                 username = JOptionPane.showInputDialog(this, "请输入你的用户名：", "登录", JOptionPane.QUESTION_MESSAGE);
                 if (username == null) {
@@ -353,112 +658,92 @@ public class ChatClientGUI extends JFrame {
                     JOptionPane.showMessageDialog(this, "用户名不能为空！", "错误", JOptionPane.ERROR_MESSAGE);
                     continue;
                 }
-                // 如果以#开头则跳过密码认证
+                // 如果以#开头则不带密码登录，是否允许由服务器决定
+                String password = null;
                 if (!username.startsWith("#")){
-                    String password = showPasswordDialog(this);
+                    password = showPasswordDialog(this);
                     if (password == null) {
                         System.exit(0);
                     }
-                    if(authenticateUser(username, password)){
-                        break;
-                    }
                 }
                 else{
                     username = username.substring(1);
+                }
+                LoginStatus status = client.login(username, password).get();
+                if (status == LoginStatus.OK) {
                     break;
                 }
+                JOptionPane.showMessageDialog(this, status.message(), "登录失败", JOptionPane.WARNING_MESSAGE);
             }
             
             // 设置窗口标题包含用户名
             setTitle("聊天室 - " + username);
             
-            // 发送用户名到服务器
-            writer.println(username);
-            
-            // 启动消息接收线程
-            new Thread(this::receiveMessages).start();
+            // 加载当前房间最近的消息
+            client.requestHistory(-1);
             
-        } catch (IOException e) {
+        } catch (IOException | ExecutionException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
             JOptionPane.showMessageDialog(this, 
-                "无法连接到服务器！\n" + e.getMessage(), 
+                "无法连接到服务器！\n" + cause.getMessage(), 
                 "连接错误", 
                 JOptionPane.ERROR_MESSAGE);
             System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
         }
     }
-    
+
     private void sendImage() {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setFileFilter(new FileNameExtensionFilter(
             "图片文件", "jpg", "jpeg", "png", "gif"));
 
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                File file = fileChooser.getSelectedFile();
-                // 检查文件扩展名
-                String fileName = file.getName().toLowerCase();
-                if (!fileName.endsWith(".jpg") && !fileName.endsWith(".jpeg") 
-                    && !fileName.endsWith(".png") && !fileName.endsWith(".gif")) {
-                    JOptionPane.showMessageDialog(this,
-                        "请选择正确的图片文件格式(jpg, jpeg, png, gif)！",
-                        "格式错误",
-                        JOptionPane.WARNING_MESSAGE);
-                    return;
-                }
-                
-                BufferedImage originalImage = ImageIO.read(file);
-                if (originalImage == null) {
-                    JOptionPane.showMessageDialog(this,
-                        "所选文件不是有效的图片文件！",
-                        "格式错误",
-                        JOptionPane.WARNING_MESSAGE);
-                    return;
-                }
-                
-                // 调整图片大小
-                BufferedImage resizedImage = resizeImageIfNeeded(originalImage);
-                
-                // 将图片转换为Base64字符串
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ImageIO.write(resizedImage, "png", baos);
-                byte[] imageBytes = baos.toByteArray();
-                String base64Image = Base64.getEncoder().encodeToString(imageBytes);
-                
-                // 分块发送（每块最大32KB）
-                int chunkSize = 32 * 1024;
-                int chunks = (base64Image.length() + chunkSize - 1) / chunkSize;
-                
-                System.out.println("开始发送图片，总块数：" + chunks); // 调试信息
-                
-                // 发送图片开始标记和总块数
-                writer.println("@IMAGE_START@" + chunks);
-                
-                // 分块发送图片数据
-                for (int i = 0; i < chunks; i++) {
-                    int start = i * chunkSize;
-                    int end = Math.min(start + chunkSize, base64Image.length());
-                    String chunk = base64Image.substring(start, end);
-                    writer.println("@IMAGE_CHUNK@" + chunk);
-                    System.out.println("发送图片块：" + (i + 1) + "/" + chunks); // 调试信息
-                    
-                    // 添加小延迟避免消息���积
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-                
-                // 发送图片结束标记
-                writer.println("@IMAGE_END@");
-                System.out.println("图片发送完成"); // 调试信息
-                
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, 
-                    "无法发送图片：" + e.getMessage(), 
-                    "错误", 
-                    JOptionPane.ERROR_MESSAGE);
+            File file = fileChooser.getSelectedFile();
+            // 检查文件扩展名
+            String fileName = file.getName().toLowerCase();
+            if (!fileName.endsWith(".jpg") && !fileName.endsWith(".jpeg") 
+                && !fileName.endsWith(".png") && !fileName.endsWith(".gif")) {
+                JOptionPane.showMessageDialog(this,
+                    "请选择正确的图片文件格式(jpg, jpeg, png, gif)！",
+                    "格式错误",
+                    JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            // 读取、缩放与编码在后台线程中进行
+            imageWorkers.execute(() -> encodeAndSend(file));
+        }
+    }
+    
+    private void encodeAndSend(File file) {
+        try {
+            BufferedImage originalImage = ImageIO.read(file);
+            if (originalImage == null) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                    "所选文件不是有效的图片文件！",
+                    "格式错误",
+                    JOptionPane.WARNING_MESSAGE));
+                return;
             }
+            
+            // 调整图片大小
+            BufferedImage resizedImage = resizeImageIfNeeded(originalImage);
+            
+            // 将图片编码为PNG字节，二进制协议直接传输原始数据
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ImageIO.write(resizedImage, "png", baos);
+            byte[] imageBytes = baos.toByteArray();
+            
+            // 客户端按服务器授予的额度流式发送，不阻塞界面和文本消息
+            client.sendImage(imageBytes).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    showError("无法发送图片：" + error.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            showError("无法发送图片：" + e.getMessage());
         }
     }
     
@@ -490,54 +775,6 @@ public class ChatClientGUI extends JFrame {
         return resized;
     }
     
-    private void appendImage(String sender, String base64Image, boolean isMyMessage) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                // 解码Base64图片
-                byte[] imageBytes = Base64.getDecoder().decode(base64Image);
-                BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
-                
-                if (image == null) {
-                    appendMessage(sender, "[图片发送失败]", isMyMessage);
-                    return;
-                }
-                
-                // 创建样式
-                Style style = chatPane.addStyle("ImageStyle", null);
-                StyleConstants.setAlignment(style, 
-                    isMyMessage ? StyleConstants.ALIGN_RIGHT : StyleConstants.ALIGN_LEFT);
-                StyleConstants.setBackground(style, 
-                    isMyMessage ? MY_MESSAGE_COLOR : OTHER_MESSAGE_COLOR);
-                
-                // 添加时间和发送者
-                SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-                String time = sdf.format(new Date());
-                String header = String.format("[%s] %s\n", time, sender);
-                
-                // 插入发送者信息
-                doc.insertString(doc.getLength(), header, style);
-                
-                // 创建带背景色的面板来容纳图片
-                JPanel imagePanel = new JPanel();
-                imagePanel.setBackground(isMyMessage ? MY_MESSAGE_COLOR : OTHER_MESSAGE_COLOR);
-                imagePanel.add(new JLabel(new ImageIcon(image)));
-                
-                // 将面板作为自定义视图插入
-                Style labelStyle = chatPane.addStyle("LabelStyle", null);
-                StyleConstants.setComponent(labelStyle, imagePanel);
-                doc.insertString(doc.getLength(), " ", labelStyle);
-                doc.insertString(doc.getLength(), "\n\n", style);
-                
-                // 滚动到底部
-                chatPane.setCaretPosition(doc.getLength());
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                appendMessage(sender, "[图片显示失败]", isMyMessage);
-            }
-        });
-    }
-    
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             try {
@@ -0,0 +1,81 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组共享事件循环的 {@link ChatClient}。每个事件循环线程用一个 Selector 处理多个连接，
+ * 几个线程即可驱动成千上万个会话；会话恢复的重试与上传超时由一个共享的定时线程调度。
+ *
+ * <pre>
+ * try (ChatClientGroup group = new ChatClientGroup(2)) {
+ *     ChatClient client = group.connect("localhost", 8888, listener).join();
+ *     if (client.login("alice", password).join() == LoginStatus.OK) {
+ *         client.sendChat("你好");
+ *     }
+ * }
+ * </pre>
+ */
+public final class ChatClientGroup implements AutoCloseable {
+
+    private final NioEventLoop[] loops;
+    private final ScheduledExecutorService timer;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param threads 事件循环线程数
+     */
+    public ChatClientGroup(int threads) throws IOException {
+        loops = new NioEventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("chat-client-loop-" + i);
+            loops[i].start();
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-client-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 异步建立连接并协商二进制协议，客户端按轮询分配到各个事件循环。
+     *
+     * @return 握手完成后完成，之后即可登录；无法连接时异常完成
+     */
+    public CompletableFuture<ChatClient> connect(String host, int port, ChatClient.Listener listener) {
+        NioEventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        return new ChatClient(this, loop, new InetSocketAddress(host, port), listener).connect();
+    }
+
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        try {
+            timer.schedule(task, delay, unit);
+        } catch (RejectedExecutionException e) {
+            // 已关闭
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 关闭全部事件循环，组内的客户端随之关闭。
+     */
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.chatroom;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * 聊天记录中的一行：一条文本消息或一张图片。
+ *
+ * <p>图片只保存压缩后的原始字节和缩略图尺寸，尺寸在创建时从图片头部读取，不解码像素；
+ * 缩略图在该行第一次显示时才在后台解码，由 {@link MessageCellRenderer} 缓存少量最近显示的缩略图。</p>
+ */
+final class ChatRow {
+
+    // 缩略图的最大边长
+    static final int THUMBNAIL_SIZE = 200;
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    final String header;
+    final String text;
+    final byte[] image;
+    final boolean mine;
+    // 聊天消息在服务器日志中的偏移量，其他消息为 -1
+    final long offset;
+    final int thumbnailWidth;
+    final int thumbnailHeight;
+    // image 是服务器生成的预览时为完整版本的标识，双击时再拉取
+    final String fullImage;
+
+    // 按列表宽度缓存的行高，只在 EDT 中访问
+    int cachedWidth = -1;
+    int cachedHeight;
+
+    private ChatRow(String sender, String text, byte[] image, boolean mine, long offset, int width, int height,
+                    String fullImage) {
+        this.header = "[" + LocalTime.now().format(TIME) + "] " + sender;
+        this.text = text;
+        this.image = image;
+        this.mine = mine;
+        this.offset = offset;
+        this.thumbnailWidth = width;
+        this.thumbnailHeight = height;
+        this.fullImage = fullImage;
+    }
+
+    static ChatRow text(String sender, String text, boolean mine, long offset) {
+        return new ChatRow(sender, text, null, mine, offset, 0, 0, null);
+    }
+
+    /**
+     * 读取图片头部计算缩略图尺寸，无法识别的图片转为一行提示文字。
+     *
+     * @param fullImage image 是服务器生成的预览时为完整版本的标识，否则为 null
+     */
+    static ChatRow image(String sender, byte[] image, boolean mine, String fullImage) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    int width = reader.getWidth(0);
+                    int height = reader.getHeight(0);
+                    double scale = Math.min(1.0, (double) THUMBNAIL_SIZE / Math.max(width, height));
+                    return new ChatRow(sender, null, image, mine, -1,
+                            Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)),
+                            fullImage);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            // 按无法识别处理
+        }
+        return text(sender, "[图片无法显示]", mine, -1);
+    }
+
+    boolean isImage() {
+        return image != null;
+    }
+}
@@ -1,27 +1,62 @@
 package com.example.chatroom;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer {
     private static final int PORT = 8888;
-    private static ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
 
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("聊天室服务器启动，监听端口：" + PORT);
+        // 连接引擎：nio（默认）或 virtual，可通过命令行参数或 -Dchat.engine 指定
+        String engineName = args.length > 0 ? args[0] : System.getProperty("chat.engine", "nio");
+        // 同一主机运行多个集群节点时可通过 -Dchat.port 指定客户端端口
+        int port = Integer.getInteger("chat.port", PORT);
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("新客户端连接：" + clientSocket.getInetAddress());
-                
-                ClientHandler clientHandler = new ClientHandler(clientSocket, clients);
-                new Thread(clientHandler).start();
+        // 定期计算速率与延迟百分位数，开启分配统计时一并输出
+        long interval = Long.getLong("chat.metrics.intervalSeconds", 10);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            ServerMetrics.get().sample(System.nanoTime());
+            Log.debug(ServerMetrics.get()::report);
+            if (BroadcastMetrics.isEnabled()) {
+                Log.info(BroadcastMetrics.report());
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+        ServerMetrics.registerMBean();
+
+        GracefulShutdown shutdown = null;
+        MetricsEndpoint metrics = null;
+        try (AuthService authService = AuthService.fromSystemProperties();
+             MessageJournal journal = MessageJournal.fromSystemProperties();
+             ClusterRelay cluster = ClusterRelay.fromSystemProperties()) {
+            // 指标接口只在后台线程中响应请求，未配置时为 null，停机时在 finally 中关闭
+            metrics = MetricsEndpoint.fromSystemProperties();
+            ServerContext context = new ServerContext(MediaCache.fromSystemProperties(), authService, journal, cluster);
+            // 集群未配置时不做任何事
+            cluster.start(context);
+            try (ConnectionEngine engine = ConnectionEngine.create(engineName, context)) {
+                // 收到 SIGTERM 时停止监听并排空连接，start 随之返回，之后按顺序关闭消息日志与集群连接
+                shutdown = new GracefulShutdown(context, engine);
+                shutdown.install();
+                Log.info("聊天室服务器启动，监听端口：" + port + "，连接引擎：" + engineName);
+                engine.start(port);
+                shutdown.awaitDrained();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("服务器启动失败", e);
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+            if (shutdown != null) {
+                shutdown.closed();
+            }
         }
     }
-} 
\ No newline at end of file
+} 
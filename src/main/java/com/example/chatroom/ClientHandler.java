@@ -1,97 +1,965 @@
 package com.example.chatroom;
 
-import java.io.*;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HexFormat;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongFunction;
 
-public class ClientHandler implements Runnable {
-    private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
+/**
+ * 单个客户端的协议处理器，由连接引擎驱动，与具体的 I/O 模型无关。
+ * 同时支持旧的按行文本协议与握手协商后的二进制帧协议，
+ * 两种协议的消息都会转换为 {@link Frame} 后广播，由每个接收者按自己的协议编码。
+ * 握手时请求了压缩的二进制客户端收到 {@link FrameCompression} 压缩后的帧，压缩结果同样由接收者共享。
+ *
+ * <p>图片按数据块流式转发，服务器不缓存整张图片。二进制客户端上传图片时使用基于额度的流控：
+ * 收到 IMAGE_START 后授予一个窗口的额度，此后转发的数据块在房间内所有接收者的出站队列发送到
+ * chat.image.inflightBytes 以下后才补充额度，上传速度受最慢的接收者限制，数据块不会堆积在它的队列中。
+ * 发送方没有额度时必须等待，而不是靠固定的 sleep 控制速度。</p>
+ *
+ * <p>二进制客户端上传图片前先用 IMAGE_OFFER 声明内容的 SHA-256。服务器媒体缓存中已有该内容时，
+ * 发送方无需上传，服务器只向接收者广播 IMAGE_REF，接收者本地未缓存时再用 IMAGE_FETCH 分段拉取。
+ * 开启了 {@link ImageTranscoder} 时，数据块不再边收边转发：上传完成后转码为缩略图与完整版本，
+ * 广播的 IMAGE_REF 引用缩略图并附带完整版本的哈希，接收者需要时再拉取完整版本。
+ * 声明的大小超过媒体缓存单个条目上限（chat.media.maxEntryBytes）或块数无效的图片直接被拒绝。</p>
+ *
+ * <p>登录由服务器校验：{@link AuthService} 在独立的线程池中完成查询与密码校验，
+ * 结果通过 {@link Connection#execute(Runnable)} 交回连接处理，校验期间 I/O 线程不会被阻塞。</p>
+ *
+ * <p>每个客户端同一时间位于一个房间，登录后进入默认房间。聊天与图片只广播给当前房间的订阅者，
+ * 私聊按用户名直接查找接收者。</p>
+ *
+ * <p>房间内的聊天消息写入 {@link MessageJournal}，每条消息带有日志偏移量，
+ * 客户端可以用 HISTORY 请求某个偏移量之后的历史消息，用 SEARCH 按关键词搜索当前房间的历史消息。</p>
+ *
+ * <p>登录后的消息经过 {@link RateLimiter} 按用户与地址限流，超出额度的消息被丢弃并告知客户端：
+ * 二进制客户端收到 THROTTLED，文本客户端每秒最多收到一条提示。正在上传的图片在声明的块数与已授予的额度以内的
+ * 后续数据块只记入额度、不丢弃，图片不会传到一半被截断；其余数据块、结束标记与图片拉取与普通消息一样限流，
+ * 不属于任何上传的数据块与结束标记被丢弃。连续被拒绝超过 {@value #MAX_THROTTLE_VIOLATIONS} 次的连接被断开。</p>
+ *
+ * <p>每个连接由 {@link Heartbeat} 检测：二进制连接空闲时收到 PING，超时仍无回复则断开；
+ * 文本协议没有 PING，只有连接后一直没有登录的文本连接会被断开。心跳断开的连接与意外断开一样保留会话宽限期。</p>
+ *
+ * <p>服务器停机排空期间拒绝新的登录与会话恢复；已登录的客户端收到 RECONNECT（文本客户端收到提示），
+ * 出站队列发送完毕后连接被关闭，会话不再保留。</p>
+ *
+ * <p>二进制客户端登录后获得一个 {@link Session}。连接意外断开时用户在宽限期内保持在线，
+ * 客户端重连后用 RESUME 恢复会话，只补发断线期间错过的帧；新连接的处理器此后把消息转交给会话所属的处理器，
+ * 会话所属的处理器改用新连接回复、限流与执行回调，帧按新连接握手时协商的方式编码。</p>
+ */
+public class ClientHandler {
+    // 图片上传的流控窗口，以数据块计
+    private static final int IMAGE_CREDIT_WINDOW = 16;
+    // 接收者出站队列中待发送的字节数超过该值时暂停补充额度
+    private static final long IMAGE_INFLIGHT_BYTES = Long.getLong("chat.image.inflightBytes", 512 * 1024);
+    // 客户端拉取缓存图片时每个片段的最大字节数
+    private static final int MEDIA_CHUNK_SIZE = 256 * 1024;
+    private static final int SEARCH_MAX_HITS = 50;
+    // 连续被限流的消息数超过该值时断开连接
+    private static final int MAX_THROTTLE_VIOLATIONS = Integer.getInteger("chat.limits.maxViolations", 100);
+    private static final long THROTTLE_NOTICE_INTERVAL_MILLIS = 1000;
+
+    // 本处理器自己的连接，心跳检测与断开都针对它
+    private final Connection connection;
+    // 当前承载会话的连接，恢复会话后为新连接
+    private volatile Connection activeConnection;
+    private final ServerContext context;
     private String username;
+    // 用户名的 UTF-8 编码，登录时生成一次，每条聊天消息的编码直接复制
+    private byte[] usernameBytes;
     private ConcurrentHashMap<String, ClientHandler> clients;
+    private final MediaCache mediaCache;
+    private final AuthService authService;
+    private final PresenceTracker presence;
+    private final RoomRegistry rooms;
+    private final MessageJournal journal;
+    private final SessionRegistry sessions;
+    private final ClusterRelay cluster;
+    private final ImageTranscoder transcoder;
+    private final RateLimiter rateLimiter;
+    private final Heartbeat.Monitor heartbeat;
+    private volatile Session session;
+    // 本连接恢复了其他处理器的会话时，消息都转交给该处理器
+    private ClientHandler delegate;
+    private Room room;
+    private boolean loginPending;
+    private boolean loginRejected;
+    // 正在上传的图片声明的块数，为 0 时没有正在进行的上传
+    private int imageChunks;
+    private int imageCreditsGranted;
+    private int imageChunksReceived;
+    // 文本协议上传的数据块字节数，文本协议没有额度，按缓存条目上限约束
+    private long imageBytesReceived;
+    // 已转发、等待接收者发送后再补充的额度
+    private int imageCreditsOwed;
+    private boolean awaitingDrain;
+    private MediaUpload mediaUpload;
+    // 正在上传的图片在完成后转码，数据块不转发
+    private boolean transcoding;
+    private volatile boolean binary;
+    // 二进制客户端在握手时请求了帧压缩
+    private volatile boolean compressed;
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    // 连续被限流的消息数与上次向文本客户端提示的时间
+    private int throttleViolations;
+    private long lastThrottleNotice;
+    // 写入消息日志时创建聊天帧的工厂只创建一次，正文在调用期间通过 chatBody 传入
+    private final LongFunction<Frame> chatFrame = this::chatFrame;
+    private ByteBuffer chatBody;
 
-    public ClientHandler(Socket socket, ConcurrentHashMap<String, ClientHandler> clients) {
-        this.socket = socket;
-        this.clients = clients;
-        try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public ClientHandler(Connection connection, ServerContext context) {
+        this.connection = connection;
+        this.activeConnection = connection;
+        this.context = context;
+        this.clients = context.clients();
+        this.mediaCache = context.mediaCache();
+        this.authService = context.authService();
+        this.presence = context.presence();
+        this.rooms = context.rooms();
+        this.journal = context.journal();
+        this.sessions = context.sessions();
+        this.cluster = context.cluster();
+        this.transcoder = context.transcoder();
+        this.rateLimiter = context.rateLimiter();
+        this.heartbeat = context.heartbeat().monitor(new Heartbeat.Peer() {
+            @Override
+            public boolean ping() {
+                return pingIdle();
+            }
+
+            @Override
+            public void timedOut() {
+                connection.execute(ClientHandler.this::heartbeatTimedOut);
+            }
+        });
+    }
+
+    /**
+     * @return 客户端是否已协商使用二进制协议
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * 处理文本协议的一行消息。第一行为用户名或二进制握手，之后为聊天消息。
+     * 文本协议不带密码，只有服务器允许免密码登录（chat.auth.allowGuests）时才能登录成功，
+     * 否则客户端收到提示后不再处理它的消息。
+     *
+     * @param message 不含换行符的消息
+     * @return 客户端请求退出或切换到二进制协议时返回 false
+     */
+    public boolean handle(String message) {
+        ServerMetrics.messageIn();
+        heartbeat.touch();
+        if (username == null) {
+            if (loginPending || loginRejected) {
+                // 登录结果返回前或登录失败后忽略其余消息
+                return !message.equals("exit");
+            }
+            int version = BinaryProtocol.negotiate(message);
+            if (version > 0) {
+                // 握手回复仍为文本行，之后的消息全部使用二进制帧
+                compressed = FrameCompression.ENABLED && BinaryProtocol.requestsCompression(message);
+                String accepted = compressed ? " " + BinaryProtocol.COMPRESSION : "";
+                byte[] reply = (BinaryProtocol.HANDSHAKE_OK + version + accepted + "\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                connection.send(ByteBuffer.wrap(reply));
+                binary = true;
+                return false;
+            }
+            login(message, null);
+            return true;
+        }
+
+        if (message.equals("exit")) {
+            return false;
+        }
+        // 不以 @ 开头的行都是普通消息，不再逐个比较命令前缀
+        boolean command = !message.isEmpty() && message.charAt(0) == '@';
+        // 按 UTF-8 字节数（含换行符）计入额度，与二进制帧按帧长计一致；正在上传的图片的后续数据块只记入额度
+        int lineBytes = BinaryProtocol.utf8Length(message) + 1;
+        boolean uploading = command && (message.startsWith("@IMAGE_CHUNK@")
+                // 文本协议的数据块为 Base64，累计不超过缓存条目上限编码后的长度
+                ? expectsImageChunk() && imageBytesReceived < mediaCache.maxEntryBytes() * 4 / 3
+                : message.startsWith("@IMAGE_END@") && imageChunks > 0);
+        if (uploading) {
+            rateLimiter.charge(username, activeConnection.remoteHost(), lineBytes);
+        } else if (!admit(null, lineBytes, 0)) {
+            return throttleViolations <= MAX_THROTTLE_VIOLATIONS;
+        }
+
+        if (!command) {
+            broadcastChat(message.replace("@LINE_BREAK@", "\n"));
+        }
+        else if (message.startsWith("@JOIN_ROOM@")) {
+            joinRoom(message.substring(11));
+        }
+        else if (message.startsWith("@HISTORY@")) {
+            // 可选的起始偏移量，省略时回放最近的消息
+            try {
+                String since = message.substring(9).trim();
+                replayHistory(since.isEmpty() ? -1 : Long.parseLong(since));
+            } catch (NumberFormatException e) {
+                Log.warn("无法解析历史消息偏移量: " + message);
+            }
+        }
+        else if (message.startsWith("@SEARCH@")) {
+            search(0, message.substring(8));
+        }
+        // 处理图片消息
+        else if (message.startsWith("@IMAGE_START@")) {
+            // 转发图片开始标记；文本协议没有额度，声明的块数全部视为已授予
+            try {
+                int chunks = Integer.parseInt(message.substring(13).trim());
+                if (chunks <= 0) {
+                    rejectImage(0, chunks);
+                } else {
+                    imageChunks = chunks;
+                    imageCreditsGranted = chunks;
+                    imageChunksReceived = 0;
+                    imageBytesReceived = 0;
+                    broadcast(Frame.imageStart(username, chunks, null));
+                }
+            } catch (NumberFormatException e) {
+                Log.warn("无法解析图片块数量: " + message);
+            }
+        }
+        else if (message.startsWith("@IMAGE_CHUNK@")) {
+            // 转发图片数据块
+            String base64 = message.substring(13);
+            if (imageChunks == 0 || imageChunksReceived >= imageChunks) {
+                Log.debug(() -> "丢弃不属于任何上传的图片数据块：" + username);
+                return true;
+            }
+            imageChunksReceived++;
+            imageBytesReceived += lineBytes;
+            try {
+                broadcast(Frame.imageChunk(username, Base64.getDecoder().decode(base64), base64));
+            } catch (IllegalArgumentException e) {
+                Log.warn("图片数据块不是有效的Base64: " + username);
+            }
+        }
+        else if (message.startsWith("@IMAGE_END@")) {
+            // 转发图片结束标记
+            if (imageChunks == 0) {
+                Log.debug(() -> "丢弃不属于任何上传的图片结束标记：" + username);
+                return true;
+            }
+            imageChunks = 0;
+            broadcast(Frame.imageEnd(username));
         }
+        else {
+            // 转发普通消息
+            broadcastChat(message.replace("@LINE_BREAK@", "\n"));
+        }
+        return true;
     }
 
-    @Override
-    public void run() {
+    /**
+     * 处理二进制协议的一帧消息。第一帧必须为 LOGIN，载荷为带长度前缀的用户名加密码，
+     * 没有密码部分表示免密码登录。登录失败后客户端可以在同一连接上重试。
+     *
+     * 载荷长度不符合消息类型的格式时视为协议错误，只断开这个连接，会话不再保留。
+     *
+     * @param type    消息类型
+     * @param payload 载荷，只在调用期间有效
+     * @return 客户端请求退出或发送了格式错误的帧时返回 false
+     */
+    public boolean handle(MessageType type, ByteBuffer payload) {
+        heartbeat.touch();
+        if (type == MessageType.PONG) {
+            return true;
+        }
+        if (delegate != null) {
+            return delegate.handle(type, payload);
+        }
         try {
-            username = reader.readLine();
-            clients.put(username, this);
-            broadcast(username + " 加入了聊天室！");
-            updateUserList();
-
-            String message;
-            StringBuilder imageBuilder = null;
-            while ((message = reader.readLine()) != null) {
-                if (message.equals("exit")) {
+            return dispatch(type, payload);
+        } catch (ProtocolException e) {
+            Log.warn("客户端发送了格式错误的帧，断开连接：" + type + " " + activeConnection.remoteAddress()
+                    + " " + e.getMessage());
+            if (session != null) {
+                sessions.close(session);
+            }
+            return false;
+        }
+    }
+
+    private boolean dispatch(MessageType type, ByteBuffer payload) throws ProtocolException {
+        BinaryProtocol.requireRemaining(payload, minimumPayload(type));
+        ServerMetrics.messageIn();
+        if (username == null) {
+            if (type == MessageType.EXIT) {
+                return false;
+            }
+            if (type == MessageType.RESUME && !loginPending) {
+                resume(payload);
+                return true;
+            }
+            if (type != MessageType.LOGIN) {
+                Log.warn("二进制客户端未登录即发送消息：" + connection.remoteAddress());
+                return false;
+            }
+            if (!loginPending) {
+                String name = BinaryProtocol.getShortString(payload);
+                login(name, payload.hasRemaining() ? BinaryProtocol.getString(payload) : null);
+            }
+            return true;
+        }
+
+        int frameSize = BinaryProtocol.HEADER_SIZE + payload.remaining();
+        boolean uploading = type == MessageType.IMAGE_CHUNK ? expectsImageChunk()
+                : type == MessageType.IMAGE_END && imageChunks > 0;
+        if (uploading) {
+            // 正在进行的上传在已授予的额度内不能中途丢弃，只记入额度
+            rateLimiter.charge(username, activeConnection.remoteHost(), frameSize);
+        } else if (type != MessageType.EXIT && !admit(type, frameSize,
+                type == MessageType.SEARCH && payload.remaining() >= 4 ? payload.getInt(payload.position()) : 0)) {
+            return throttleViolations <= MAX_THROTTLE_VIOLATIONS;
+        }
+
+        switch (type) {
+            case CHAT:
+                broadcastChat(payload);
+                break;
+            case HISTORY:
+                replayHistory(payload.getLong());
+                break;
+            case SEARCH: {
+                int requestId = payload.getInt();
+                search(requestId, BinaryProtocol.getString(payload));
+                break;
+            }
+            case DIRECT: {
+                String target = BinaryProtocol.getShortString(payload);
+                sendDirect(target, BinaryProtocol.getString(payload));
+                break;
+            }
+            case JOIN_ROOM:
+                joinRoom(BinaryProtocol.getString(payload));
+                break;
+            case IMAGE_START: {
+                int chunks = payload.getInt();
+                if (chunks <= 0) {
+                    rejectImage(0, chunks);
+                    break;
+                }
+                startImage(chunks, null);
+                break;
+            }
+            case IMAGE_OFFER: {
+                byte[] hash = MediaUpload.readHash(payload);
+                int size = payload.getInt();
+                int chunks = payload.getInt();
+                // 声明的大小由客户端决定，分配缓冲区之前先校验
+                if (size <= 0 || size > mediaCache.maxEntryBytes() || chunks <= 0 || chunks > size) {
+                    rejectImage(size, chunks);
                     break;
                 }
-                
-                // 处理图片消息
-                if (message.startsWith("@IMAGE_START@")) {
-                    // 转发图片开始标记
-                    broadcast(username + ": " + message);
-                    imageBuilder = new StringBuilder();
+                Frame reference = cachedImage(hash);
+                if (reference != null) {
+                    // 已缓存：发送方无需上传，只广播引用
+                    sendMessage(Frame.imageCached(hash));
+                    broadcast(reference);
+                } else if (transcoder.isEnabled()) {
+                    mediaUpload = new MediaUpload(hash, size, mediaCache.maxEntryBytes());
+                    transcoding = true;
+                    imageChunks = chunks;
+                    imageCreditsGranted = 0;
+                    imageChunksReceived = 0;
+                    grantImageCredits(IMAGE_CREDIT_WINDOW);
+                } else {
+                    mediaUpload = new MediaUpload(hash, size, mediaCache.maxEntryBytes());
+                    startImage(chunks, hash);
+                }
+                break;
+            }
+            case IMAGE_CHUNK: {
+                // 收到即转发，接收者发送后补充一个额度；需要转码的图片只缓存，缓存不超过条目上限，直接补充
+                if (imageChunks == 0 || imageChunksReceived >= imageChunks) {
+                    Log.debug(() -> "丢弃不属于任何上传的图片数据块：" + username);
+                    break;
+                }
+                imageChunksReceived++;
+                byte[] data = new byte[payload.remaining()];
+                payload.get(data);
+                if (mediaUpload != null) {
+                    mediaUpload.append(data);
+                }
+                if (transcoding) {
+                    grantImageCredits(1);
+                } else {
+                    broadcast(Frame.imageChunk(username, data, null));
+                    imageCreditsOwed++;
+                    releaseImageCredits();
+                }
+                break;
+            }
+            case IMAGE_END:
+                if (imageChunks == 0) {
+                    Log.debug(() -> "丢弃不属于任何上传的图片结束标记：" + username);
+                    break;
                 }
-                else if (message.startsWith("@IMAGE_CHUNK@")) {
-                    // 转发图片数据块
-                    broadcast(username + ": " + message);
-                    if (imageBuilder != null) {
-                        imageBuilder.append(message.substring(13));
-                    }
+                imageChunks = 0;
+                if (transcoding) {
+                    transcoding = false;
+                    transcode(mediaUpload.hash(), mediaUpload.finish());
+                    mediaUpload = null;
+                    break;
                 }
-                else if (message.startsWith("@IMAGE_END@")) {
-                    // 转发图片结束标记
-                    broadcast(username + ": " + message);
-                    imageBuilder = null;
+                if (mediaUpload != null) {
+                    mediaUpload.complete(mediaCache);
+                    mediaUpload = null;
                 }
-                else {
-                    // 转发普通消息
-                    broadcast(username + ": " + message);
+                broadcast(Frame.imageEnd(username));
+                break;
+            case IMAGE_FETCH:
+                sendMediaChunk(MediaUpload.readHash(payload), payload.getInt());
+                break;
+            case PING:
+                // 直接写入连接，心跳帧不进入会话的重放缓冲区
+                activeConnection.send(Frame.pong().buffer(true));
+                break;
+            case EXIT:
+                // 主动退出的会话不再保留
+                if (session != null) {
+                    sessions.close(session);
                 }
+                return false;
+            default:
+                Log.warn("忽略客户端发送的消息类型：" + type);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * 各消息类型载荷中定长字段的字节数，变长字符串由 {@link BinaryProtocol#getShortString(ByteBuffer)} 检查。
+     */
+    private static int minimumPayload(MessageType type) {
+        switch (type) {
+            case LOGIN:
+            case DIRECT:
+                return 2;
+            case RESUME:
+                return SessionRegistry.TOKEN_SIZE + 8;
+            case HISTORY:
+                return 8;
+            case SEARCH:
+            case IMAGE_START:
+                return 4;
+            case IMAGE_OFFER:
+                return MediaCache.HASH_SIZE + 8;
+            case IMAGE_FETCH:
+                return MediaCache.HASH_SIZE + 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 为一条消息取得限流额度，超出时告知客户端，连续超出次数过多时记录日志，由调用方断开连接。
+     *
+     * @param type      二进制帧类型，文本协议为 null
+     * @param requestId SEARCH 请求的编号，随 THROTTLED 返回
+     * @return 消息可以处理
+     */
+    private boolean admit(MessageType type, int size, int requestId) {
+        long retryAfter = rateLimiter.tryAcquire(username, activeConnection.remoteHost(), size);
+        if (retryAfter == 0) {
+            throttleViolations = 0;
+            return true;
+        }
+        ServerMetrics.messageThrottled();
+        if (++throttleViolations > MAX_THROTTLE_VIOLATIONS) {
+            ServerMetrics.floodDisconnected();
+            Log.warn("客户端持续超出发送频率限制，断开连接：" + username + " " + activeConnection.remoteAddress());
+            // 不保留会话，客户端不能通过恢复会话继续发送
+            if (session != null) {
+                sessions.close(session);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            return false;
+        }
+        if (binary) {
+            sendMessage(Frame.throttled(type, retryAfter, requestId));
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastThrottleNotice >= THROTTLE_NOTICE_INTERVAL_MILLIS) {
+            lastThrottleNotice = now;
+            sendMessage(Frame.system("发送过于频繁，消息未送达，请在 " + Math.max(1, (retryAfter + 999) / 1000)
+                    + " 秒后重试"));
+        }
+        return false;
+    }
+
+    /**
+     * 连接已空闲，在时间轮线程中执行。
+     *
+     * @return 已发送 PING，或这是一直没有登录的文本连接，超时后断开
+     */
+    private boolean pingIdle() {
+        if (binary) {
+            // 直接写入连接，心跳帧不进入会话的重放缓冲区；恢复了会话的连接同样由本连接检测
+            connection.send(Frame.ping().buffer(true));
+            return true;
+        }
+        return username == null && !loginPending;
+    }
+
+    private void heartbeatTimedOut() {
+        ServerMetrics.heartbeatTimedOut();
+        String name = delegate != null ? delegate.username : username;
+        Log.info("心跳超时，断开连接：" + (name != null ? name + " " : "") + connection.remoteAddress());
+        disconnect();
+    }
+
+    /**
+     * 离开当前房间并加入指定房间，通知两个房间的其他订阅者。
+     */
+    private void joinRoom(String name) {
+        if (!RoomRegistry.isValidName(name)) {
+            sendMessage(Frame.system("房间名无效：" + name));
+            return;
+        }
+        if (room.name().equals(name)) {
+            sendMessage(Frame.roomJoined(name));
+            return;
+        }
+        Room previous = room;
+        rooms.leave(previous, this);
+        Frame left = Frame.system(username + " 离开了房间 " + previous.name());
+        broadcast(previous.members(), left);
+        cluster.publish(previous.name(), left);
+        room = rooms.join(name, this);
+        sendMessage(Frame.roomJoined(name));
+        broadcast(Frame.system(username + " 进入了房间 " + name));
+    }
+
+    /**
+     * 写入消息日志后广播给当前房间。
+     */
+    private void broadcastChat(String text) {
+        broadcastChat(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param body UTF-8 正文，直接复制进共享的帧编码
+     */
+    private void broadcastChat(ByteBuffer body) {
+        chatBody = body;
+        Frame frame;
+        try {
+            frame = journal.append(room.name(), chatFrame);
         } finally {
-            disconnect();
+            chatBody = null;
         }
+        broadcast(frame);
     }
 
-    private void broadcast(String message) {
-        System.out.println(message);
-        clients.values().forEach(client -> client.sendMessage(message));
+    private Frame chatFrame(long offset) {
+        return Frame.chat(username, usernameBytes, chatBody, offset);
     }
 
-    private void updateUserList() {
-        StringBuilder userList = new StringBuilder("@USERLIST@");
-        clients.keySet().forEach(user -> userList.append(user).append(","));
-        broadcast(userList.toString());
+    /**
+     * 回放当前房间的历史消息。二进制客户端直接收到日志中的帧编码，文本客户端收到转换后的文本行。
+     */
+    private void replayHistory(long sinceOffset) {
+        journal.replay(room.name(), sinceOffset, this::sendHistory, resumeOffset -> {
+            if (binary) {
+                sendMessage(Frame.historyEnd(resumeOffset));
+            }
+        });
     }
 
-    private void sendMessage(String message) {
-        writer.println(message);
+    /**
+     * 在日志的读线程中搜索当前房间，结果只发给本客户端。
+     */
+    private void search(int requestId, String query) {
+        journal.search(room.name(), query, SEARCH_MAX_HITS,
+                hits -> sendMessage(Frame.searchResult(requestId, hits)));
     }
 
-    private void disconnect() {
-        if (username != null) {
-            clients.remove(username);
-            broadcast(username + " 离开了聊天室！");
-            updateUserList();
+    private void sendHistory(ByteBuffer frame) {
+        if (binary) {
+            send(frame);
+            return;
         }
+        ByteBuffer payload = frame.duplicate().position(BinaryProtocol.HEADER_SIZE);
         try {
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            String sender = BinaryProtocol.getShortString(payload);
+            long offset = payload.getLong();
+            sendMessage(Frame.chat(sender, BinaryProtocol.getString(payload), offset));
+        } catch (ProtocolException e) {
+            Log.warn("跳过损坏的历史消息：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 私聊：按用户名直接找到接收者，不经过房间广播。接收者在其他节点上时只转发给该节点。
+     */
+    private void sendDirect(String target, String text) {
+        Frame frame = Frame.direct(username, target, text);
+        ClientHandler recipient = clients.get(target);
+        if (recipient == null) {
+            if (!cluster.sendDirect(target, frame)) {
+                sendMessage(Frame.system("用户 " + target + " 不在线"));
+                return;
+            }
+        } else {
+            recipient.sendMessage(frame);
+        }
+        if (recipient != this) {
+            sendMessage(frame);
+        }
+    }
+
+    private void startImage(int chunks, byte[] hash) {
+        imageChunks = chunks;
+        imageCreditsGranted = 0;
+        imageChunksReceived = 0;
+        imageCreditsOwed = 0;
+        broadcast(Frame.imageStart(username, chunks, hash));
+        grantImageCredits(IMAGE_CREDIT_WINDOW);
+    }
+
+    private void rejectImage(int size, int chunks) {
+        Log.warn("拒绝无效的图片声明：" + username + " " + size + " 字节 " + chunks + " 块");
+        sendMessage(Frame.system("图片无效或超过 " + mediaCache.maxEntryBytes() + " 字节的上限"));
+    }
+
+    /**
+     * @return 缓存中已有的图片的引用，转码过的图片引用缩略图；未缓存时返回 null
+     */
+    private Frame cachedImage(byte[] hash) {
+        ImageTranscoder.Variants variants = transcoder.lookup(hash);
+        Frame preview = variants != null ? preview(username, variants) : null;
+        if (preview != null) {
+            return preview;
+        }
+        ByteBuffer cached = mediaCache.get(hash);
+        return cached != null ? Frame.imageRef(username, hash, cached) : null;
+    }
+
+    /**
+     * 在转码线程中转码上传完成的图片，完成后广播给上传时所在的房间；无法转码时按原图广播引用。
+     *
+     * @param image 上传的内容，与声明的哈希不一致时为 null
+     */
+    private void transcode(byte[] hash, byte[] image) {
+        if (image == null) {
+            Log.warn("图片内容与声明的哈希不一致，已丢弃：" + username);
+            return;
+        }
+        String sender = username;
+        Room target = room;
+        boolean submitted = transcoder.submit(hash, image, variants -> {
+            Frame frame = variants != null ? preview(sender, variants) : null;
+            if (frame == null) {
+                frame = original(sender, hash, image);
+            }
+            if (frame != null) {
+                broadcast(target, frame);
+            }
+        });
+        if (!submitted) {
+            Frame frame = original(sender, hash, image);
+            if (frame != null) {
+                broadcast(frame);
+            }
+        }
+    }
+
+    /**
+     * @return 转码结果的引用，任一版本已被缓存淘汰时返回 null
+     */
+    private Frame preview(String sender, ImageTranscoder.Variants variants) {
+        ByteBuffer thumbnail = mediaCache.get(variants.thumbnailHash);
+        ByteBuffer full = mediaCache.get(variants.fullHash);
+        if (thumbnail == null || full == null) {
+            return null;
+        }
+        if (variants.thumbnailHash == variants.fullHash) {
+            return Frame.imageRef(sender, variants.fullHash, full);
+        }
+        return Frame.imagePreview(sender, variants.thumbnailHash, thumbnail, variants.fullHash, full);
+    }
+
+    /**
+     * @return 原图写入缓存后的引用，超过缓存上限时返回 null
+     */
+    private Frame original(String sender, byte[] hash, byte[] image) {
+        mediaCache.put(hash, image);
+        ByteBuffer cached = mediaCache.get(hash);
+        return cached != null ? Frame.imageRef(sender, hash, cached) : null;
+    }
+
+    /**
+     * 返回缓存图片从 offset 开始的一个片段，客户端收到后再请求下一段。
+     */
+    private void sendMediaChunk(byte[] hash, int offset) {
+        ByteBuffer content = mediaCache.get(hash);
+        if (content == null || offset < 0 || offset > content.remaining()) {
+            sendMessage(Frame.mediaChunk(hash, -1, offset, ByteBuffer.allocate(0)));
+            return;
+        }
+        int length = Math.min(MEDIA_CHUNK_SIZE, content.remaining() - offset);
+        sendMessage(Frame.mediaChunk(hash, content.remaining(), offset, content.slice(offset, length)));
+    }
+
+    /**
+     * @return 下一个图片数据块属于正在进行的上传，且在已授予的额度以内
+     */
+    private boolean expectsImageChunk() {
+        return imageChunks > 0 && imageChunksReceived < imageCreditsGranted;
+    }
+
+    /**
+     * 向发送方授予图片数据块额度，累计额度不超过本次传输声明的块数。
+     */
+    private void grantImageCredits(int credits) {
+        int granted = Math.min(credits, imageChunks - imageCreditsGranted);
+        if (granted > 0) {
+            imageCreditsGranted += granted;
+            sendMessage(Frame.credit(granted));
+        }
+    }
+
+    /**
+     * 房间内其他接收者的出站队列都不超过 {@link #IMAGE_INFLIGHT_BYTES} 时补充已转发数据块的额度；
+     * 有接收者积压时登记到它的队列，发送到阈值以下后回到本连接重新检查。
+     */
+    private void releaseImageCredits() {
+        if (awaitingDrain || imageCreditsOwed == 0) {
+            return;
+        }
+        for (ClientHandler member : room.members()) {
+            if (member != this && member.awaitDrain(IMAGE_INFLIGHT_BYTES,
+                    () -> activeConnection.execute(this::recipientDrained))) {
+                awaitingDrain = true;
+                return;
+            }
+        }
+        grantImageCredits(imageCreditsOwed);
+        imageCreditsOwed = 0;
+    }
+
+    private void recipientDrained() {
+        awaitingDrain = false;
+        releaseImageCredits();
+    }
+
+    /**
+     * @return 已登记到当前连接的出站队列；会话断开期间的数据由会话缓冲，不登记
+     */
+    private boolean awaitDrain(long bytes, Runnable task) {
+        Session current = session;
+        Connection target = current != null ? current.connection() : connection;
+        return target != null && target.awaitDrain(bytes, task);
+    }
+
+    /**
+     * 提交异步登录校验。
+     *
+     * @param password 密码，为 null 表示免密码登录
+     */
+    private void login(String name, String password) {
+        boolean guest = password == null;
+        if (context.isDraining()) {
+            onLoginResult(name, guest, LoginStatus.SHUTTING_DOWN);
+            return;
+        }
+        if (name.isBlank()) {
+            onLoginResult(name, guest, LoginStatus.BAD_CREDENTIALS);
+            return;
+        }
+        loginPending = true;
+        authService.authenticate(name, password, connection.remoteHost(),
+                status -> connection.execute(() -> onLoginResult(name, guest, status)));
+    }
+
+    private void onLoginResult(String name, boolean guest, LoginStatus status) {
+        loginPending = false;
+        if (disconnected.get()) {
+            return;
+        }
+        if (status == LoginStatus.OK && guest && presence.isOnline(name)) {
+            // 访客不能取代在线的同名用户；通过密码校验的登录取代本节点上的旧连接
+            status = LoginStatus.NAME_IN_USE;
+        }
+        if (binary) {
+            sendMessage(Frame.loginResult(status));
+        }
+        if (status != LoginStatus.OK) {
+            Log.info("登录失败：" + name + "（" + status.message() + "）");
+            if (!binary) {
+                // 旧客户端无法重试，提示后不再处理它的消息
+                sendMessage(Frame.system("登录失败：" + (status == LoginStatus.GUESTS_DISABLED
+                        ? "服务器要求密码登录，文本协议不支持密码，请使用新版客户端" : status.message())));
+                loginRejected = true;
+            }
+            return;
+        }
+        username = name;
+        usernameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (binary) {
+            // 令牌帧在会话建立前发送，不计入编号；之后的帧都经过会话
+            Session opened = sessions.open(this, connection);
+            connection.send(Frame.session(HexFormat.of().parseHex(opened.token())).buffer(true));
+            session = opened;
+        }
+        // 上线提示与用户列表由 PresenceTracker 合并后广播，进入默认房间不单独通知
+        room = rooms.join(RoomRegistry.DEFAULT_ROOM, this);
+        presence.join(username, this);
+    }
+
+    /**
+     * 广播给当前房间的订阅者，并转发给集群中的其他节点。
+     */
+    private void broadcast(Frame frame) {
+        broadcast(room, frame);
+    }
+
+    private void broadcast(Room target, Frame frame) {
+        broadcast(target.members(), frame);
+        cluster.publish(target.name(), frame);
+    }
+
+    /**
+     * 向一组客户端广播同一个帧。
+     */
+    static void broadcast(Collection<ClientHandler> recipients, Frame frame) {
+        // 消息内容只在 DEBUG 级别输出，其他级别不创建回调对象
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug(frame::toString);
+        }
+        long start = System.nanoTime();
+        long allocatedBefore = BroadcastMetrics.allocatedBytes();
+        // 每种协议只编码一次，所有接收者共享同一个帧
+        int count = 0;
+        for (ClientHandler client : recipients) {
+            client.sendMessage(frame);
+            count++;
+        }
+        BroadcastMetrics.record(count, frame.encodedBytes(), allocatedBefore);
+        ServerMetrics.fanout(System.nanoTime() - start);
+    }
+
+    void sendMessage(Frame frame) {
+        send(compressed ? frame.compressedBuffer() : frame.buffer(binary));
+    }
+
+    private void send(ByteBuffer data) {
+        Session current = session;
+        if (current != null) {
+            current.send(data);
+        } else {
+            connection.send(data);
+        }
+    }
+
+    /**
+     * 用令牌恢复断开的会话，失败时客户端需要重新登录。
+     */
+    private void resume(ByteBuffer payload) {
+        byte[] token = new byte[SessionRegistry.TOKEN_SIZE];
+        payload.get(token);
+        long received = payload.getLong();
+        if (context.isDraining()) {
+            sendMessage(Frame.loginResult(LoginStatus.SHUTTING_DOWN));
+            return;
+        }
+        Session resumed = sessions.resume(token, received, connection, Frame.session(token).buffer(true));
+        if (resumed == null) {
+            sendMessage(Frame.loginResult(LoginStatus.SESSION_EXPIRED));
+            return;
+        }
+        ClientHandler owner = resumed.owner();
+        owner.rebind(connection, compressed);
+        delegate = owner;
+        Log.info("会话已恢复：" + owner.username + " " + connection.remoteAddress());
+    }
+
+    /**
+     * 会话在新连接上恢复，之后的回复、限流与异步回调都使用新连接，帧按新连接的协商结果编码。
+     */
+    private void rebind(Connection replacement, boolean compressed) {
+        this.compressed = compressed;
+        this.activeConnection = replacement;
+    }
+
+    /**
+     * 通知客户端服务器即将停机，可从任意线程调用。
+     *
+     * @param windowMillis 二进制客户端随机选择重连时间的窗口
+     */
+    void announceShutdown(int windowMillis) {
+        activeConnection.execute(() -> sendMessage(binary ? Frame.reconnect(windowMillis)
+                : Frame.system("服务器正在重启，请稍后重新连接")));
+    }
+
+    /**
+     * 停机时关闭连接，会话不再保留，可从任意线程调用。
+     */
+    void closeForShutdown() {
+        activeConnection.execute(this::terminate);
+    }
+
+    /**
+     * 同名用户在本节点重新登录，取代了本处理器：提示客户端后断开，会话不再保留。可从任意线程调用。
+     */
+    void replaced() {
+        activeConnection.execute(() -> {
+            Log.info("用户在其他连接重新登录，断开旧连接：" + username + " " + activeConnection.remoteAddress());
+            sendMessage(Frame.system("账号已在其他地方登录"));
+            terminate();
+        });
+    }
+
+    private void terminate() {
+        Session current = session;
+        if (current != null) {
+            // 会话恢复后客户端在新连接上，先关闭会话，新连接断开时用户立即离线
+            Connection attached = current.connection();
+            sessions.close(current);
+            if (attached != null && attached != connection) {
+                attached.close();
+            }
+        }
+        disconnect();
+    }
+
+    /**
+     * 断开连接，可重复调用。有会话时用户在宽限期内保持在线，否则立即移出在线用户表并通知其他用户。
+     */
+    public void disconnect() {
+        if (!disconnected.compareAndSet(false, true)) {
+            return;
+        }
+        ServerMetrics.connectionClosed();
+        heartbeat.cancel();
+        connection.close();
+        (delegate != null ? delegate : this).connectionLost(connection);
+    }
+
+    private void connectionLost(Connection lost) {
+        Session current = session;
+        if (current != null) {
+            sessions.detach(current, lost, this::goOffline);
+        } else {
+            goOffline();
+        }
+    }
+
+    private void goOffline() {
+        if (username != null) {
+            rooms.leave(room, this);
+            presence.leave(username, this);
         }
     }
-} 
\ No newline at end of file
+}
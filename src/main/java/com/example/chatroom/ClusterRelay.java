@@ -0,0 +1,406 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群转发：多个服务器节点共享在线状态，并把房间广播与私聊转发给其他节点上的用户。
+ *
+ * <ul>
+ *   <li>每个节点只向其他节点发送本节点用户的上下线，链路建立时先发送一次完整列表，
+ *       链路断开时对方节点的用户全部视为下线；</li>
+ *   <li>房间广播以节点为单位转发：一条消息对每个节点只发送一次，
+ *       由接收节点再广播给本节点该房间的订阅者，代价与节点数而不是远端用户数成正比；</li>
+ *   <li>私聊只发送给接收者所在的节点；</li>
+ *   <li>发往同一节点的记录先追加到该节点的批次中，在一个短时间窗口结束或批次达到上限时一起发送。</li>
+ * </ul>
+ *
+ * <p>聊天消息在接收节点重新写入本节点的 {@link MessageJournal}，偏移量只在节点内有效，
+ * 各节点的历史消息都是完整的。会话只能在原节点上恢复。未配置链路时所有方法都不做任何事。</p>
+ */
+public class ClusterRelay implements ClusterTransport.Listener, AutoCloseable {
+
+    private static final long DEFAULT_BATCH_MILLIS = 5;
+    private static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+    private static final int INITIAL_BATCH_CAPACITY = 4096;
+
+    // 转发记录的格式：1 字节类型 + 4 字节长度 + 内容
+    private static final int RECORD_HEADER_SIZE = 5;
+    // 内容为 4 字节数量加若干带长度前缀的用户名，取代该节点之前的在线用户
+    private static final byte USERS = 1;
+    // 内容为带长度前缀的用户名
+    private static final byte JOIN = 2;
+    private static final byte LEAVE = 3;
+    // 内容为带长度前缀的房间名加消息的二进制帧编码；图片引用在帧后附带图片内容
+    private static final byte ROOM = 4;
+    // 内容为私聊消息的二进制帧编码
+    private static final byte DIRECT = 5;
+
+    private final ClusterTransport transport;
+    private final long batchMillis;
+    private final int batchBytes;
+    private final ConcurrentHashMap<String, PeerBatch> peers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+    private ConcurrentHashMap<String, ClientHandler> clients;
+    private PresenceTracker presence;
+    private RoomRegistry rooms;
+    private MessageJournal journal;
+    private MediaCache mediaCache;
+
+    /**
+     * @param transport   节点间链路，为 null 时不加入集群
+     * @param batchMillis 合并发往同一节点的记录的时间窗口
+     * @param batchBytes  批次达到该大小时立即发送
+     */
+    public ClusterRelay(ClusterTransport transport, long batchMillis, int batchBytes) {
+        this.transport = transport;
+        this.batchMillis = batchMillis;
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * 按系统属性 chat.cluster.batchMillis 与 chat.cluster.batchBytes 创建，
+     * 链路的配置见 {@link ClusterTransport#fromSystemProperties()}。
+     */
+    public static ClusterRelay fromSystemProperties() throws IOException {
+        return new ClusterRelay(ClusterTransport.fromSystemProperties(),
+                Long.getLong("chat.cluster.batchMillis", DEFAULT_BATCH_MILLIS),
+                Integer.getInteger("chat.cluster.batchBytes", DEFAULT_BATCH_BYTES));
+    }
+
+    /**
+     * 开始与其他节点建立链路。
+     */
+    public void start(ServerContext context) throws IOException {
+        if (transport == null) {
+            return;
+        }
+        clients = context.clients();
+        presence = context.presence();
+        rooms = context.rooms();
+        journal = context.journal();
+        mediaCache = context.mediaCache();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        transport.start(this);
+    }
+
+    /**
+     * 本节点的用户上线，由 {@link PresenceTracker} 在修改在线用户表之后调用。
+     */
+    public void userJoined(String username) {
+        if (!peers.isEmpty()) {
+            publish(name(JOIN, username));
+        }
+    }
+
+    /**
+     * 本节点的用户下线。
+     */
+    public void userLeft(String username) {
+        if (!peers.isEmpty()) {
+            publish(name(LEAVE, username));
+        }
+    }
+
+    /**
+     * 将本节点的房间广播转发给其他节点。只转发聊天、系统消息与图片，其余类型只在本节点有意义。
+     */
+    public void publish(String room, Frame frame) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        ByteBuffer attachment = null;
+        switch (frame.type()) {
+            case CHAT:
+            case SYSTEM:
+            case IMAGE_START:
+            case IMAGE_CHUNK:
+            case IMAGE_END:
+                break;
+            case IMAGE_REF: {
+                // 其他节点的缓存中没有该图片，随引用附带内容，转码过的图片依次附带缩略图与完整版本
+                ByteBuffer payload = frame.buffer(true).position(BinaryProtocol.HEADER_SIZE);
+                try {
+                    BinaryProtocol.getShortString(payload);
+                } catch (ProtocolException e) {
+                    Log.error("无法解析图片引用", e);
+                    return;
+                }
+                attachment = mediaCache.get(MediaUpload.readHash(payload));
+                payload.getInt();
+                if (attachment != null && payload.hasRemaining()) {
+                    ByteBuffer full = mediaCache.get(MediaUpload.readHash(payload));
+                    attachment = full == null ? null : ByteBuffer.allocate(attachment.remaining() + full.remaining())
+                            .put(attachment).put(full).flip();
+                }
+                if (attachment == null) {
+                    return;
+                }
+                break;
+            }
+            default:
+                return;
+        }
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encoded = frame.buffer(true);
+        int length = 2 + roomBytes.length + encoded.remaining() + (attachment != null ? attachment.remaining() : 0);
+        ByteBuffer record = BinaryProtocol.putShortString(record(ROOM, length), roomBytes).put(encoded);
+        if (attachment != null) {
+            record.put(attachment);
+        }
+        publish(record.flip());
+    }
+
+    /**
+     * 将私聊转发给接收者所在的节点。
+     *
+     * @return 接收者在其他节点上在线时返回 true
+     */
+    public boolean sendDirect(String target, Frame frame) {
+        if (peers.isEmpty()) {
+            return false;
+        }
+        String node = presence.remoteNode(target);
+        PeerBatch batch = node != null ? peers.get(node) : null;
+        if (batch == null) {
+            return false;
+        }
+        ByteBuffer encoded = frame.buffer(true);
+        batch.append(record(DIRECT, encoded.remaining()).put(encoded).flip());
+        return true;
+    }
+
+    private void publish(ByteBuffer record) {
+        // 每条记录只编码一次，复制到各节点的批次中
+        for (PeerBatch batch : peers.values()) {
+            batch.append(record.duplicate());
+        }
+    }
+
+    @Override
+    public void peerUp(String peer) {
+        Log.info("集群节点已连接：" + peer);
+        PeerBatch batch = peers.computeIfAbsent(peer, PeerBatch::new);
+        // 在批次的锁内读取在线用户，之后的上下线记录都排在快照之后
+        synchronized (batch) {
+            List<byte[]> names = new ArrayList<>();
+            int length = 4;
+            for (String username : clients.keySet()) {
+                byte[] name = username.getBytes(StandardCharsets.UTF_8);
+                names.add(name);
+                length += 2 + name.length;
+            }
+            ByteBuffer record = record(USERS, length).putInt(names.size());
+            for (byte[] name : names) {
+                BinaryProtocol.putShortString(record, name);
+            }
+            batch.append(record.flip());
+        }
+    }
+
+    @Override
+    public void peerDown(String peer) {
+        Log.info("集群节点已断开：" + peer);
+        peers.remove(peer);
+        presence.remoteReset(peer, List.of());
+    }
+
+    @Override
+    public void received(String peer, ByteBuffer batch) {
+        try {
+            while (batch.hasRemaining()) {
+                byte kind = batch.get();
+                int length = batch.getInt();
+                ByteBuffer body = batch.slice(batch.position(), length);
+                batch.position(batch.position() + length);
+                switch (kind) {
+                    case USERS: {
+                        int count = body.getInt();
+                        List<String> names = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            names.add(BinaryProtocol.getShortString(body));
+                        }
+                        presence.remoteReset(peer, names);
+                        break;
+                    }
+                    case JOIN:
+                        presence.remoteJoin(peer, BinaryProtocol.getShortString(body));
+                        break;
+                    case LEAVE:
+                        presence.remoteLeave(peer, BinaryProtocol.getShortString(body));
+                        break;
+                    case ROOM:
+                        deliverRoom(BinaryProtocol.getShortString(body), body);
+                        break;
+                    case DIRECT:
+                        deliverDirect(body.position(BinaryProtocol.HEADER_SIZE));
+                        break;
+                    default:
+                        Log.warn("忽略集群节点 " + peer + " 发送的记录类型：" + kind);
+                        break;
+                }
+            }
+        } catch (ProtocolException | RuntimeException e) {
+            Log.error("无法解析集群节点 " + peer + " 发送的批次", e);
+        }
+    }
+
+    /**
+     * 在本节点重建消息帧并广播给该房间的订阅者。聊天消息即使本节点没有订阅者也写入日志。
+     */
+    private void deliverRoom(String roomName, ByteBuffer body) throws ProtocolException {
+        MessageType type = MessageType.fromCode(body.get());
+        int payloadLength = body.getInt();
+        ByteBuffer payload = body.slice(body.position(), payloadLength);
+        ByteBuffer attachment = body.position(body.position() + payloadLength).slice();
+        Frame frame;
+        switch (type) {
+            case CHAT: {
+                String sender = BinaryProtocol.getShortString(payload);
+                payload.getLong();
+                String text = BinaryProtocol.getString(payload);
+                frame = journal.append(roomName, offset -> Frame.chat(sender, text, offset));
+                break;
+            }
+            case SYSTEM:
+                frame = Frame.system(BinaryProtocol.getString(payload));
+                break;
+            case IMAGE_START: {
+                String sender = BinaryProtocol.getShortString(payload);
+                int chunks = payload.getInt();
+                frame = Frame.imageStart(sender, chunks,
+                        payload.remaining() >= MediaCache.HASH_SIZE ? MediaUpload.readHash(payload) : null);
+                break;
+            }
+            case IMAGE_CHUNK: {
+                String sender = BinaryProtocol.getShortString(payload);
+                byte[] data = new byte[payload.remaining()];
+                payload.get(data);
+                frame = Frame.imageChunk(sender, data, null);
+                break;
+            }
+            case IMAGE_END:
+                frame = Frame.imageEnd(BinaryProtocol.getShortString(payload));
+                break;
+            case IMAGE_REF: {
+                String sender = BinaryProtocol.getShortString(payload);
+                byte[] hash = MediaUpload.readHash(payload);
+                ByteBuffer cached = cacheAttachment(hash, attachment, payload.getInt());
+                if (!payload.hasRemaining()) {
+                    frame = cached != null ? Frame.imageRef(sender, hash, cached) : null;
+                    break;
+                }
+                byte[] fullHash = MediaUpload.readHash(payload);
+                ByteBuffer full = cacheAttachment(fullHash, attachment, payload.getInt());
+                frame = cached != null && full != null ? Frame.imagePreview(sender, hash, cached, fullHash, full) : null;
+                break;
+            }
+            default:
+                return;
+        }
+        if (frame == null) {
+            // 图片超过本节点缓存的上限
+            return;
+        }
+        Room room = rooms.find(roomName);
+        if (room != null) {
+            ClientHandler.broadcast(room.members(), frame);
+        }
+    }
+
+    /**
+     * 从附带的内容中取出下一张图片写入本节点的缓存。
+     *
+     * @return 缓存中的内容，超过缓存上限时返回 null
+     */
+    private ByteBuffer cacheAttachment(byte[] hash, ByteBuffer attachment, int length) {
+        byte[] content = new byte[length];
+        attachment.get(content);
+        mediaCache.put(hash, content);
+        return mediaCache.get(hash);
+    }
+
+    private void deliverDirect(ByteBuffer payload) throws ProtocolException {
+        String sender = BinaryProtocol.getShortString(payload);
+        String target = BinaryProtocol.getShortString(payload);
+        ClientHandler recipient = clients.get(target);
+        if (recipient != null) {
+            recipient.sendMessage(Frame.direct(sender, target, BinaryProtocol.getString(payload)));
+        }
+    }
+
+    private static ByteBuffer name(byte kind, String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        return BinaryProtocol.putShortString(record(kind, 2 + name.length), name).flip();
+    }
+
+    private static ByteBuffer record(byte kind, int length) {
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE + length).put(kind).putInt(length);
+    }
+
+    /**
+     * @return 已连接的节点
+     */
+    public Collection<String> peers() {
+        return peers.keySet();
+    }
+
+    @Override
+    public void close() {
+        if (transport == null) {
+            return;
+        }
+        transport.close();
+        flusher.shutdown();
+    }
+
+    /**
+     * 发往一个节点、尚未发送的记录。
+     */
+    private final class PeerBatch {
+        private final String peer;
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BATCH_CAPACITY);
+        private boolean flushScheduled;
+
+        PeerBatch(String peer) {
+            this.peer = peer;
+        }
+
+        synchronized void append(ByteBuffer record) {
+            if (buffer.remaining() < record.remaining()) {
+                int capacity = Math.max(buffer.capacity() * 2, buffer.position() + record.remaining());
+                buffer = ByteBuffer.allocate(capacity).put(buffer.flip());
+            }
+            buffer.put(record);
+            if (buffer.position() >= batchBytes) {
+                flush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, batchMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // 在锁内交给链路，发往同一节点的批次保持顺序
+        synchronized void flush() {
+            flushScheduled = false;
+            if (buffer.position() == 0) {
+                return;
+            }
+            transport.send(peer, buffer.flip());
+            buffer = ByteBuffer.allocate(INITIAL_BATCH_CAPACITY);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 集群节点之间的链路。每个节点通过它向其他节点发送批量的转发记录，并接收其他节点发来的批次；
+ * 批次的内容由 {@link ClusterRelay} 编解码，实现只负责建立与维持链路。
+ */
+public interface ClusterTransport extends AutoCloseable {
+
+    /**
+     * @return 本节点在集群中的标识
+     */
+    String nodeId();
+
+    /**
+     * 开始建立与其他节点的链路。
+     *
+     * @param listener 链路建立、断开与收到批次时的回调，同一个节点的回调按批次到达的顺序执行
+     * @throws IOException 如果监听端口失败
+     */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * 向一个节点发送一个批次，不等待发送完成。与该节点没有链路时丢弃。
+     *
+     * @param peer  目标节点
+     * @param batch 处于读模式的批次，交给链路后调用方不再修改
+     */
+    void send(String peer, ByteBuffer batch);
+
+    @Override
+    void close();
+
+    /**
+     * 链路事件的回调。
+     */
+    interface Listener {
+
+        void peerUp(String peer);
+
+        void peerDown(String peer);
+
+        void received(String peer, ByteBuffer batch);
+    }
+
+    /**
+     * 按系统属性创建 TCP 链路：chat.cluster.port 为节点间的监听端口，未设置时不加入集群，返回 null；
+     * chat.cluster.peers 为逗号分隔的 host:port 列表，本节点主动连接这些节点；
+     * chat.cluster.nodeId 为节点标识，默认为主机名加监听端口；
+     * chat.cluster.bindAddress 为集群端口绑定的地址，默认只绑定回环地址；
+     * chat.cluster.secret 为节点间的共享密钥，绑定到非回环地址时必须配置。
+     */
+    static ClusterTransport fromSystemProperties() throws IOException {
+        Integer port = Integer.getInteger("chat.cluster.port");
+        if (port == null) {
+            return null;
+        }
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : System.getProperty("chat.cluster.peers", "").split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("无效的集群节点地址：" + peer);
+            }
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+        String nodeId = System.getProperty("chat.cluster.nodeId",
+                InetAddress.getLocalHost().getHostName() + ":" + port);
+        String bind = System.getProperty("chat.cluster.bindAddress");
+        InetAddress bindAddress = bind != null ? InetAddress.getByName(bind) : InetAddress.getLoopbackAddress();
+        String secret = System.getProperty("chat.cluster.secret");
+        if (secret != null && secret.isEmpty()) {
+            secret = null;
+        }
+        if (secret == null && !bindAddress.isLoopbackAddress()) {
+            throw new IllegalArgumentException("集群端口绑定到 " + bind + " 时必须配置 chat.cluster.secret");
+        }
+        return new TcpClusterTransport(nodeId, bindAddress, port, peers,
+                secret != null ? secret.getBytes(StandardCharsets.UTF_8) : null);
+    }
+}
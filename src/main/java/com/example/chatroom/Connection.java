@@ -0,0 +1,48 @@
+package com.example.chatroom;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一条客户端连接的传输层抽象，由具体的连接引擎（NIO 或虚拟线程）实现。
+ * ClientHandler 只通过该接口收发消息，不关心底层使用的是哪种 I/O 模型。
+ */
+public interface Connection {
+
+    /**
+     * 向客户端发送已编码的数据。数据可能在多个连接之间共享内容，实现不得修改。
+     *
+     * @param data 处于读模式、读位置独立的缓冲区
+     * @return 数据被慢消费者策略丢弃、客户端不会收到时返回 false；
+     *         连接已关闭或因溢出断开时仍返回 true，这部分数据由会话恢复时补发
+     */
+    boolean send(ByteBuffer data);
+
+    /**
+     * 在该连接的处理上下文中执行任务，任务与 ClientHandler 的其他回调不会并发执行。
+     * 用于把在其他线程中完成的异步操作（如登录校验）的结果交回连接处理。
+     */
+    void execute(Runnable task);
+
+    /**
+     * 出站队列中待发送的数据超过 bytes 时登记任务，发送到 bytes 以下或连接关闭时在写数据的线程中执行一次。
+     * 用于按接收者的发送进度控制上传速度，任务必须很快返回。
+     *
+     * @return 已登记任务；未超过 bytes 时返回 false，任务不会执行
+     */
+    boolean awaitDrain(long bytes, Runnable task);
+
+    /**
+     * 关闭连接，可重复调用。
+     */
+    void close();
+
+    /**
+     * @return 客户端地址，用于日志输出
+     */
+    String remoteAddress();
+
+    /**
+     * @return 客户端主机地址（不含端口），用于按地址限流
+     */
+    String remoteHost();
+}
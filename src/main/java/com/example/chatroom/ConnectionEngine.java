@@ -0,0 +1,98 @@
+package com.example.chatroom;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+
+/**
+ * 连接引擎：负责监听端口、接受连接并驱动 ClientHandler 的协议处理。
+ * 启动时通过 {@link #create(String, ServerContext)} 选择具体实现。
+ */
+public interface ConnectionEngine extends Closeable {
+
+    /**
+     * 绑定端口并开始接受连接，方法在引擎关闭前不会返回。
+     *
+     * @param port 监听端口
+     * @throws IOException 如果绑定端口失败
+     */
+    void start(int port) throws IOException;
+
+    /**
+     * 停止接受新连接并使 {@link #start(int)} 返回，已建立的连接不受影响，仍可收发消息直到 {@link #close()}。
+     */
+    void stopAccepting() throws IOException;
+
+    /**
+     * 绑定监听端口。设置 -Dchat.reusePort=true 时开启 SO_REUSEPORT，新版本的进程可以在旧进程仍在监听时绑定同一端口，
+     * 旧进程随后停止接受连接并排空，部署期间端口不会出现拒绝连接的空档。
+     */
+    static ServerSocketChannel bind(int port, int backlog) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (Boolean.getBoolean("chat.reusePort")
+                && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port), backlog);
+        return channel;
+    }
+
+    /**
+     * 接受一个连接并记录对端地址。accept 或读取对端地址失败时只记录日志并返回 null，由调用方继续接受下一个连接；
+     * 文件描述符耗尽（EMFILE）时先短暂休眠，等待已有连接释放描述符，避免接收线程空转。
+     *
+     * @return 新连接，失败时返回 null
+     * @throws ClosedChannelException 如果监听通道已关闭
+     */
+    static SocketChannel accept(ServerSocketChannel serverChannel) throws ClosedChannelException {
+        SocketChannel channel = null;
+        try {
+            channel = serverChannel.accept();
+            Log.info("新客户端连接：" + channel.getRemoteAddress());
+            return channel;
+        } catch (IOException e) {
+            if (e instanceof ClosedChannelException closed && !serverChannel.isOpen()) {
+                throw closed;
+            }
+            Log.error("接受连接失败", e);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // 连接尚未交给引擎，关闭失败无需处理
+                }
+            }
+            if (String.valueOf(e.getMessage()).contains("Too many open files")) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 根据名称创建连接引擎。
+     *
+     * @param name    引擎名称：nio（默认，Selector 事件循环）或 virtual（Java 21 虚拟线程）
+     * @param context 服务器共享状态
+     * @return 连接引擎
+     */
+    static ConnectionEngine create(String name, ServerContext context) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "nio":
+                return new NioConnectionEngine(context, Runtime.getRuntime().availableProcessors());
+            case "virtual":
+                return new VirtualThreadConnectionEngine(context);
+            default:
+                throw new IllegalArgumentException("未知的连接引擎：" + name);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.chatroom;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 简单的 JDBC 连接池，连接按需创建，总数不超过上限。
+ * 每个连接缓存自己的 PreparedStatement，同一条 SQL 只预编译一次。
+ * 连接通过 {@link ConnectionFactory} 创建，因此可以替换为任意 JDBC 实现（如内存数据库）。
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    /**
+     * 创建物理连接的工厂。
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    // 空闲超过该时间的连接在借出前先校验是否仍然可用
+    private static final long DEFAULT_VALIDATE_AFTER_IDLE_MILLIS = 30_000;
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private final ConnectionFactory factory;
+    private final long borrowTimeoutMillis;
+    private final long validateAfterIdleMillis;
+    private final BlockingQueue<PooledConnection> idle;
+    private final Semaphore permits;
+    private volatile boolean closed;
+
+    /**
+     * @param factory             物理连接工厂
+     * @param maxSize             连接数上限
+     * @param borrowTimeoutMillis 借用连接的最长等待时间
+     */
+    public ConnectionPool(ConnectionFactory factory, int maxSize, long borrowTimeoutMillis) {
+        this(factory, maxSize, borrowTimeoutMillis, DEFAULT_VALIDATE_AFTER_IDLE_MILLIS);
+    }
+
+    /**
+     * @param factory                 物理连接工厂
+     * @param maxSize                 连接数上限
+     * @param borrowTimeoutMillis     借用连接的最长等待时间
+     * @param validateAfterIdleMillis 空闲超过该时间的连接在借出前先校验，0 表示每次借出都校验
+     */
+    public ConnectionPool(ConnectionFactory factory, int maxSize, long borrowTimeoutMillis,
+                          long validateAfterIdleMillis) {
+        this.factory = factory;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+        this.permits = new Semaphore(maxSize);
+    }
+
+    /**
+     * 借用一个连接，使用完毕后调用 {@link PooledConnection#close()} 归还。
+     *
+     * @throws SQLException 如果等待超时或创建连接失败
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("连接池已关闭");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("获取数据库连接超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("获取数据库连接被中断", e);
+        }
+        try {
+            PooledConnection connection;
+            while ((connection = idle.poll()) != null) {
+                if (connection.validate()) {
+                    return connection;
+                }
+                connection.closePhysical();
+            }
+            return new PooledConnection(factory.create());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(PooledConnection connection) {
+        if (closed || connection.broken || !idle.offer(connection)) {
+            connection.closePhysical();
+        }
+        permits.release();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.closePhysical();
+        }
+    }
+
+    /**
+     * 从池中借出的连接，关闭时归还到池中而不是关闭物理连接。
+     */
+    public final class PooledConnection implements AutoCloseable {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long lastUsed = System.currentTimeMillis();
+        private boolean broken;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * 获取预编译语句，同一连接上相同的 SQL 复用同一个语句对象。
+         * 语句由连接池管理，调用方不要关闭。
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * 标记连接已损坏，归还时直接关闭而不放回池中。
+         */
+        public void markBroken() {
+            broken = true;
+        }
+
+        private boolean validate() {
+            if (System.currentTimeMillis() - lastUsed < validateAfterIdleMillis) {
+                return true;
+            }
+            try {
+                return connection.isValid(VALIDATE_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private void closePhysical() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                Log.warn("无法关闭数据库连接", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            lastUsed = System.currentTimeMillis();
+            release(this);
+        }
+    }
+}
@@ -0,0 +1,662 @@
+package com.example.chatroom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * 已编码的出站消息帧。广播时每种协议只编码一次，所有接收者共享同一块只读缓冲区，
+ * 每个接收者获得独立读位置的视图，发送时不再复制消息内容。
+ * 文本编码与二进制编码都按需生成，只有存在对应协议的接收者时才会编码；
+ * 压缩编码同样只生成一次，由所有请求了压缩的接收者共享。
+ *
+ * <p>客户端发来的聊天消息由 {@link #chat(String, byte[], ByteBuffer, long)} 直接从 UTF-8 载荷编码，
+ * 正文不经过字符串：文本编码在二进制编码的字节上转换，只有搜索索引与日志输出需要正文时才解码。</p>
+ */
+public final class Frame {
+
+    // 超过该大小的广播帧放入直接内存，写入 socket 时无需再复制到临时直接缓冲区
+    private static final int DIRECT_THRESHOLD = 1024;
+    // 向文本客户端展开图片引用时每块的原始字节数，取 3 的倍数使各块的 Base64 可以直接拼接
+    private static final int LEGACY_CHUNK_SIZE = 24 * 1024;
+    private static final Frame PING = new Frame(MessageType.PING, null, null, null, 0, null, null, null, 0);
+    private static final Frame PONG = new Frame(MessageType.PONG, null, null, null, 0, null, null, null, 0);
+    private static final byte[] CHAT_SEPARATOR = ": ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LINE_BREAK = "@LINE_BREAK@".getBytes(StandardCharsets.UTF_8);
+    private static final DateTimeFormatter SEARCH_TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    private final MessageType type;
+    private final String sender;
+    private final String text;
+    private final byte[] data;
+    private final int count;
+    // 文本客户端发来的图片块保留原始 Base64，转发给文本客户端时无需重新编码
+    private final String base64;
+    // 媒体内容的 SHA-256 与内容本身，用于图片引用与缓存内容片段
+    private final byte[] hash;
+    private final ByteBuffer content;
+    private final int offset;
+    // 在线状态的版本号或聊天消息在日志中的偏移量，以及在线状态的增量
+    private final long sequence;
+    private final List<String> joined;
+    private final List<String> left;
+    // 私聊的接收者
+    private final String target;
+    // 转码后的图片引用中完整版本的 SHA-256 与内容，此时 hash 与 content 为缩略图
+    private final byte[] fullHash;
+    private final ByteBuffer fullContent;
+
+    // 从载荷编码的聊天消息没有 text，正文在第一次需要时从二进制编码解码
+    private volatile String decodedText;
+    private volatile ByteBuffer textEncoding;
+    private volatile ByteBuffer binaryEncoding;
+    // 没有压缩收益时与二进制编码为同一个缓冲区
+    private volatile ByteBuffer compressedEncoding;
+
+    private Frame(MessageType type, String sender, String text, byte[] data, int count, String base64,
+                  byte[] hash, ByteBuffer content, int offset) {
+        this.type = type;
+        this.sender = sender;
+        this.text = text;
+        this.data = data;
+        this.count = count;
+        this.base64 = base64;
+        this.hash = hash;
+        this.content = content;
+        this.offset = offset;
+        this.sequence = 0;
+        this.joined = null;
+        this.left = null;
+        this.target = null;
+        this.fullHash = null;
+        this.fullContent = null;
+    }
+
+    private Frame(MessageType type, String sender, String target, String text, long sequence,
+                  List<String> joined, List<String> left) {
+        this.type = type;
+        this.sender = sender;
+        this.target = target;
+        this.text = text;
+        this.data = null;
+        this.count = 0;
+        this.base64 = null;
+        this.hash = null;
+        this.content = null;
+        this.offset = 0;
+        this.sequence = sequence;
+        this.joined = joined;
+        this.left = left;
+        this.fullHash = null;
+        this.fullContent = null;
+    }
+
+    private Frame(String sender, byte[] hash, ByteBuffer content, byte[] fullHash, ByteBuffer fullContent) {
+        this.type = MessageType.IMAGE_REF;
+        this.sender = sender;
+        this.text = null;
+        this.data = null;
+        this.count = content.remaining();
+        this.base64 = null;
+        this.hash = hash;
+        this.content = content;
+        this.offset = 0;
+        this.sequence = 0;
+        this.joined = null;
+        this.left = null;
+        this.target = null;
+        this.fullHash = fullHash;
+        this.fullContent = fullContent;
+    }
+
+    /**
+     * @param offset 消息在日志中的偏移量，客户端据此请求之后的历史消息
+     */
+    public static Frame chat(String sender, String text, long offset) {
+        return new Frame(MessageType.CHAT, sender, null, text, offset, null, null);
+    }
+
+    /**
+     * 直接把客户端发来的 UTF-8 正文复制进二进制编码，编码只分配一次，不创建正文字符串。
+     *
+     * @param senderUtf8 发送者用户名的 UTF-8 编码，由调用方缓存
+     * @param body       正文，调用后被消费，之后不再引用
+     * @param offset     消息在日志中的偏移量
+     */
+    public static Frame chat(String sender, byte[] senderUtf8, ByteBuffer body, long offset) {
+        Frame frame = new Frame(MessageType.CHAT, sender, null, null, offset, null, null);
+        frame.binaryEncoding = BinaryProtocol.putShortString(
+                        frame.header(2 + senderUtf8.length + 8 + body.remaining()), senderUtf8)
+                .putLong(offset).put(body).flip().asReadOnlyBuffer();
+        return frame;
+    }
+
+    public static Frame system(String text) {
+        return new Frame(MessageType.SYSTEM, null, text, null, 0, null, null, null, 0);
+    }
+
+    /**
+     * 在线用户的完整快照，只发送给刚登录的客户端。
+     *
+     * @param version 快照对应的在线状态版本号
+     * @param users   在线用户名
+     */
+    public static Frame userList(long version, List<String> users) {
+        return new Frame(MessageType.USER_LIST, null, null, String.join("\n", users), version, null, null);
+    }
+
+    /**
+     * 合并后的上下线增量。文本客户端不理解增量，收到上下线提示与该版本的完整用户列表。
+     *
+     * @param version 增量对应的在线状态版本号
+     * @param joined  窗口内上线的用户
+     * @param left    窗口内下线的用户
+     * @param users   该版本的在线用户名
+     */
+    public static Frame presence(long version, List<String> joined, List<String> left, List<String> users) {
+        return new Frame(MessageType.PRESENCE, null, null, String.join("\n", users), version, joined, left);
+    }
+
+    /**
+     * 私聊消息，发送给接收者，并回显给发送者。
+     */
+    public static Frame direct(String sender, String target, String text) {
+        return new Frame(MessageType.DIRECT, sender, target, text, 0, null, null);
+    }
+
+    /**
+     * 历史消息回放结束，只发送给二进制客户端。
+     *
+     * @param resumeOffset 继续请求时使用的偏移量，没有更多消息时为 -1
+     */
+    public static Frame historyEnd(long resumeOffset) {
+        return new Frame(MessageType.HISTORY, null, null, null, resumeOffset, null, null);
+    }
+
+    /**
+     * 会话令牌，只发送给二进制客户端，不计入会话的帧编号。
+     */
+    public static Frame session(byte[] token) {
+        return new Frame(MessageType.SESSION, null, null, null, 0, null, token, null, 0);
+    }
+
+    /**
+     * 确认客户端已加入房间。
+     */
+    public static Frame roomJoined(String room) {
+        return new Frame(MessageType.JOIN_ROOM, null, null, room, 0, null, null);
+    }
+
+    /**
+     * @param hash 图片内容的 SHA-256，未知时传 null
+     */
+    public static Frame imageStart(String sender, int chunks, byte[] hash) {
+        return new Frame(MessageType.IMAGE_START, sender, null, null, chunks, null, hash, null, 0);
+    }
+
+    /**
+     * @param data   图片块的原始字节
+     * @param base64 同一数据的 Base64 文本，没有时传 null
+     */
+    public static Frame imageChunk(String sender, byte[] data, String base64) {
+        return new Frame(MessageType.IMAGE_CHUNK, sender, null, data, 0, base64, null, null, 0);
+    }
+
+    public static Frame imageEnd(String sender) {
+        return new Frame(MessageType.IMAGE_END, sender, null, null, 0, null, null, null, 0);
+    }
+
+    /**
+     * @param credits 授予的图片数据块额度，只发送给二进制客户端
+     */
+    public static Frame credit(int credits) {
+        return new Frame(MessageType.CREDIT, null, null, null, credits, null, null, null, 0);
+    }
+
+    /**
+     * 服务器已缓存图片，通知发送方无需上传。
+     */
+    public static Frame imageCached(byte[] hash) {
+        return new Frame(MessageType.IMAGE_CACHED, null, null, null, 0, null, hash, null, 0);
+    }
+
+    /**
+     * 图片引用。二进制客户端只收到哈希与大小，文本客户端收到按旧协议展开的完整图片。
+     *
+     * @param content 缓存中的图片内容，只读
+     */
+    public static Frame imageRef(String sender, byte[] hash, ByteBuffer content) {
+        return new Frame(sender, hash, content, null, null);
+    }
+
+    /**
+     * 服务器转码后的图片引用。二进制客户端先拉取缩略图，需要时再拉取完整版本；
+     * 文本客户端不支持按需拉取，收到展开后的完整版本。
+     *
+     * @param thumbnail 缓存中的缩略图内容，只读
+     * @param full      缓存中的完整版本内容，只读
+     */
+    public static Frame imagePreview(String sender, byte[] thumbnailHash, ByteBuffer thumbnail,
+                                     byte[] fullHash, ByteBuffer full) {
+        return new Frame(sender, thumbnailHash, thumbnail, fullHash, full);
+    }
+
+    /**
+     * 缓存图片内容的一个片段，只发送给请求的客户端。
+     *
+     * @param total  图片总字节数，缓存中不存在时为 -1
+     * @param offset 片段在图片中的偏移量
+     * @param slice  片段内容
+     */
+    public static Frame mediaChunk(byte[] hash, int total, int offset, ByteBuffer slice) {
+        return new Frame(MessageType.MEDIA_CHUNK, null, null, null, total, null, hash, slice, offset);
+    }
+
+    /**
+     * 搜索结果，只发送给发起搜索的客户端。结果在创建时编码，文本客户端收到逐行列出的结果。
+     *
+     * @param requestId 客户端请求中的编号
+     */
+    public static Frame searchResult(int requestId, List<SearchHit> hits) {
+        StringJoiner lines = new StringJoiner("\n");
+        int length = 4;
+        List<byte[]> senders = new ArrayList<>(hits.size());
+        List<byte[]> bodies = new ArrayList<>(hits.size());
+        for (SearchHit hit : hits) {
+            byte[] sender = hit.sender().getBytes(StandardCharsets.UTF_8);
+            byte[] body = hit.text().getBytes(StandardCharsets.UTF_8);
+            senders.add(sender);
+            bodies.add(body);
+            length += 8 + 8 + 2 + sender.length + 4 + body.length;
+            lines.add("[搜索] " + SEARCH_TIME.format(Instant.ofEpochMilli(hit.timestamp())) + " " + hit.sender()
+                    + ": " + hit.text().replace("\n", "@LINE_BREAK@"));
+        }
+        ByteBuffer data = ByteBuffer.allocate(length).putInt(hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            SearchHit hit = hits.get(i);
+            BinaryProtocol.putShortString(data.putLong(hit.offset()).putLong(hit.timestamp()), senders.get(i))
+                    .putInt(bodies.get(i).length).put(bodies.get(i));
+        }
+        String text = hits.isEmpty() ? "[搜索] 没有找到匹配的消息" : lines.toString();
+        return new Frame(MessageType.SEARCH, null, text, data.array(), requestId, null, null, null, 0);
+    }
+
+    /**
+     * @return 共享的心跳探测帧，只发送给二进制客户端
+     */
+    public static Frame ping() {
+        return PING;
+    }
+
+    public static Frame pong() {
+        return PONG;
+    }
+
+    /**
+     * 停机通知，只发送给二进制客户端。
+     *
+     * @param windowMillis 客户端随机选择重连时间的窗口
+     */
+    public static Frame reconnect(int windowMillis) {
+        return new Frame(MessageType.RECONNECT, null, null, null, windowMillis, null, null, null, 0);
+    }
+
+    /**
+     * 限流通知，只发送给被限流的二进制客户端。
+     *
+     * @param dropped          被丢弃的消息类型
+     * @param retryAfterMillis 建议的重试等待时间
+     * @param requestId        被丢弃的 SEARCH 请求的编号
+     */
+    public static Frame throttled(MessageType dropped, long retryAfterMillis, int requestId) {
+        return new Frame(MessageType.THROTTLED, null, null, new byte[]{dropped.code()}, requestId, null, null, null,
+                (int) Math.min(Integer.MAX_VALUE, retryAfterMillis));
+    }
+
+    /**
+     * 登录结果，只发送给发起登录的二进制客户端。
+     */
+    public static Frame loginResult(LoginStatus status) {
+        return new Frame(MessageType.LOGIN_RESULT, null, status.message(), null, status.code(), null, null, null, 0);
+    }
+
+    public MessageType type() {
+        return type;
+    }
+
+    /**
+     * @return 聊天、系统消息与私聊的正文，其他类型为 null
+     */
+    String content() {
+        if (text != null || type != MessageType.CHAT) {
+            return text;
+        }
+        String decoded = decodedText;
+        if (decoded == null) {
+            decoded = BinaryProtocol.getString(chatBody());
+            decodedText = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * @return 在线状态的版本号，或聊天消息在日志中的偏移量
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @param binary 接收者是否使用二进制协议
+     * @return 共享内容、独立读位置的只读视图
+     */
+    public ByteBuffer buffer(boolean binary) {
+        return binary ? binary().duplicate() : text().duplicate();
+    }
+
+    /**
+     * @return 发给请求了压缩的二进制客户端的编码：压缩帧，或没有压缩收益时的二进制帧
+     */
+    ByteBuffer compressedBuffer() {
+        return compressed().duplicate();
+    }
+
+    /**
+     * @return 目前已生成的各协议编码的字节数之和
+     */
+    public int encodedBytes() {
+        ByteBuffer t = textEncoding;
+        ByteBuffer b = binaryEncoding;
+        ByteBuffer c = compressedEncoding;
+        return (t != null ? t.remaining() : 0) + (b != null ? b.remaining() : 0)
+                + (c != null && c != b ? c.remaining() : 0);
+    }
+
+    // 并发首次访问时可能重复编码，但结果相同，无需加锁
+    private ByteBuffer text() {
+        ByteBuffer encoding = textEncoding;
+        if (encoding == null) {
+            if (type == MessageType.CHAT) {
+                encoding = encodeLegacyChat().flip().asReadOnlyBuffer();
+            } else {
+                byte[] bytes = legacyLine().getBytes(StandardCharsets.UTF_8);
+                encoding = allocate(bytes.length + 1).put(bytes).put((byte) '\n').flip().asReadOnlyBuffer();
+            }
+            textEncoding = encoding;
+        }
+        return encoding;
+    }
+
+    private ByteBuffer binary() {
+        ByteBuffer encoding = binaryEncoding;
+        if (encoding == null) {
+            encoding = encodeBinary().flip().asReadOnlyBuffer();
+            binaryEncoding = encoding;
+        }
+        return encoding;
+    }
+
+    private ByteBuffer compressed() {
+        ByteBuffer encoding = compressedEncoding;
+        if (encoding == null) {
+            ByteBuffer binary = binary();
+            ByteBuffer compressed = FrameCompression.isCompressible(type) ? FrameCompression.compress(binary) : null;
+            encoding = compressed != null ? compressed.asReadOnlyBuffer() : binary;
+            compressedEncoding = encoding;
+        }
+        return encoding;
+    }
+
+    private String legacyLine() {
+        switch (type) {
+            case CHAT:
+                return sender + ": " + content().replace("\n", "@LINE_BREAK@");
+            case SYSTEM:
+            case SEARCH:
+                return text;
+            case DIRECT:
+                return sender + " -> " + target + ": " + text.replace("\n", "@LINE_BREAK@");
+            case JOIN_ROOM:
+                return "你已进入房间：" + text;
+            case USER_LIST:
+                return legacyUserList();
+            case PRESENCE: {
+                StringJoiner lines = new StringJoiner("\n");
+                joined.forEach(name -> lines.add(name + " 加入了聊天室！"));
+                left.forEach(name -> lines.add(name + " 离开了聊天室！"));
+                return lines.add(legacyUserList()).toString();
+            }
+            case IMAGE_START:
+                return sender + ": @IMAGE_START@" + count;
+            case IMAGE_CHUNK:
+                return sender + ": @IMAGE_CHUNK@" + (base64 != null ? base64 : Base64.getEncoder().encodeToString(data));
+            case IMAGE_END:
+                return sender + ": @IMAGE_END@";
+            case IMAGE_REF:
+                return legacyImage(fullContent != null ? fullContent : content);
+            default:
+                // 其余类型只发送给二进制客户端
+                return "@" + type.name() + "@";
+        }
+    }
+
+    private String legacyUserList() {
+        return "@USERLIST@" + (text.isEmpty() ? "" : text.replace('\n', ',') + ",");
+    }
+
+    /**
+     * 将图片引用展开为旧协议的开始、数据块与结束三类行。
+     */
+    private String legacyImage(ByteBuffer image) {
+        int chunks = (image.remaining() + LEGACY_CHUNK_SIZE - 1) / LEGACY_CHUNK_SIZE;
+        StringJoiner lines = new StringJoiner("\n");
+        lines.add(sender + ": @IMAGE_START@" + chunks);
+        ByteBuffer source = image.duplicate();
+        byte[] chunk = new byte[LEGACY_CHUNK_SIZE];
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            lines.add(sender + ": @IMAGE_CHUNK@" + Base64.getEncoder().encodeToString(
+                    length == chunk.length ? chunk : Arrays.copyOf(chunk, length)));
+        }
+        lines.add(sender + ": @IMAGE_END@");
+        return lines.toString();
+    }
+
+    /**
+     * 在二进制编码的字节上生成旧协议的聊天行：发送者、分隔符与正文，正文中的换行替换为 {@code @LINE_BREAK@}。
+     * UTF-8 的多字节字符中不会出现 0x0A，可以逐字节替换。
+     */
+    private ByteBuffer encodeLegacyChat() {
+        // 只用绝对位置读取共享的二进制编码，不创建视图
+        ByteBuffer encoded = binary();
+        int senderStart = BinaryProtocol.HEADER_SIZE + 2;
+        int senderLength = encoded.getShort(BinaryProtocol.HEADER_SIZE) & 0xFFFF;
+        int start = senderStart + senderLength + 8;
+        int end = encoded.limit();
+        int breaks = 0;
+        for (int i = start; i < end; i++) {
+            if (encoded.get(i) == '\n') {
+                breaks++;
+            }
+        }
+        ByteBuffer line = allocate(senderLength + CHAT_SEPARATOR.length + (end - start)
+                + breaks * (LINE_BREAK.length - 1) + 1);
+        line.put(0, encoded, senderStart, senderLength).position(senderLength).put(CHAT_SEPARATOR);
+        if (breaks == 0) {
+            line.put(line.position(), encoded, start, end - start).position(line.position() + end - start);
+        } else {
+            for (int i = start; i < end; i++) {
+                byte b = encoded.get(i);
+                if (b == '\n') {
+                    line.put(LINE_BREAK);
+                } else {
+                    line.put(b);
+                }
+            }
+        }
+        return line.put((byte) '\n');
+    }
+
+    /**
+     * @return 聊天消息二进制编码中正文部分的视图
+     */
+    private ByteBuffer chatBody() {
+        ByteBuffer encoded = binary().duplicate();
+        int senderLength = encoded.getShort(BinaryProtocol.HEADER_SIZE) & 0xFFFF;
+        return encoded.position(BinaryProtocol.HEADER_SIZE + 2 + senderLength + 8);
+    }
+
+    private ByteBuffer encodeBinary() {
+        byte[] senderBytes = sender != null ? sender.getBytes(StandardCharsets.UTF_8) : null;
+        int senderLength = senderBytes != null ? 2 + senderBytes.length : 0;
+        switch (type) {
+            case CHAT: {
+                byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                return BinaryProtocol.putShortString(header(senderLength + 8 + body.length), senderBytes)
+                        .putLong(sequence).put(body);
+            }
+            case SYSTEM:
+            case JOIN_ROOM: {
+                byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                return header(body.length).put(body);
+            }
+            case DIRECT: {
+                byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+                byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer buffer = header(senderLength + 2 + targetBytes.length + body.length);
+                return BinaryProtocol.putShortString(BinaryProtocol.putShortString(buffer, senderBytes), targetBytes)
+                        .put(body);
+            }
+            case USER_LIST: {
+                byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                return header(8 + body.length).putLong(sequence).put(body);
+            }
+            case PRESENCE: {
+                List<byte[]> joinedNames = utf8(joined);
+                List<byte[]> leftNames = utf8(left);
+                ByteBuffer buffer = header(8 + namesLength(joinedNames) + namesLength(leftNames)).putLong(sequence);
+                return putNames(putNames(buffer, joinedNames), leftNames);
+            }
+            case IMAGE_START: {
+                int hashLength = hash != null ? hash.length : 0;
+                ByteBuffer buffer = BinaryProtocol.putShortString(header(senderLength + 4 + hashLength), senderBytes)
+                        .putInt(count);
+                return hash != null ? buffer.put(hash) : buffer;
+            }
+            case IMAGE_CHUNK:
+                return BinaryProtocol.putShortString(header(senderLength + data.length), senderBytes).put(data);
+            case IMAGE_END:
+                return BinaryProtocol.putShortString(header(senderLength), senderBytes);
+            case CREDIT:
+            case RECONNECT:
+                return header(4).putInt(count);
+            case HISTORY:
+                return header(8).putLong(sequence);
+            case IMAGE_CACHED:
+            case SESSION:
+                return header(hash.length).put(hash);
+            case LOGIN_RESULT:
+                return header(1).put((byte) count);
+            case SEARCH:
+                return header(4 + data.length).putInt(count).put(data);
+            case PING:
+            case PONG:
+                return header(0);
+            case THROTTLED:
+                return header(1 + 8 + 4).put(data[0]).putLong(offset).putInt(count);
+            case IMAGE_REF: {
+                int fullLength = fullHash != null ? fullHash.length + 4 : 0;
+                ByteBuffer buffer = BinaryProtocol.putShortString(header(senderLength + hash.length + 4 + fullLength),
+                        senderBytes).put(hash).putInt(count);
+                return fullHash != null ? buffer.put(fullHash).putInt(fullContent.remaining()) : buffer;
+            }
+            case MEDIA_CHUNK:
+                return header(hash.length + 8 + content.remaining()).put(hash).putInt(count).putInt(offset)
+                        .put(content.duplicate());
+            default:
+                throw new IllegalStateException(type.name());
+        }
+    }
+
+    /**
+     * @return 用于日志输出的文本形式，图片数据块只输出长度
+     */
+    @Override
+    public String toString() {
+        if (type == MessageType.IMAGE_CHUNK) {
+            return sender + ": @IMAGE_CHUNK@(" + data.length + " bytes)";
+        }
+        if (type == MessageType.PRESENCE) {
+            return "@PRESENCE@" + sequence + " +" + joined + " -" + left;
+        }
+        if (type == MessageType.IMAGE_REF) {
+            return sender + ": @IMAGE_REF@" + MediaCache.key(hash) + "(" + count + " bytes)";
+        }
+        return legacyLine();
+    }
+
+    private static List<byte[]> utf8(List<String> names) {
+        return names.stream().map(name -> name.getBytes(StandardCharsets.UTF_8)).toList();
+    }
+
+    // 用户名列表编码为 4 字节数量加若干带长度前缀的用户名
+    private static int namesLength(List<byte[]> names) {
+        int length = 4;
+        for (byte[] name : names) {
+            length += 2 + name.length;
+        }
+        return length;
+    }
+
+    private static ByteBuffer putNames(ByteBuffer buffer, List<byte[]> names) {
+        buffer.putInt(names.size());
+        for (byte[] name : names) {
+            BinaryProtocol.putShortString(buffer, name);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return 该类型的帧是否会广播给多个接收者
+     */
+    private boolean broadcast() {
+        switch (type) {
+            case CHAT:
+            case SYSTEM:
+            case USER_LIST:
+            case PRESENCE:
+            case IMAGE_START:
+            case IMAGE_CHUNK:
+            case IMAGE_END:
+            case IMAGE_REF:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private ByteBuffer header(int payloadLength) {
+        return BinaryProtocol.putHeader(allocate(BinaryProtocol.HEADER_SIZE + payloadLength), type, payloadLength);
+    }
+
+    /**
+     * 分配编码缓冲区。直接内存的分配与回收比堆内存昂贵得多，只有被许多连接共享的广播帧才能摊薄；
+     * 只发给单个客户端的帧（如 256 KB 的媒体片段）使用堆内存，写入时由 JDK 复用线程的临时直接缓冲区。
+     */
+    private ByteBuffer allocate(int size) {
+        if (size >= DIRECT_THRESHOLD && broadcast()) {
+            BroadcastMetrics.directAllocated(size);
+            return ByteBuffer.allocateDirect(size);
+        }
+        return ByteBuffer.allocate(size);
+    }
+}
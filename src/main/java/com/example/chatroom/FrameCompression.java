@@ -0,0 +1,126 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 帧压缩：把一个完整的二进制帧用预置字典 deflate 压缩后包装成 {@link MessageType#COMPRESSED} 帧。
+ *
+ * <p>每个帧独立压缩，不依赖连接上的压缩流状态，因此广播时只需压缩一次，所有协商了压缩的接收者共享结果，
+ * 会话恢复时补发的帧也可以直接重放。单个聊天消息很短，没有上下文时 deflate 几乎无效，
+ * 预置字典提供了系统提示、房间名等常见片段作为上下文。小于阈值或压缩后没有变小的帧按原样发送。</p>
+ *
+ * <p>客户端在握手行的版本号后追加 {@value BinaryProtocol#COMPRESSION} 请求压缩。
+ * 通过 -Dchat.compression.enabled=false 关闭，-Dchat.compression.threshold 设置最小压缩帧大小。</p>
+ */
+final class FrameCompression {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.compression.enabled", "true"));
+    private static final int THRESHOLD = Math.max(2 * BinaryProtocol.HEADER_SIZE,
+            Integer.getInteger("chat.compression.threshold", 64));
+    private static final int LEVEL = Integer.getInteger("chat.compression.level", Deflater.DEFAULT_COMPRESSION);
+
+    // 预置字典，越常见的片段越靠后，deflate 对距离较近的匹配编码更短
+    private static final byte[] DICTIONARY = String.join("",
+            "[图片无法显示]", "登录失败：", "用户名或密码错误", "用户 ", " 不在线",
+            "房间名无效：", "你已进入房间：", " 离开了房间 ", " 进入了房间 ",
+            " 加入了聊天室！", " 离开了聊天室！", RoomRegistry.DEFAULT_ROOM,
+            "的了是我你他在有这个不们好吗吧啊呢",
+            "the and you that have for with this what").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(LEVEL));
+
+    private FrameCompression() {
+    }
+
+    /**
+     * @param type 帧类型，只压缩以文本为主的帧，图片数据本身已经压缩过
+     */
+    static boolean isCompressible(MessageType type) {
+        switch (type) {
+            case CHAT:
+            case SYSTEM:
+            case DIRECT:
+            case USER_LIST:
+            case PRESENCE:
+            case JOIN_ROOM:
+            case SEARCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 压缩一个完整的帧，耗时与压缩前后的字节数计入 {@link ServerMetrics}。
+     *
+     * @param frame 处于读模式的帧，不会被修改
+     * @return 压缩帧，帧小于阈值或压缩后没有变小时返回 null
+     */
+    static ByteBuffer compress(ByteBuffer frame) {
+        int length = frame.remaining();
+        if (length < THRESHOLD) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(frame.duplicate());
+        deflater.finish();
+        // 输出缓冲区比原帧小一个字节，放不下说明压缩没有收益
+        ByteBuffer out = ByteBuffer.allocate(length - 1).position(BinaryProtocol.HEADER_SIZE);
+        while (!deflater.finished() && out.hasRemaining()) {
+            deflater.deflate(out);
+        }
+        boolean compressed = deflater.finished();
+        // 不再引用输入，避免线程本地的 Deflater 持有帧内容
+        deflater.reset();
+        ServerMetrics.compressed(length, compressed ? out.position() : length, System.nanoTime() - start);
+        if (!compressed) {
+            return null;
+        }
+        int payloadLength = out.position() - BinaryProtocol.HEADER_SIZE;
+        BinaryProtocol.putHeader(out.flip(), MessageType.COMPRESSED, payloadLength);
+        return out.position(0);
+    }
+
+    /**
+     * 解压 {@link MessageType#COMPRESSED} 帧的载荷。
+     *
+     * @param inflater 调用方独占的解压器
+     * @param payload  压缩帧的载荷
+     * @return 处于读模式的原始帧，包含帧头
+     * @throws IOException 如果数据无效或解压后超过帧大小上限
+     */
+    static ByteBuffer decompress(Inflater inflater, ByteBuffer payload) throws IOException {
+        int limit = BinaryProtocol.HEADER_SIZE + BinaryProtocol.MAX_FRAME_SIZE;
+        ByteBuffer out = ByteBuffer.allocate(Math.min(limit, Math.max(256, payload.remaining() * 4)));
+        inflater.reset();
+        inflater.setInput(payload);
+        try {
+            while (!inflater.finished()) {
+                if (inflater.inflate(out) > 0) {
+                    continue;
+                }
+                if (inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else if (!out.hasRemaining()) {
+                    if (out.capacity() == limit) {
+                        throw new IOException("解压后的帧超出限制");
+                    }
+                    out = ByteBuffer.allocate((int) Math.min(limit, out.capacity() * 2L)).put(out.flip());
+                } else {
+                    throw new IOException("压缩帧不完整");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("无效的压缩帧", e);
+        }
+        return out.flip();
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 优雅停机：收到 SIGTERM（或 Ctrl+C）后停止接受新连接，通知已连接的客户端重连，等待出站队列发送完毕后关闭连接，
+ * 最后等主线程关闭消息日志与集群连接再让进程退出。
+ *
+ * <p>二进制客户端收到 RECONNECT 后在窗口内随机选择时间重连，避免所有客户端同时涌向新进程。
+ * 配合 -Dchat.reusePort=true，新进程可以在旧进程退出前绑定同一端口，停机期间的新连接直接由新进程接受。</p>
+ *
+ * <p>chat.shutdown.drainMillis 配置等待出站队列发送完毕的最长时间，
+ * chat.shutdown.reconnectWindowMillis 配置客户端重连的随机窗口。</p>
+ */
+final class GracefulShutdown implements Runnable {
+
+    private static final long DEFAULT_DRAIN_MILLIS = 10_000;
+    private static final int DEFAULT_RECONNECT_WINDOW_MILLIS = 10_000;
+    private static final long POLL_MILLIS = 50;
+    // 主线程关闭资源的最长等待时间
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+
+    private final ServerContext context;
+    private final ConnectionEngine engine;
+    private final long drainMillis;
+    private final int reconnectWindowMillis;
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile boolean started;
+
+    GracefulShutdown(ServerContext context, ConnectionEngine engine) {
+        this.context = context;
+        this.engine = engine;
+        this.drainMillis = Long.getLong("chat.shutdown.drainMillis", DEFAULT_DRAIN_MILLIS);
+        this.reconnectWindowMillis = Integer.getInteger("chat.shutdown.reconnectWindowMillis",
+                DEFAULT_RECONNECT_WINDOW_MILLIS);
+    }
+
+    /**
+     * 注册 JVM 关闭钩子。
+     */
+    void install() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this, "shutdown"));
+    }
+
+    @Override
+    public void run() {
+        started = true;
+        try {
+            drain();
+        } finally {
+            drained.countDown();
+        }
+        try {
+            if (!closed.await(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.warn("等待资源关闭超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        context.startDraining();
+        try {
+            engine.stopAccepting();
+        } catch (IOException e) {
+            Log.warn("停止监听失败", e);
+        }
+        int clients = context.clients().size();
+        Log.info("服务器开始停机，通知 " + clients + " 个在线客户端重连");
+        for (ClientHandler client : context.clients().values()) {
+            client.announceShutdown(reconnectWindowMillis);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        try {
+            while (ServerMetrics.get().getQueuedBytes() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long remaining = ServerMetrics.get().getQueuedBytes();
+        if (remaining > 0) {
+            Log.warn("排空超时，丢弃 " + remaining + " 字节未发送的数据");
+        }
+        for (ClientHandler client : context.clients().values()) {
+            client.closeForShutdown();
+        }
+        Log.info("连接已排空");
+    }
+
+    /**
+     * 主线程在 {@link ConnectionEngine#start(int)} 返回后调用：停机时等待排空完成，引擎因其他原因退出时立即返回。
+     */
+    void awaitDrained() {
+        if (!started) {
+            return;
+        }
+        try {
+            drained.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 主线程已关闭消息日志等资源，关闭钩子可以返回。
+     */
+    void closed() {
+        closed.countDown();
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * 连接心跳：连接在 idle 时长内没有收到任何数据时，服务器发送 PING，再过 timeout 仍没有收到数据则断开连接。
+ *
+ * <p>所有连接的检测共用一个 {@link TimerWheel}。收到数据时只记录时间轮的当前时间，不重新添加超时；
+ * 超时到期时检查最后一次收到数据的时间，期间有过数据就按剩余时间重新添加。因此活跃的连接每个空闲周期只产生一次检查，
+ * 第一次检查的时间带有随机抖动，同时建立的大量连接不会在同一个 tick 集中发送 PING。</p>
+ *
+ * <p>旧文本协议没有 PING，只对连接后一直没有登录的文本连接计时；所有连接另外开启 TCP keepalive，
+ * 探测间隔按空闲时长设置，由内核回收失联的文本客户端。</p>
+ *
+ * <p>通过 -Dchat.heartbeat.enabled=false 关闭，chat.heartbeat.idleMillis、chat.heartbeat.timeoutMillis 与
+ * chat.heartbeat.tickMillis 配置空闲时长、等待回复的时长与时间轮精度。</p>
+ */
+final class Heartbeat implements AutoCloseable {
+
+    private static final long DEFAULT_IDLE_MILLIS = 30_000;
+    private static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+    private static final long DEFAULT_TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 1024;
+    // 第一次检查的随机抖动占空闲时长的比例
+    private static final double JITTER = 0.2;
+
+    /**
+     * 被检测的连接，回调在时间轮线程中执行。
+     */
+    interface Peer {
+
+        /**
+         * 连接已空闲 idle 时长。
+         *
+         * @return 已发送 PING 或需要在 timeout 后断开时返回 true，连接无法检测时返回 false
+         */
+        boolean ping();
+
+        /**
+         * 空闲检测后仍没有收到任何数据。
+         */
+        void timedOut();
+    }
+
+    private final TimerWheel wheel;
+    private final long idleMillis;
+    private final long timeoutMillis;
+
+    /**
+     * @param idleMillis 开始检测前允许的空闲时长，为 0 时不检测
+     */
+    Heartbeat(long idleMillis, long timeoutMillis, long tickMillis) {
+        this.idleMillis = idleMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.wheel = idleMillis > 0 ? new TimerWheel("heartbeat", tickMillis, WHEEL_SIZE) : null;
+    }
+
+    static Heartbeat fromSystemProperties() {
+        boolean enabled = Boolean.parseBoolean(System.getProperty("chat.heartbeat.enabled", "true"));
+        return new Heartbeat(enabled ? Long.getLong("chat.heartbeat.idleMillis", DEFAULT_IDLE_MILLIS) : 0,
+                Long.getLong("chat.heartbeat.timeoutMillis", DEFAULT_TIMEOUT_MILLIS),
+                Long.getLong("chat.heartbeat.tickMillis", DEFAULT_TICK_MILLIS));
+    }
+
+    /**
+     * 开始检测一个连接。
+     */
+    Monitor monitor(Peer peer) {
+        Monitor monitor = new Monitor(peer);
+        if (wheel != null) {
+            long jitter = (long) (idleMillis * JITTER * ThreadLocalRandom.current().nextDouble());
+            monitor.timeout = wheel.schedule(monitor::expired, idleMillis + jitter);
+        }
+        return monitor;
+    }
+
+    /**
+     * 为新连接开启 TCP keepalive，平台支持时按空闲时长设置探测时间。
+     */
+    void enableKeepAlive(SocketChannel channel) {
+        if (wheel == null) {
+            return;
+        }
+        try {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            if (channel.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPIDLE)) {
+                int idleSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(idleMillis));
+                channel.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, idleSeconds);
+                channel.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL,
+                        (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(timeoutMillis) / 3));
+                channel.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, 3);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.debug(() -> "无法设置 TCP keepalive：" + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (wheel != null) {
+            wheel.close();
+        }
+    }
+
+    /**
+     * 一个连接的检测状态。
+     */
+    final class Monitor {
+
+        private final Peer peer;
+        private volatile long lastReceived;
+        private volatile boolean cancelled;
+        private volatile TimerWheel.Timeout timeout;
+        // 只由时间轮线程访问
+        private boolean pinged;
+
+        private Monitor(Peer peer) {
+            this.peer = peer;
+            this.lastReceived = wheel != null ? wheel.nowMillis() : 0;
+        }
+
+        /**
+         * 收到了数据，在每条消息的处理路径上调用。
+         */
+        void touch() {
+            if (wheel != null) {
+                lastReceived = wheel.nowMillis();
+            }
+        }
+
+        /**
+         * 连接已关闭，不再检测。
+         */
+        void cancel() {
+            cancelled = true;
+            TimerWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private void expired() {
+            if (cancelled) {
+                return;
+            }
+            long idle = wheel.nowMillis() - lastReceived;
+            if (idle < idleMillis) {
+                pinged = false;
+                timeout = wheel.schedule(this::expired, idleMillis - idle);
+            } else if (!pinged) {
+                pinged = peer.ping();
+                timeout = wheel.schedule(this::expired, pinged ? timeoutMillis : idleMillis);
+            } else {
+                peer.timedOut();
+            }
+        }
+    }
+}
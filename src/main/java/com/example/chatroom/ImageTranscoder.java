@@ -0,0 +1,303 @@
+package com.example.chatroom;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * 服务器端图片转码：上传完成的图片在有界线程池中解码一次，生成用于预览的缩略图与限制尺寸的完整版本，
+ * 两者都按内容哈希写入 {@link MediaCache}。接收者先收到缩略图，需要时再拉取完整版本，
+ * 大房间中多数人不会打开原图，扇出的字节数因此大幅减少。
+ *
+ * <p>不透明的图片编码为 JPEG，带透明像素的编码为 PNG；完整版本在尺寸未超限且重新编码没有变小时保留原始内容。
+ * 队列已满时不转码，由调用方按原样广播。</p>
+ *
+ * <p>解码前先读取图片头中的宽高，像素数超过上限的图片不解码，避免很小的文件声明巨大的尺寸耗尽内存。</p>
+ *
+ * <p>通过 -Dchat.media.transcode=false 关闭，chat.media.transcodeThreads、chat.media.transcodeQueue、
+ * chat.media.thumbnailSize 与 chat.media.fullSize 配置线程数、队列长度与两种版本的最大边长，
+ * chat.media.maxPixels 配置可解码图片的像素数上限。</p>
+ */
+final class ImageTranscoder {
+
+    private static final int DEFAULT_QUEUE_SIZE = 64;
+    private static final int DEFAULT_THUMBNAIL_SIZE = 320;
+    private static final int DEFAULT_FULL_SIZE = 2048;
+    // 解码后每像素占 4 字节，默认上限约 100MB
+    private static final long DEFAULT_MAX_PIXELS = 25_000_000;
+    private static final float JPEG_QUALITY = 0.85f;
+    // 记住的原图与转码结果的对应关系数，用于同一张图片再次上传时直接引用
+    private static final int MAX_REMEMBERED = 4096;
+
+    /**
+     * 一张图片的两个版本在媒体缓存中的哈希，图片很小时两者相同。
+     */
+    static final class Variants {
+        final byte[] thumbnailHash;
+        final byte[] fullHash;
+
+        Variants(byte[] thumbnailHash, byte[] fullHash) {
+            this.thumbnailHash = thumbnailHash;
+            this.fullHash = fullHash;
+        }
+    }
+
+    private final MediaCache mediaCache;
+    private final ThreadPoolExecutor executor;
+    private final int thumbnailSize;
+    private final int fullSize;
+    private final long maxPixels;
+    // 原图哈希到转码结果，按 LRU 淘汰
+    private final LinkedHashMap<String, Variants> transcoded = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Variants> eldest) {
+            return size() > MAX_REMEMBERED;
+        }
+    };
+
+    /**
+     * @param threads       转码线程数，为 0 时不转码
+     * @param queueSize     等待转码的图片上限
+     * @param thumbnailSize 缩略图的最大边长
+     * @param fullSize      完整版本的最大边长
+     * @param maxPixels     可解码图片的像素数上限
+     */
+    ImageTranscoder(MediaCache mediaCache, int threads, int queueSize, int thumbnailSize, int fullSize,
+                    long maxPixels) {
+        this.mediaCache = mediaCache;
+        this.thumbnailSize = thumbnailSize;
+        this.fullSize = fullSize;
+        this.maxPixels = maxPixels;
+        if (threads <= 0) {
+            this.executor = null;
+            return;
+        }
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread thread = new Thread(r, "image-transcoder-" + counter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    static ImageTranscoder fromSystemProperties(MediaCache mediaCache) {
+        boolean enabled = Boolean.parseBoolean(System.getProperty("chat.media.transcode", "true"));
+        return new ImageTranscoder(mediaCache,
+                enabled ? Integer.getInteger("chat.media.transcodeThreads", 2) : 0,
+                Integer.getInteger("chat.media.transcodeQueue", DEFAULT_QUEUE_SIZE),
+                Integer.getInteger("chat.media.thumbnailSize", DEFAULT_THUMBNAIL_SIZE),
+                Integer.getInteger("chat.media.fullSize", DEFAULT_FULL_SIZE),
+                Long.getLong("chat.media.maxPixels", DEFAULT_MAX_PIXELS));
+    }
+
+    boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * @param originalHash 原图的 SHA-256
+     * @return 该图片之前的转码结果，未转码过或任一版本已被缓存淘汰时返回 null
+     */
+    Variants lookup(byte[] originalHash) {
+        Variants variants;
+        synchronized (transcoded) {
+            variants = transcoded.get(MediaCache.key(originalHash));
+        }
+        if (variants == null || !mediaCache.contains(variants.thumbnailHash)
+                || !mediaCache.contains(variants.fullHash)) {
+            return null;
+        }
+        return variants;
+    }
+
+    /**
+     * 提交转码，回调在转码线程中执行，转码失败时同样以 null 调用。
+     *
+     * @param originalHash 原图的 SHA-256
+     * @param image        原图内容
+     * @param result       转码结果，无法解码或结果超过缓存上限时为 null
+     * @return 转码已提交；未开启或队列已满时返回 false
+     */
+    boolean submit(byte[] originalHash, byte[] image, Consumer<Variants> result) {
+        if (executor == null) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                Variants variants = null;
+                try {
+                    variants = transcode(originalHash, image);
+                } finally {
+                    // 上传方在回调中结束上传，任何失败都必须调用
+                    result.accept(variants);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private Variants transcode(byte[] originalHash, byte[] original) {
+        long start = System.nanoTime();
+        try {
+            BufferedImage image = decode(original);
+            if (image == null) {
+                return null;
+            }
+            boolean opaque = isOpaque(image);
+            byte[] full = full(image, original, opaque);
+            byte[] preview = encode(scale(image, thumbnailSize, opaque), opaque);
+            // 图片本身很小时不单独生成缩略图
+            byte[] thumbnail = preview.length < full.length ? preview : full;
+            byte[] fullHash = store(full);
+            byte[] thumbnailHash = thumbnail == full ? fullHash : store(thumbnail);
+            if (fullHash == null || thumbnailHash == null) {
+                return null;
+            }
+            Variants variants = new Variants(thumbnailHash, fullHash);
+            synchronized (transcoded) {
+                transcoded.put(MediaCache.key(originalHash), variants);
+            }
+            Log.debug(() -> "图片转码：" + original.length + " 字节 -> 缩略图 " + thumbnail.length
+                    + " 字节，完整版本 " + full.length + " 字节，耗时 "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            return variants;
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            Log.warn("图片转码失败", e);
+            return null;
+        }
+    }
+
+    /**
+     * 先从图片头读取宽高，像素数未超过上限时才解码。
+     *
+     * @return 解码的图片，格式不支持或尺寸超限时返回 null
+     */
+    private BufferedImage decode(byte[] original) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(original))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (pixels > maxPixels) {
+                    Log.warn("图片尺寸 " + reader.getWidth(0) + "x" + reader.getHeight(0) + " 超过 "
+                            + maxPixels + " 像素的上限，不转码");
+                    return null;
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 完整版本：超过最大边长时缩小后重新编码，否则只在重新编码能变小时替换原图。
+     */
+    private byte[] full(BufferedImage image, byte[] original, boolean opaque) throws IOException {
+        if (Math.max(image.getWidth(), image.getHeight()) > fullSize) {
+            return encode(scale(image, fullSize, opaque), opaque);
+        }
+        if (opaque) {
+            // 截图等不透明的 PNG 重新编码为 JPEG 通常小得多
+            byte[] jpeg = encode(scale(image, fullSize, true), true);
+            if (jpeg.length < original.length) {
+                return jpeg;
+            }
+        }
+        return original;
+    }
+
+    /**
+     * @return 内容的 SHA-256，超过缓存上限无法写入时返回 null
+     */
+    private byte[] store(byte[] content) {
+        byte[] hash = MediaUpload.sha256().digest(content);
+        mediaCache.put(hash, content);
+        return mediaCache.contains(hash) ? hash : null;
+    }
+
+    private static boolean isOpaque(BufferedImage image) {
+        if (!image.getColorModel().hasAlpha()) {
+            return true;
+        }
+        int width = image.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int argb : row) {
+                if (argb >>> 24 != 0xFF) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 缩小到最大边长以内。每次最多缩小一半，逐步缩小比一次双线性插值的锯齿少。
+     */
+    private static BufferedImage scale(BufferedImage image, int maxSize, boolean opaque) {
+        int type = opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+        double ratio = Math.min(1.0, (double) maxSize / Math.max(image.getWidth(), image.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        BufferedImage current = image;
+        do {
+            int width = Math.max(targetWidth, current.getWidth() / 2);
+            int height = Math.max(targetHeight, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(width, height, type);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, width, height, null);
+            g.dispose();
+            current = next;
+        } while (current.getWidth() != targetWidth || current.getHeight() != targetHeight);
+        return current;
+    }
+
+    private static byte[] encode(BufferedImage image, boolean opaque) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!opaque) {
+            ImageIO.write(image, "png", out);
+            return out.toByteArray();
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 连接的入站解码器：握手完成前按行解码，客户端协商二进制协议后，
+ * 同一缓冲区中剩余的字节立即改用二进制帧解码。
+ */
+final class InboundDecoder {
+
+    private final ClientHandler handler;
+    private final LineDecoder lines = new LineDecoder();
+    private final BinaryFrameDecoder frames = new BinaryFrameDecoder();
+    // 回调只创建一次，每次读取不再分配
+    private final LineDecoder.LineHandler onLine;
+    private final BinaryFrameDecoder.FrameHandler onFrame;
+
+    InboundDecoder(ClientHandler handler) {
+        this.handler = handler;
+        this.onLine = handler::handle;
+        this.onFrame = handler::handle;
+    }
+
+    /**
+     * @param in 处于读模式的缓冲区
+     * @return 客户端请求退出时返回 false
+     * @throws IOException 如果二进制帧格式错误
+     */
+    boolean decode(ByteBuffer in) throws IOException {
+        while (true) {
+            if (handler.isBinary()) {
+                return frames.decode(in, onFrame);
+            }
+            if (lines.decode(in, onLine)) {
+                return true;
+            }
+            if (!handler.isBinary()) {
+                return false;
+            }
+        }
+    }
+}
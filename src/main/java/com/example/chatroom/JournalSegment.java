@@ -0,0 +1,186 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 消息日志的一个段：一个固定容量、内存映射的文件，只追加。
+ *
+ * <p>每条记录的格式为：4 字节记录长度（不含自身）、8 字节偏移量、8 字节时间戳、
+ * 带长度前缀的房间名，以及消息的二进制帧编码。长度字段最后写入，
+ * 进程崩溃后长度为 0 的位置即为段的末尾。</p>
+ *
+ * <p>段内维护稀疏的偏移量索引，每隔 {@link #INDEX_INTERVAL} 字节记录一次偏移量与文件位置，
+ * 按偏移量读取时先二分查找索引，再从该位置顺序扫描。
+ * 只有日志写线程追加记录，读取者只访问已提交的位置之前的内容。</p>
+ */
+final class JournalSegment {
+
+    static final String SUFFIX = ".log";
+    // 记录头：长度、偏移量与时间戳
+    static final int RECORD_HEADER_SIZE = 4 + 8 + 8;
+    private static final int INDEX_INTERVAL = 4096;
+
+    private final Path file;
+    private final long baseOffset;
+    private final MappedByteBuffer buffer;
+    private volatile int committed;
+    private volatile long lastOffset;
+    private volatile long lastAppendMillis;
+    private long[] indexOffsets = new long[16];
+    private int[] indexPositions = new int[16];
+    private int indexSize;
+    private int lastIndexedPosition = -INDEX_INTERVAL;
+
+    private JournalSegment(Path file, long baseOffset, MappedByteBuffer buffer, long lastAppendMillis) {
+        this.file = file;
+        this.baseOffset = baseOffset;
+        this.buffer = buffer;
+        this.lastOffset = baseOffset - 1;
+        this.lastAppendMillis = lastAppendMillis;
+    }
+
+    /**
+     * 创建新段，文件名为起始偏移量。
+     */
+    static JournalSegment create(Path dir, long baseOffset, int capacity) throws IOException {
+        Path file = dir.resolve(String.format("%020d", baseOffset) + SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new JournalSegment(file, baseOffset, buffer, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * 打开已有的段，顺序扫描以恢复提交位置与索引。
+     */
+    static JournalSegment open(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            JournalSegment segment = new JournalSegment(file, baseOffset, buffer,
+                    Files.getLastModifiedTime(file).toMillis());
+            segment.recover();
+            return segment;
+        }
+    }
+
+    private void recover() {
+        int position = 0;
+        long expected = baseOffset;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= RECORD_HEADER_SIZE - 4 || position + 4 + length > buffer.capacity()) {
+                break;
+            }
+            long offset = buffer.getLong(position + 4);
+            if (offset < expected) {
+                break;
+            }
+            index(offset, position);
+            lastOffset = offset;
+            expected = offset + 1;
+            position += 4 + length;
+        }
+        committed = position;
+    }
+
+    /**
+     * 追加一条记录，只由日志写线程调用。
+     *
+     * @param room  房间名的 UTF-8 编码
+     * @param frame 消息的二进制帧编码
+     * @return 段内剩余空间不足时返回 false
+     */
+    boolean append(long offset, long timestamp, byte[] room, ByteBuffer frame) {
+        int position = committed;
+        int length = RECORD_HEADER_SIZE - 4 + 2 + room.length + frame.remaining();
+        if (position + 4 + length > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer record = buffer.duplicate().position(position + 4);
+        record.putLong(offset).putLong(timestamp);
+        BinaryProtocol.putShortString(record, room).put(frame);
+        // 内容写完后再写入长度，读取者与崩溃恢复都不会看到不完整的记录
+        buffer.putInt(position, length);
+        index(offset, position);
+        lastOffset = offset;
+        lastAppendMillis = timestamp;
+        committed = position + 4 + length;
+        return true;
+    }
+
+    private synchronized void index(long offset, int position) {
+        if (position - lastIndexedPosition < INDEX_INTERVAL) {
+            return;
+        }
+        if (indexSize == indexOffsets.length) {
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexOffsets[indexSize] = offset;
+        indexPositions[indexSize] = position;
+        indexSize++;
+        lastIndexedPosition = position;
+    }
+
+    /**
+     * @return 不晚于 offset 的最近一个索引点的文件位置
+     */
+    synchronized int floorPosition(long offset) {
+        int index = Arrays.binarySearch(indexOffsets, 0, indexSize, offset);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index < 0 ? 0 : indexPositions[index];
+    }
+
+    /**
+     * @return 已提交内容的只读视图，记录可以在该范围内安全读取
+     */
+    ByteBuffer committedView() {
+        return buffer.asReadOnlyBuffer().limit(committed);
+    }
+
+    /**
+     * 将已写入的内容刷到磁盘。
+     */
+    void force() {
+        buffer.force(0, committed);
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * @return 段内最后一条记录的偏移量，空段为起始偏移量减一
+     */
+    long lastOffset() {
+        return lastOffset;
+    }
+
+    long lastAppendMillis() {
+        return lastAppendMillis;
+    }
+
+    int size() {
+        return committed;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.chatroom;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的对数分桶直方图，记录非负整数值（纳秒延迟、队列长度等）。
+ *
+ * <p>每个 2 的幂区间再等分为 {@link #SUB_BUCKETS} 个桶，相对误差不超过 1/{@value #SUB_BUCKETS}。
+ * 记录只是一次数组元素的原子自增，可以在热路径上调用。
+ * 百分位数按两次快照之间的差值计算，反映的是最近一个统计周期而不是启动以来的分布。</p>
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private long[] previous = new long[BUCKETS];
+
+    void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+    /**
+     * 统计自上次调用以来记录的值，由统计线程定期调用。
+     *
+     * @param percentiles 要计算的百分位数，取值 0 到 100
+     * @return 各百分位数对应的值（所在桶的上界），期间没有记录时都为 0
+     */
+    synchronized long[] interval(double... percentiles) {
+        long[] current = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            current[i] = counts.get(i);
+            total += current[i] - previous[i];
+        }
+        long[] values = new long[percentiles.length];
+        if (total > 0) {
+            for (int p = 0; p < percentiles.length; p++) {
+                long rank = (long) Math.ceil(total * percentiles[p] / 100);
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += current[i] - previous[i];
+                    if (seen >= Math.max(1, rank)) {
+                        values[p] = upperBound(i);
+                        break;
+                    }
+                }
+            }
+        }
+        previous = current;
+        return values;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> magnitude) & (SUB_BUCKETS - 1);
+        return (magnitude + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << magnitude) - 1;
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 按行拆分字节流的解码器，两种连接引擎共用。
+ * 只有出现半行数据时才为连接分配缓冲区，空闲连接不占用额外内存。
+ * 一行超过 {@link #MAX_LINE_BYTES} 字节（-Dchat.limits.maxLineBytes）时在缓冲之前拒绝，
+ * 不会为没有换行符的数据无限扩大缓冲区。
+ */
+final class LineDecoder {
+
+    static final int MAX_LINE_BYTES = Integer.getInteger("chat.limits.maxLineBytes", 256 * 1024);
+
+    /**
+     * 行回调，返回 false 表示停止继续解码（例如客户端发送了 exit）。
+     */
+    interface LineHandler {
+        boolean onLine(String line);
+    }
+
+    private byte[] pending;
+    private int pendingLength;
+
+    /**
+     * 从缓冲区中解码出所有完整的行，剩余的半行保存到下次调用。
+     *
+     * @param in      处于读模式的缓冲区，调用后会被完全消费
+     * @param handler 行回调
+     * @return 回调要求停止时返回 false
+     * @throws IOException 如果一行超过长度上限
+     */
+    boolean decode(ByteBuffer in, LineHandler handler) throws IOException {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int newline = -1;
+            for (int i = start; i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            int length = pendingLength + (newline < 0 ? in.remaining() : newline - start);
+            if (length > MAX_LINE_BYTES) {
+                throw new IOException("行长度超出限制：" + length);
+            }
+            if (newline < 0) {
+                append(in, in.remaining());
+                return true;
+            }
+            String line;
+            if (pendingLength == 0) {
+                line = toLine(in, start, newline - start);
+            } else {
+                append(in, newline - start);
+                line = toLine(pending, pendingLength);
+                pendingLength = 0;
+                pending = null;
+            }
+            in.position(newline + 1);
+            if (!handler.onLine(line)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void append(ByteBuffer in, int length) {
+        if (pending == null) {
+            pending = new byte[Math.max(256, length)];
+        } else if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+        }
+        in.get(pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    private static String toLine(ByteBuffer in, int start, int length) {
+        if (length > 0 && in.get(start + length - 1) == '\r') {
+            length--;
+        }
+        if (in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        in.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String toLine(byte[] bytes, int length) {
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
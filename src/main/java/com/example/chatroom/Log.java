@@ -0,0 +1,135 @@
+package com.example.chatroom;
+
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 服务器的异步日志。调用线程只把日志放入有界队列，由单独的线程格式化并写到控制台，
+ * 广播与 I/O 线程不再因 {@code System.out} 的锁互相等待；队列满时丢弃并计数。
+ *
+ * <p>级别由 -Dchat.log.level 指定（DEBUG、INFO、WARN、ERROR，默认 INFO）。
+ * 消息内容只在 DEBUG 级别输出，低于当前级别的日志不会生成字符串。</p>
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final Level LEVEL = Level.valueOf(
+            System.getProperty("chat.log.level", "INFO").toUpperCase(Locale.ROOT));
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.log.queueSize", 8192);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // 退出前写出队列中剩余的日志
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-drain"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    /**
+     * @param message 只在 DEBUG 级别开启时调用
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message.get(), null);
+        }
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void warn(String message, Throwable error) {
+        log(Level.WARN, message, error);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    /**
+     * @return 因队列已满而丢弃的日志数
+     */
+    public static long droppedEntries() {
+        return dropped.sum();
+    }
+
+    private static void log(Level level, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Entry entry = new Entry(level, LocalDateTime.now(), Thread.currentThread().getName(), message, error);
+        if (!queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            try {
+                write(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void drain() {
+        try {
+            Entry entry;
+            while ((entry = queue.poll(10, TimeUnit.MILLISECONDS)) != null) {
+                write(entry);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write(Entry entry) {
+        PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+        out.println(TIME.format(entry.time) + " " + entry.level + " [" + entry.thread + "] " + entry.message);
+        if (entry.error != null) {
+            entry.error.printStackTrace(out);
+        }
+    }
+
+    private static final class Entry {
+        final Level level;
+        final LocalDateTime time;
+        final String thread;
+        final String message;
+        final Throwable error;
+
+        Entry(Level level, LocalDateTime time, String thread, String message, Throwable error) {
+            this.level = level;
+            this.time = time;
+            this.thread = thread;
+            this.message = message;
+            this.error = error;
+        }
+    }
+}
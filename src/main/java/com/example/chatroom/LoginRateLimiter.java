@@ -0,0 +1,77 @@
+package com.example.chatroom;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 登录限流：按客户端地址限制尝试次数，按用户名限制失败次数，均使用固定时间窗口计数。
+ */
+final class LoginRateLimiter {
+
+    // 记录数超过该值时清理已过期的窗口
+    private static final int CLEANUP_THRESHOLD = 10_000;
+
+    private final int maxAttemptsPerHost;
+    private final int maxFailuresPerUser;
+    private final long windowMillis;
+    private final ConcurrentHashMap<String, Window> hosts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Window> users = new ConcurrentHashMap<>();
+
+    LoginRateLimiter(int maxAttemptsPerHost, int maxFailuresPerUser, long windowMillis) {
+        this.maxAttemptsPerHost = maxAttemptsPerHost;
+        this.maxFailuresPerUser = maxFailuresPerUser;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * 登记一次登录尝试。
+     *
+     * @return 地址或用户名超出限制时返回 false
+     */
+    boolean tryAcquire(String host, String username) {
+        long now = System.currentTimeMillis();
+        cleanup(now);
+        if (hosts.computeIfAbsent(host, k -> new Window()).increment(now, windowMillis) > maxAttemptsPerHost) {
+            return false;
+        }
+        Window failures = users.get(username);
+        return failures == null || failures.count(now, windowMillis) < maxFailuresPerUser;
+    }
+
+    void recordFailure(String username) {
+        users.computeIfAbsent(username, k -> new Window()).increment(System.currentTimeMillis(), windowMillis);
+    }
+
+    void recordSuccess(String username) {
+        users.remove(username);
+    }
+
+    private void cleanup(long now) {
+        if (hosts.size() > CLEANUP_THRESHOLD) {
+            hosts.values().removeIf(window -> window.expired(now, windowMillis));
+        }
+        if (users.size() > CLEANUP_THRESHOLD) {
+            users.values().removeIf(window -> window.expired(now, windowMillis));
+        }
+    }
+
+    private static final class Window {
+        private long start;
+        private int count;
+
+        synchronized int increment(long now, long windowMillis) {
+            if (now - start >= windowMillis) {
+                start = now;
+                count = 0;
+            }
+            return ++count;
+        }
+
+        synchronized int count(long now, long windowMillis) {
+            return now - start >= windowMillis ? 0 : count;
+        }
+
+        synchronized boolean expired(long now, long windowMillis) {
+            return now - start >= windowMillis;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.chatroom;
+
+/**
+ * 服务器返回的登录结果，二进制协议中以一个字节编码。
+ * 用户不存在与密码错误返回同一个结果，客户端无法据此判断用户名是否已注册。
+ */
+public enum LoginStatus {
+    OK(0, "登录成功"),
+    BAD_CREDENTIALS(2, "用户名或密码错误"),
+    RATE_LIMITED(3, "尝试次数过多，请稍后再试"),
+    BUSY(4, "服务器繁忙，请稍后再试"),
+    ERROR(5, "服务器内部错误"),
+    GUESTS_DISABLED(6, "服务器不允许免密码登录"),
+    SESSION_EXPIRED(7, "会话已过期，请重新登录"),
+    SHUTTING_DOWN(8, "服务器正在重启，请稍后重新连接"),
+    NAME_IN_USE(9, "该用户名已在线");
+
+    private final int code;
+    private final String message;
+
+    LoginStatus(int code, String message) {
+        this.code = code;
+        this.message = message;
+    }
+
+    public byte code() {
+        return (byte) code;
+    }
+
+    public String message() {
+        return message;
+    }
+
+    /**
+     * @return 对应的登录结果，未知编码按 ERROR 处理
+     */
+    public static LoginStatus fromCode(byte code) {
+        for (LoginStatus status : values()) {
+            if (status.code == code) {
+                return status;
+            }
+        }
+        return ERROR;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.chatroom;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 进程内的节点间链路，用于在同一个 JVM 中运行多个节点进行测试。
+ * 连接到同一个 {@link Hub} 的节点两两相连，批次在接收节点的单独线程中按顺序交付。
+ */
+public class LoopbackClusterTransport implements ClusterTransport {
+
+    /**
+     * 一组相连的进程内节点。
+     */
+    public static final class Hub {
+        private final ConcurrentHashMap<String, LoopbackClusterTransport> nodes = new ConcurrentHashMap<>();
+    }
+
+    private final Hub hub;
+    private final String nodeId;
+    private final ExecutorService inbound;
+    private volatile Listener listener;
+
+    public LoopbackClusterTransport(Hub hub, String nodeId) {
+        this.hub = hub;
+        this.nodeId = nodeId;
+        this.inbound = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-loopback-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        synchronized (hub) {
+            for (LoopbackClusterTransport other : hub.nodes.values()) {
+                other.inbound.execute(() -> other.listener.peerUp(nodeId));
+                inbound.execute(() -> listener.peerUp(other.nodeId));
+            }
+            hub.nodes.put(nodeId, this);
+        }
+    }
+
+    @Override
+    public void send(String peer, ByteBuffer batch) {
+        LoopbackClusterTransport target = hub.nodes.get(peer);
+        if (target != null) {
+            target.inbound.execute(() -> target.listener.received(nodeId, batch));
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (hub) {
+            if (hub.nodes.remove(nodeId, this)) {
+                for (LoopbackClusterTransport other : hub.nodes.values()) {
+                    other.inbound.execute(() -> other.listener.peerDown(nodeId));
+                }
+            }
+        }
+        inbound.shutdown();
+    }
+}
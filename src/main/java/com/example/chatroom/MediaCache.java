@@ -0,0 +1,177 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按内容寻址的媒体缓存，键为内容的 SHA-256。
+ *
+ * <p>分两级：堆内一级按 LRU 淘汰，总字节数不超过上限；配置了磁盘目录时，
+ * 从堆中淘汰的条目写入磁盘并以内存映射方式读取，磁盘一级同样按 LRU 和字节上限淘汰。</p>
+ */
+public class MediaCache {
+
+    public static final int HASH_SIZE = 32;
+
+    private static final long DEFAULT_MAX_HEAP_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_MAX_DISK_BYTES = 1024L * 1024 * 1024;
+    private static final long DEFAULT_MAX_ENTRY_BYTES = 16L * 1024 * 1024;
+
+    private final long maxHeapBytes;
+    private final long maxEntryBytes;
+    private final Path diskDir;
+    private final long maxDiskBytes;
+
+    private final LinkedHashMap<String, byte[]> heap = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, MappedByteBuffer> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long heapBytes;
+    private long diskBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxHeapBytes  堆内缓存的字节上限
+     * @param maxEntryBytes 单个条目的字节上限，超过的内容不缓存
+     * @param diskDir       磁盘缓存目录，为 null 时不启用磁盘一级
+     * @param maxDiskBytes  磁盘缓存的字节上限
+     */
+    public MediaCache(long maxHeapBytes, long maxEntryBytes, Path diskDir, long maxDiskBytes) throws IOException {
+        this.maxHeapBytes = maxHeapBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.diskDir = diskDir;
+        this.maxDiskBytes = maxDiskBytes;
+        if (diskDir != null) {
+            Files.createDirectories(diskDir);
+        }
+    }
+
+    /**
+     * 按系统属性 chat.media.maxHeapBytes、chat.media.maxEntryBytes、chat.media.diskDir
+     * 与 chat.media.maxDiskBytes 创建缓存。
+     */
+    public static MediaCache fromSystemProperties() throws IOException {
+        String dir = System.getProperty("chat.media.diskDir");
+        return new MediaCache(
+                Long.getLong("chat.media.maxHeapBytes", DEFAULT_MAX_HEAP_BYTES),
+                Long.getLong("chat.media.maxEntryBytes", DEFAULT_MAX_ENTRY_BYTES),
+                dir != null ? Paths.get(dir) : null,
+                Long.getLong("chat.media.maxDiskBytes", DEFAULT_MAX_DISK_BYTES));
+    }
+
+    /**
+     * @return 单个条目的字节上限
+     */
+    public long maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * 查找内容。
+     *
+     * @param hash 内容的 SHA-256
+     * @return 只读缓冲区，未命中时返回 null
+     */
+    public synchronized ByteBuffer get(byte[] hash) {
+        String key = key(hash);
+        byte[] content = heap.get(key);
+        if (content != null) {
+            hits.increment();
+            return ByteBuffer.wrap(content).asReadOnlyBuffer();
+        }
+        MappedByteBuffer mapped = disk.get(key);
+        if (mapped != null) {
+            hits.increment();
+            return mapped.asReadOnlyBuffer();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @return 缓存中是否有该内容，不计入命中率
+     */
+    public synchronized boolean contains(byte[] hash) {
+        String key = key(hash);
+        return heap.containsKey(key) || disk.containsKey(key);
+    }
+
+    /**
+     * 放入内容，调用方需保证 hash 与内容匹配且之后不再修改 content。
+     */
+    public synchronized void put(byte[] hash, byte[] content) {
+        if (content.length > maxEntryBytes || content.length > maxHeapBytes) {
+            return;
+        }
+        String key = key(hash);
+        if (heap.containsKey(key) || disk.containsKey(key)) {
+            return;
+        }
+        heap.put(key, content);
+        heapBytes += content.length;
+
+        Iterator<Map.Entry<String, byte[]>> it = heap.entrySet().iterator();
+        while (heapBytes > maxHeapBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            it.remove();
+            heapBytes -= eldest.getValue().length;
+            spill(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * 计算内容的 SHA-256 所用的十六进制键。
+     */
+    static String key(byte[] hash) {
+        return HexFormat.of().formatHex(hash);
+    }
+
+    private void spill(String key, byte[] content) {
+        if (diskDir == null || content.length > maxDiskBytes) {
+            return;
+        }
+        Path file = diskDir.resolve(key);
+        try {
+            Files.write(file, content);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                disk.put(key, channel.map(FileChannel.MapMode.READ_ONLY, 0, content.length));
+            }
+            diskBytes += content.length;
+        } catch (IOException e) {
+            Log.error("无法写入媒体缓存文件", e);
+            return;
+        }
+
+        Iterator<Map.Entry<String, MappedByteBuffer>> it = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && it.hasNext()) {
+            Map.Entry<String, MappedByteBuffer> eldest = it.next();
+            it.remove();
+            diskBytes -= eldest.getValue().capacity();
+            try {
+                // 已映射的区域在被回收前仍然有效，删除文件不影响正在发送的数据
+                Files.deleteIfExists(diskDir.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                Log.error("无法删除媒体缓存文件", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.chatroom;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 正在上传、需要写入媒体缓存的图片。边接收边计算摘要，结束时校验内容与声明的哈希一致。
+ */
+final class MediaUpload {
+
+    // 预分配的上限，更大的图片随数据块到达再扩容，声明的大小不能直接决定分配多少内存
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final byte[] hash;
+    private final long maxBytes;
+    private final MessageDigest digest;
+    private ByteArrayOutputStream content;
+
+    MediaUpload(byte[] hash, int size, long maxBytes) {
+        this.hash = hash;
+        this.maxBytes = maxBytes;
+        this.digest = sha256();
+        this.content = new ByteArrayOutputStream(Math.min(size, INITIAL_CAPACITY));
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    byte[] hash() {
+        return hash;
+    }
+
+    void append(byte[] data) {
+        if (content == null) {
+            return;
+        }
+        if (content.size() + data.length > maxBytes) {
+            // 超过单个条目上限，放弃缓存但不影响转发
+            content = null;
+            return;
+        }
+        digest.update(data);
+        content.write(data, 0, data.length);
+    }
+
+    /**
+     * 结束上传，内容完整且哈希一致时写入缓存。
+     */
+    void complete(MediaCache cache) {
+        byte[] verified = finish();
+        if (verified != null) {
+            cache.put(hash, verified);
+        }
+    }
+
+    /**
+     * 结束上传。
+     *
+     * @return 完整且与声明的哈希一致的内容，否则返回 null
+     */
+    byte[] finish() {
+        byte[] verified = content != null && MessageDigest.isEqual(hash, digest.digest()) ? content.toByteArray() : null;
+        content = null;
+        return verified;
+    }
+
+    static byte[] readHash(ByteBuffer payload) {
+        byte[] hash = new byte[MediaCache.HASH_SIZE];
+        payload.get(hash);
+        return hash;
+    }
+}
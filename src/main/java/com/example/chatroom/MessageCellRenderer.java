@@ -0,0 +1,202 @@
+package com.example.chatroom;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Insets;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import javax.imageio.ImageIO;
+import javax.swing.BorderFactory;
+import javax.swing.Icon;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JTextArea;
+import javax.swing.ListCellRenderer;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+
+/**
+ * 聊天记录的单元格渲染器。{@link JList} 只为可见的行调用渲染器绘制，所有行共用同一组组件。
+ *
+ * <p>行高按列表宽度缓存在 {@link ChatRow} 中，列表重新布局时不必为每一行重新排版文字；
+ * 图片行的高度取自缩略图尺寸，缩略图在第一次绘制时提交到后台线程解码，解码完成前绘制占位框，
+ * 只缓存最近绘制的少量缩略图。</p>
+ */
+final class MessageCellRenderer implements ListCellRenderer<ChatRow> {
+
+    private static final Color MY_MESSAGE_COLOR = new Color(225, 255, 225);
+    private static final Color OTHER_MESSAGE_COLOR = new Color(255, 255, 255);
+    private static final int MAX_THUMBNAILS = 64;
+
+    private final Cell cell = new Cell();
+    private final JLabel header = new JLabel();
+    private final JTextArea body = new JTextArea();
+    private final JLabel picture = new JLabel();
+    private final Thumbnail thumbnail = new Thumbnail();
+    private final JList<ChatRow> list;
+    private final Executor decoder;
+    // 正在后台解码的行
+    private final Set<ChatRow> loading = new HashSet<>();
+    // 最近绘制的缩略图，按访问顺序淘汰
+    private final Map<ChatRow, Image> thumbnails = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ChatRow, Image> eldest) {
+            return size() > MAX_THUMBNAILS;
+        }
+    };
+
+    /**
+     * @param list    使用该渲染器的列表，缩略图解码完成后重绘
+     * @param decoder 解码缩略图的后台线程池
+     */
+    MessageCellRenderer(JList<ChatRow> list, Executor decoder) {
+        this.list = list;
+        this.decoder = decoder;
+        body.setLineWrap(true);
+        body.setWrapStyleWord(true);
+        body.setOpaque(false);
+        body.setFont(body.getFont().deriveFont(Font.PLAIN, 14f));
+        header.setForeground(Color.DARK_GRAY);
+        picture.setIcon(thumbnail);
+        cell.setLayout(new BorderLayout(0, 2));
+        cell.setBorder(BorderFactory.createEmptyBorder(4, 8, 8, 8));
+        cell.add(header, BorderLayout.NORTH);
+        cell.add(body, BorderLayout.CENTER);
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends ChatRow> list, ChatRow row, int index,
+                                                  boolean isSelected, boolean cellHasFocus) {
+        cell.row = row;
+        cell.width = list.getWidth();
+        cell.setBackground(row.mine ? MY_MESSAGE_COLOR : OTHER_MESSAGE_COLOR);
+        header.setText(row.header);
+        header.setHorizontalAlignment(row.mine ? SwingConstants.RIGHT : SwingConstants.LEFT);
+        if (row.isImage()) {
+            thumbnail.row = row;
+            picture.setHorizontalAlignment(row.mine ? SwingConstants.RIGHT : SwingConstants.LEFT);
+            show(picture);
+        } else {
+            body.setText(row.text);
+            show(body);
+        }
+        return cell;
+    }
+
+    private void show(Component content) {
+        if (content.getParent() != cell) {
+            cell.remove(content == body ? picture : body);
+            cell.add(content, BorderLayout.CENTER);
+        }
+    }
+
+    /**
+     * @return 缩略图，尚未解码完成或无法解码时返回 null
+     */
+    private Image thumbnail(ChatRow row) {
+        Image image = thumbnails.get(row);
+        if (image == null && !thumbnails.containsKey(row) && loading.add(row)) {
+            decoder.execute(() -> {
+                Image decoded = decode(row);
+                SwingUtilities.invokeLater(() -> {
+                    loading.remove(row);
+                    thumbnails.put(row, decoded);
+                    list.repaint();
+                });
+            });
+        }
+        return image;
+    }
+
+    private static Image decode(ChatRow row) {
+        try {
+            BufferedImage original = ImageIO.read(new ByteArrayInputStream(row.image));
+            if (original == null) {
+                return null;
+            }
+            BufferedImage scaled = new BufferedImage(row.thumbnailWidth, row.thumbnailHeight,
+                    BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = scaled.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(original, 0, 0, row.thumbnailWidth, row.thumbnailHeight, null);
+            g.dispose();
+            return scaled;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 渲染用的面板，优先使用行中缓存的高度。
+     */
+    private final class Cell extends JPanel {
+
+        ChatRow row;
+        int width;
+
+        @Override
+        public Dimension getPreferredSize() {
+            if (row.cachedWidth != width) {
+                Insets insets = getInsets();
+                int contentHeight;
+                if (row.isImage()) {
+                    contentHeight = row.thumbnailHeight;
+                } else {
+                    body.setSize(Math.max(1, width - insets.left - insets.right), Short.MAX_VALUE);
+                    contentHeight = body.getPreferredSize().height;
+                }
+                row.cachedWidth = width;
+                row.cachedHeight = insets.top + header.getPreferredSize().height + 2 + contentHeight + insets.bottom;
+            }
+            return new Dimension(width, row.cachedHeight);
+        }
+
+        // 渲染器组件由 CellRendererPane 直接绘制，不需要重绘通知
+        @Override
+        public void repaint() {
+        }
+    }
+
+    /**
+     * 尺寸固定、绘制时才解码的缩略图。
+     */
+    private final class Thumbnail implements Icon {
+
+        ChatRow row;
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            Image image = thumbnail(row);
+            if (image != null) {
+                g.drawImage(image, x, y, null);
+            } else {
+                g.setColor(Color.LIGHT_GRAY);
+                g.drawRect(x, y, row.thumbnailWidth - 1, row.thumbnailHeight - 1);
+            }
+        }
+
+        @Override
+        public int getIconWidth() {
+            return row.thumbnailWidth;
+        }
+
+        @Override
+        public int getIconHeight() {
+            return row.thumbnailHeight;
+        }
+    }
+}
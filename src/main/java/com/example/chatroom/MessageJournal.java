@@ -0,0 +1,521 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+
+/**
+ * 只追加的消息日志，保存各房间的聊天消息，供重新连接或晚加入的客户端按偏移量回放历史。
+ *
+ * <ul>
+ *   <li>日志由多个内存映射的段文件组成，当前段写满后滚动到新段；</li>
+ *   <li>广播线程只分配偏移量并将消息放入队列，由单独的写线程写入映射内存，
+ *       写线程按固定间隔批量刷盘，追加不会增加广播的延迟；</li>
+ *   <li>超过总大小上限或保留时间的旧段整段删除；</li>
+ *   <li>段内保存的是消息的二进制帧编码，向二进制客户端回放时直接发送映射内存的只读视图。</li>
+ * </ul>
+ *
+ * <p>回放在单独的读线程中执行，读取映射内存时的缺页不会阻塞 I/O 线程。
+ * 禁用时只分配偏移量，不保存任何消息。</p>
+ *
+ * <p>开启搜索时，追加的聊天消息同时提交给 {@link SearchIndex}，索引段保存在日志目录下的 index 目录中。
+ * 搜索同样在读线程中执行，按索引返回的偏移量从日志中读出消息。</p>
+ */
+public class MessageJournal implements AutoCloseable {
+
+    private static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    private static final long DEFAULT_RETENTION_HOURS = 7 * 24;
+    private static final long DEFAULT_FLUSH_MILLIS = 1000;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    // 单次回放的上限，客户端需要更多时以返回的偏移量继续请求
+    private static final int REPLAY_MAX_MESSAGES = 200;
+    private static final int REPLAY_MAX_BYTES = 1024 * 1024;
+    private static final long DEFAULT_SEARCH_MEMORY_BYTES = 64L * 1024 * 1024;
+    // 单次搜索返回的结果数上限
+    private static final int SEARCH_MAX_HITS = 50;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long retentionMillis;
+    private final long flushMillis;
+    private final ConcurrentSkipListMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private final SearchIndex index;
+    private final ExecutorService reader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "journal-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = true;
+    private long nextOffset;
+
+    /**
+     * @param dir             段文件目录，为 null 时不保存消息
+     * @param segmentBytes    单个段文件的容量
+     * @param maxBytes        所有段的总大小上限
+     * @param retentionMillis 段的保留时间，按段内最后一条消息计算
+     * @param flushMillis     批量刷盘的间隔
+     */
+    public MessageJournal(Path dir, int segmentBytes, long maxBytes, long retentionMillis, long flushMillis)
+            throws IOException {
+        this(dir, segmentBytes, maxBytes, retentionMillis, flushMillis, 0);
+    }
+
+    /**
+     * @param searchMemoryBytes 搜索索引在内存中的字节预算，为 0 时不建立索引
+     */
+    public MessageJournal(Path dir, int segmentBytes, long maxBytes, long retentionMillis, long flushMillis,
+                          long searchMemoryBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.retentionMillis = retentionMillis;
+        this.flushMillis = flushMillis;
+        if (dir == null) {
+            this.writer = null;
+            this.index = null;
+            return;
+        }
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(f -> f.getFileName().toString().endsWith(JournalSegment.SUFFIX)).toList()) {
+                JournalSegment segment = JournalSegment.open(file);
+                segments.put(segment.baseOffset(), segment);
+            }
+        }
+        if (!segments.isEmpty()) {
+            nextOffset = segments.lastEntry().getValue().lastOffset() + 1;
+        }
+        this.index = searchMemoryBytes > 0 ? new SearchIndex(dir.resolve("index"), searchMemoryBytes) : null;
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        if (index != null) {
+            index.start(this::reindex);
+        }
+    }
+
+    /**
+     * 按系统属性 chat.journal.dir、chat.journal.segmentBytes、chat.journal.maxBytes、
+     * chat.journal.retentionHours 与 chat.journal.flushMillis 创建，chat.journal.dir 默认为 journal，
+     * 设置 chat.journal.enabled=false 时不保存消息。搜索索引的内存预算为 chat.search.memoryBytes，
+     * 设置 chat.search.enabled=false 时不建立索引。
+     */
+    public static MessageJournal fromSystemProperties() throws IOException {
+        boolean enabled = Boolean.parseBoolean(System.getProperty("chat.journal.enabled", "true"));
+        boolean search = Boolean.parseBoolean(System.getProperty("chat.search.enabled", "true"));
+        return new MessageJournal(
+                enabled ? Paths.get(System.getProperty("chat.journal.dir", "journal")) : null,
+                Integer.getInteger("chat.journal.segmentBytes", DEFAULT_SEGMENT_BYTES),
+                Long.getLong("chat.journal.maxBytes", DEFAULT_MAX_BYTES),
+                TimeUnit.HOURS.toMillis(Long.getLong("chat.journal.retentionHours", DEFAULT_RETENTION_HOURS)),
+                Long.getLong("chat.journal.flushMillis", DEFAULT_FLUSH_MILLIS),
+                search ? Long.getLong("chat.search.memoryBytes", DEFAULT_SEARCH_MEMORY_BYTES) : 0);
+    }
+
+    /**
+     * 为一条消息分配偏移量并放入写队列，不等待写入完成。
+     * 锁内只分配偏移量并把占位记录放入队列，队列中的记录按偏移量有序；
+     * 消息帧在锁外创建后填入记录，写线程按队列顺序等待各记录的消息帧，复制正文不会阻塞其他房间的广播。
+     *
+     * @param room    消息所属房间
+     * @param factory 根据偏移量创建消息帧
+     * @return 创建的消息帧
+     */
+    public Frame append(String room, LongFunction<Frame> factory) {
+        long offset;
+        Entry entry = null;
+        synchronized (this) {
+            offset = nextOffset++;
+            if (writer != null) {
+                entry = new Entry(room, System.currentTimeMillis());
+                if (!queue.offer(entry)) {
+                    // 写线程跟不上时丢弃，不阻塞广播
+                    dropped.increment();
+                    entry = null;
+                }
+            }
+        }
+        Frame frame = null;
+        try {
+            frame = factory.apply(offset);
+        } finally {
+            if (entry != null) {
+                entry.complete(frame);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * 在读线程中异步回放某个房间偏移量大于 sinceOffset 的消息，单次回放的消息数与字节数有上限。
+     *
+     * @param sinceOffset 客户端已收到的最后一条消息的偏移量，为负数时回放最近的消息
+     * @param sink        接收每条消息的二进制帧编码，缓冲区为映射内存的只读视图
+     * @param onComplete  回放结束后调用，参数为继续请求时使用的偏移量，没有更多消息时为 -1
+     */
+    public void replay(String room, long sinceOffset, Consumer<ByteBuffer> sink, LongConsumer onComplete) {
+        reader.execute(() -> onComplete.accept(
+                replay(room, sinceOffset, REPLAY_MAX_MESSAGES, REPLAY_MAX_BYTES, sink)));
+    }
+
+    /**
+     * @param maxMessages 最多回放的消息数
+     * @param maxBytes    最多回放的字节数
+     * @return 已扫描到的最后一个偏移量；没有更多消息时返回 -1
+     */
+    long replay(String room, long sinceOffset, int maxMessages, int maxBytes, Consumer<ByteBuffer> sink) {
+        ByteBuffer roomKey = ByteBuffer.wrap(room.getBytes(StandardCharsets.UTF_8));
+        long from = sinceOffset < 0 ? recentStart(roomKey, maxMessages, maxBytes) : sinceOffset + 1;
+        if (from < 0) {
+            return -1;
+        }
+        int messages = 0;
+        int bytes = 0;
+        long last = -1;
+        Map.Entry<Long, JournalSegment> floor = segments.floorEntry(from);
+        Long start = floor != null ? floor.getKey() : segments.ceilingKey(from);
+        if (start == null) {
+            return -1;
+        }
+        for (JournalSegment segment : segments.tailMap(start, true).values()) {
+            ByteBuffer view = segment.committedView();
+            int position = segment.floorPosition(from);
+            while (position < view.limit()) {
+                int length = view.getInt(position);
+                long offset = view.getLong(position + 4);
+                int next = position + 4 + length;
+                if (offset >= from) {
+                    if (messages == maxMessages || bytes >= maxBytes) {
+                        return last;
+                    }
+                    if (inRoom(view, position, roomKey)) {
+                        ByteBuffer frame = frameView(view, position);
+                        sink.accept(frame);
+                        messages++;
+                        bytes += frame.remaining();
+                    }
+                    last = offset;
+                }
+                position = next;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 找出某个房间最近的消息中最早一条的偏移量，作为不带偏移量的回放的起点，
+     * 冷清的房间即使最近的消息已被其他房间的大量消息隔开也能回放到。
+     * 记录只能顺序解析，因此从最新的段开始倒序逐段扫描，较早的段只在已找到的消息不足时才会扫描。
+     *
+     * @return 起始偏移量，房间没有消息时返回 -1
+     */
+    private long recentStart(ByteBuffer roomKey, int maxMessages, int maxBytes) {
+        long start = -1;
+        int messages = 0;
+        int bytes = 0;
+        for (JournalSegment segment : segments.descendingMap().values()) {
+            // 段内该房间最后 maxMessages 条消息的偏移量与帧长度
+            ArrayDeque<long[]> matches = new ArrayDeque<>();
+            ByteBuffer view = segment.committedView();
+            int position = 0;
+            while (position < view.limit()) {
+                if (inRoom(view, position, roomKey)) {
+                    if (matches.size() == maxMessages) {
+                        matches.removeFirst();
+                    }
+                    matches.addLast(new long[] {view.getLong(position + 4), frameView(view, position).remaining()});
+                }
+                position += 4 + view.getInt(position);
+            }
+            while (!matches.isEmpty()) {
+                if (messages == maxMessages || bytes >= maxBytes) {
+                    return start;
+                }
+                long[] match = matches.removeLast();
+                start = match[0];
+                messages++;
+                bytes += (int) match[1];
+            }
+        }
+        return start;
+    }
+
+    private static boolean inRoom(ByteBuffer view, int position, ByteBuffer roomKey) {
+        int roomLength = view.getShort(position + JournalSegment.RECORD_HEADER_SIZE) & 0xFFFF;
+        int roomStart = position + JournalSegment.RECORD_HEADER_SIZE + 2;
+        return roomLength == roomKey.remaining() && view.slice(roomStart, roomLength).equals(roomKey);
+    }
+
+    /**
+     * 在读线程中搜索某个房间的聊天消息。
+     *
+     * @param limit  最多返回的结果数，不超过 {@value #SEARCH_MAX_HITS}
+     * @param result 按相关度排列的结果，未开启搜索时为空
+     */
+    public void search(String room, String query, int limit, Consumer<List<SearchHit>> result) {
+        reader.execute(() -> result.accept(search(room, query, Math.min(limit, SEARCH_MAX_HITS))));
+    }
+
+    List<SearchHit> search(String room, String query, int limit) {
+        if (index == null) {
+            return List.of();
+        }
+        List<SearchHit> hits = new ArrayList<>();
+        for (long offset : index.search(room, query, limit)) {
+            SearchHit hit = read(offset);
+            // 日志已删除的消息不再返回
+            if (hit != null) {
+                hits.add(hit);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return 偏移量对应的聊天消息，不在日志中或记录损坏时返回 null
+     */
+    private SearchHit read(long offset) {
+        Map.Entry<Long, JournalSegment> entry = segments.floorEntry(offset);
+        if (entry == null) {
+            return null;
+        }
+        JournalSegment segment = entry.getValue();
+        ByteBuffer view = segment.committedView();
+        int position = segment.floorPosition(offset);
+        while (position < view.limit()) {
+            long recordOffset = view.getLong(position + 4);
+            if (recordOffset == offset) {
+                ByteBuffer payload = frameView(view, position).position(BinaryProtocol.HEADER_SIZE);
+                try {
+                    String sender = BinaryProtocol.getShortString(payload);
+                    payload.getLong();
+                    return new SearchHit(offset, view.getLong(position + 12), sender, BinaryProtocol.getString(payload));
+                } catch (ProtocolException e) {
+                    Log.warn("跳过损坏的日志记录：" + offset + " " + e.getMessage());
+                    return null;
+                }
+            }
+            if (recordOffset > offset) {
+                return null;
+            }
+            position += 4 + view.getInt(position);
+        }
+        return null;
+    }
+
+    /**
+     * 在索引线程中补建索引：从日志中读出最后一个索引段之后的消息，之后的消息由写入时提交。
+     */
+    private void reindex() {
+        long from = index.indexedUpTo() + 1;
+        Long start = segments.floorKey(from);
+        if (start == null) {
+            start = segments.ceilingKey(from);
+        }
+        if (start == null) {
+            return;
+        }
+        long count = 0;
+        try {
+            for (JournalSegment segment : segments.tailMap(start, true).values()) {
+                ByteBuffer view = segment.committedView();
+                int position = segment.floorPosition(from);
+                while (position < view.limit()) {
+                    long offset = view.getLong(position + 4);
+                    if (offset >= from) {
+                        int roomLength = view.getShort(position + JournalSegment.RECORD_HEADER_SIZE) & 0xFFFF;
+                        String room = BinaryProtocol.getString(
+                                view.slice(position + JournalSegment.RECORD_HEADER_SIZE + 2, roomLength));
+                        ByteBuffer payload = frameView(view, position).position(BinaryProtocol.HEADER_SIZE);
+                        BinaryProtocol.getShortString(payload);
+                        payload.getLong();
+                        index.add(offset, room, BinaryProtocol.getString(payload));
+                        count++;
+                    }
+                    position += 4 + view.getInt(position);
+                }
+            }
+        } catch (IOException e) {
+            Log.error("补建搜索索引失败", e);
+        }
+        if (count > 0) {
+            Log.info("已从消息日志补建 " + count + " 条消息的搜索索引");
+        }
+    }
+
+    /**
+     * @return 一条记录中消息帧的视图
+     */
+    private static ByteBuffer frameView(ByteBuffer view, int position) {
+        int next = position + 4 + view.getInt(position);
+        int roomLength = view.getShort(position + JournalSegment.RECORD_HEADER_SIZE) & 0xFFFF;
+        int frameStart = position + JournalSegment.RECORD_HEADER_SIZE + 2 + roomLength;
+        return view.slice(frameStart, next - frameStart);
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        long lastFlush = System.currentTimeMillis();
+        boolean dirty = false;
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    for (Entry entry : batch) {
+                        write(entry);
+                    }
+                    batch.clear();
+                    dirty = true;
+                }
+                long now = System.currentTimeMillis();
+                if (dirty && now - lastFlush >= flushMillis) {
+                    // 批量刷盘，两次刷盘之间的消息一起落盘
+                    active().force();
+                    dirty = false;
+                    lastFlush = now;
+                    enforceRetention(now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException | RuntimeException e) {
+                Log.error("写入消息日志失败", e);
+            }
+        }
+        if (!segments.isEmpty()) {
+            active().force();
+        }
+    }
+
+    private void write(Entry entry) throws IOException, InterruptedException {
+        Frame message = entry.await();
+        if (message == null) {
+            // 创建消息帧时出错，该偏移量不写入日志
+            return;
+        }
+        ByteBuffer frame = message.buffer(true);
+        byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+        long offset = message.sequence();
+        JournalSegment segment = segments.isEmpty() ? null : active();
+        if (segment == null || !segment.append(offset, entry.timestamp, room, frame)) {
+            if (segment != null) {
+                segment.force();
+            }
+            int capacity = Math.max(segmentBytes, JournalSegment.RECORD_HEADER_SIZE + 2 + room.length + frame.remaining());
+            segment = JournalSegment.create(dir, offset, capacity);
+            segments.put(offset, segment);
+            segment.append(offset, entry.timestamp, room, frame);
+        }
+        if (index != null && message.type() == MessageType.CHAT) {
+            index.submit(entry.room, message);
+        }
+    }
+
+    private JournalSegment active() {
+        return segments.lastEntry().getValue();
+    }
+
+    /**
+     * 删除超过总大小上限或保留时间的旧段，当前段不会被删除。
+     */
+    private void enforceRetention(long now) throws IOException {
+        long total = 0;
+        for (JournalSegment segment : segments.values()) {
+            total += segment.capacity();
+        }
+        while (segments.size() > 1) {
+            JournalSegment oldest = segments.firstEntry().getValue();
+            if (total <= maxBytes && now - oldest.lastAppendMillis() <= retentionMillis) {
+                break;
+            }
+            // 正在回放的读取者仍持有映射，删除文件不影响其读取
+            segments.remove(oldest.baseOffset());
+            oldest.delete();
+            total -= oldest.capacity();
+            if (index != null) {
+                index.retainFrom(segments.firstKey());
+            }
+        }
+    }
+
+    /**
+     * @return 因写队列已满而未保存的消息数
+     */
+    public long droppedMessages() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        reader.shutdown();
+        if (writer == null) {
+            return;
+        }
+        if (index != null) {
+            index.close();
+        }
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 写队列中的一条记录。偏移量分配后立即入队，消息帧由追加线程在锁外创建后填入。
+     */
+    private static final class Entry {
+        final String room;
+        final long timestamp;
+        private Frame frame;
+        private boolean completed;
+
+        Entry(String room, long timestamp) {
+            this.room = room;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @param frame 创建的消息帧，创建失败时为 null
+         */
+        synchronized void complete(Frame frame) {
+            this.frame = frame;
+            this.completed = true;
+            notifyAll();
+        }
+
+        synchronized Frame await() throws InterruptedException {
+            while (!completed) {
+                wait();
+            }
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.chatroom;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.swing.AbstractListModel;
+
+/**
+ * 聊天记录的列表模型，只保存一个有界的窗口，超出上限时由调用方从头部淘汰。
+ *
+ * <p>聊天消息按服务器日志偏移量排序并去重：偏移量大于已有消息的追加到末尾，
+ * 较小的（翻看历史时重新加载的消息）插入到对应位置。被淘汰的聊天消息可以从历史记录重新加载，
+ * 系统消息、私聊与图片不在日志中，淘汰后不再显示。只在 EDT 中访问。</p>
+ */
+final class MessageListModel extends AbstractListModel<ChatRow> {
+
+    private final List<ChatRow> rows = new ArrayList<>();
+    private final Set<Long> offsets = new HashSet<>();
+    private long newestOffset = -1;
+    private long imageBytes;
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public ChatRow getElementAt(int index) {
+        return rows.get(index);
+    }
+
+    /**
+     * @return 插入的位置，重复的聊天消息返回 -1
+     */
+    int add(ChatRow row) {
+        int index = rows.size();
+        if (row.offset >= 0) {
+            if (!offsets.add(row.offset)) {
+                return -1;
+            }
+            if (row.offset < newestOffset) {
+                index = position(row.offset);
+            } else {
+                newestOffset = row.offset;
+            }
+        }
+        rows.add(index, row);
+        if (row.isImage()) {
+            imageBytes += row.image.length;
+        }
+        fireIntervalAdded(this, index, index);
+        return index;
+    }
+
+    /**
+     * 第一条偏移量大于 offset 的聊天消息的位置。
+     */
+    private int position(long offset) {
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i).offset > offset) {
+                return i;
+            }
+        }
+        return rows.size();
+    }
+
+    /**
+     * 从头部淘汰最早的若干行。
+     */
+    void removeFirst(int count) {
+        if (count <= 0) {
+            return;
+        }
+        List<ChatRow> removed = rows.subList(0, Math.min(count, rows.size()));
+        for (ChatRow row : removed) {
+            if (row.offset >= 0) {
+                offsets.remove(row.offset);
+            }
+            if (row.isImage()) {
+                imageBytes -= row.image.length;
+            }
+        }
+        int last = removed.size() - 1;
+        removed.clear();
+        fireIntervalRemoved(this, 0, last);
+    }
+
+    void clear() {
+        int size = rows.size();
+        rows.clear();
+        offsets.clear();
+        newestOffset = -1;
+        imageBytes = 0;
+        if (size > 0) {
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+
+    /**
+     * @return 窗口中最早的聊天消息的偏移量，没有聊天消息时为 -1
+     */
+    long oldestOffset() {
+        for (ChatRow row : rows) {
+            if (row.offset >= 0) {
+                return row.offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 窗口中图片原始数据的总字节数
+     */
+    long imageBytes() {
+        return imageBytes;
+    }
+
+    int indexOf(ChatRow row) {
+        return rows.indexOf(row);
+    }
+}
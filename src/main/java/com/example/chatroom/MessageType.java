@@ -0,0 +1,99 @@
+package com.example.chatroom;
+
+/**
+ * 二进制协议中的消息类型，每种类型对应帧头中的一个字节编码。
+ */
+public enum MessageType {
+    /** 客户端登录，载荷为用户名 */
+    LOGIN(1),
+    /** 聊天消息；客户端发出时载荷为正文，服务器转发时为发送者加正文 */
+    CHAT(2),
+    /** 系统消息，载荷为正文 */
+    SYSTEM(3),
+    /** 在线用户的完整快照，载荷为 8 字节版本号加以换行分隔的用户名 */
+    USER_LIST(4),
+    /** 图片开始，载荷包含分块数量 */
+    IMAGE_START(5),
+    /** 图片数据块，载荷为原始二进制数据 */
+    IMAGE_CHUNK(6),
+    /** 图片结束 */
+    IMAGE_END(7),
+    /** 客户端退出 */
+    EXIT(8),
+    /** 服务器授予发送方的图片数据块额度，载荷为 4 字节额度数 */
+    CREDIT(9),
+    /** 客户端上传图片前声明内容的 SHA-256、字节数与块数 */
+    IMAGE_OFFER(10),
+    /** 服务器已缓存该图片，发送方无需上传 */
+    IMAGE_CACHED(11),
+    /**
+     * 图片引用：发送者、SHA-256 与字节数，客户端本地未缓存时再请求内容；
+     * 服务器转码过的图片引用的是缩略图，之后附带完整版本的 SHA-256 与字节数，需要时再请求
+     */
+    IMAGE_REF(12),
+    /** 客户端按 SHA-256 与偏移量请求缓存中的图片内容 */
+    IMAGE_FETCH(13),
+    /** 服务器返回的图片内容片段：SHA-256、总字节数、偏移量与数据 */
+    MEDIA_CHUNK(14),
+    /** 服务器返回的登录结果，载荷为 1 字节结果编码 */
+    LOGIN_RESULT(15),
+    /** 合并后的上下线增量：8 字节版本号、上线用户数与用户名、下线用户数与用户名 */
+    PRESENCE(16),
+    /** 私聊；客户端发出时载荷为接收者加正文，服务器转发时为发送者、接收者加正文 */
+    DIRECT(17),
+    /** 加入房间；客户端发出时载荷为房间名，服务器以同一类型确认实际加入的房间 */
+    JOIN_ROOM(18),
+    /** 历史消息；客户端发出时载荷为 8 字节起始偏移量，服务器回放结束后返回继续请求时使用的偏移量 */
+    HISTORY(19),
+    /** 服务器为登录成功的客户端创建的可恢复会话，载荷为 16 字节令牌；恢复成功时以同一类型确认 */
+    SESSION(20),
+    /** 客户端断线重连后恢复会话，载荷为 16 字节令牌与 8 字节已收到的帧数 */
+    RESUME(21),
+    /** 压缩帧，只发送给握手时请求了压缩的客户端；载荷为用预置字典 deflate 压缩的一个完整帧（含帧头） */
+    COMPRESSED(22),
+    /**
+     * 搜索当前房间的历史消息；客户端发出时载荷为 4 字节请求编号加查询，服务器返回请求编号、结果数与各条结果
+     * （8 字节偏移量、8 字节时间、发送者与带 4 字节长度前缀的正文）
+     */
+    SEARCH(23),
+    /**
+     * 客户端发送过快，一条消息被丢弃：1 字节被丢弃的消息类型、8 字节建议的重试等待毫秒数，
+     * 以及 4 字节 SEARCH 请求编号（其他类型为 0）
+     */
+    THROTTLED(24),
+    /** 心跳探测，载荷为空；服务器在连接空闲时发送，客户端也可以发送，对方以 PONG 回复，不计入会话的帧编号 */
+    PING(25),
+    /** 心跳回复，载荷为空 */
+    PONG(26),
+    /**
+     * 服务器即将停机，载荷为 4 字节重连窗口毫秒数；客户端在窗口内随机等待一段时间后重新连接并登录，
+     * 避免所有客户端同时重连
+     */
+    RECONNECT(27);
+
+    private static final MessageType[] BY_CODE = new MessageType[256];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    public byte code() {
+        return (byte) code;
+    }
+
+    /**
+     * @param code 帧头中的类型字节
+     * @return 对应的消息类型，未知类型返回 null
+     */
+    public static MessageType fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
+}
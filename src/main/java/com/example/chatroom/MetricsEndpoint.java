@@ -0,0 +1,63 @@
+package com.example.chatroom;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * 纯文本的指标抓取接口：{@code GET /metrics} 返回 Prometheus 文本格式的 {@link ServerMetrics}。
+ * 使用 JDK 自带的 HTTP 服务器，在单独的线程中处理请求，不占用聊天连接的 I/O 线程。
+ */
+public final class MetricsEndpoint implements AutoCloseable {
+
+    private final HttpServer server;
+
+    private MetricsEndpoint(HttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * 按系统属性 chat.metrics.port 启动，未设置时返回 null。
+     */
+    public static MetricsEndpoint fromSystemProperties() throws IOException {
+        Integer port = Integer.getInteger("chat.metrics.port");
+        if (port == null) {
+            return null;
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", MetricsEndpoint::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        Log.info("指标接口已启动：http://localhost:" + port + "/metrics");
+        return new MetricsEndpoint(server);
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = ServerMetrics.get().scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
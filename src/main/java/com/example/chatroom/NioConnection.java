@@ -0,0 +1,176 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于非阻塞 SocketChannel 的连接，所有 I/O 都在所属事件循环线程中完成。
+ */
+final class NioConnection implements Connection, NioEventLoop.Handler {
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final OutboundQueue outbound = OutboundQueue.fromSystemProperties();
+    private final ByteBuffer[] batch = new ByteBuffer[OutboundQueue.MAX_BATCH];
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final String remoteAddress;
+    private final String remoteHost;
+    private SelectionKey key;
+    private ClientHandler handler;
+    private InboundDecoder decoder;
+
+    NioConnection(SocketChannel channel, NioEventLoop loop) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+        this.remoteAddress = String.valueOf(address);
+        this.remoteHost = address.getHostString();
+    }
+
+    /**
+     * 绑定协议处理器并在事件循环中注册读事件。
+     */
+    void register(ClientHandler handler) {
+        this.handler = handler;
+        this.decoder = new InboundDecoder(handler);
+        loop.execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                Log.error("无法注册连接：" + remoteAddress, e);
+                handler.disconnect();
+            }
+        });
+    }
+
+    @Override
+    public void onReadable() {
+        ByteBuffer buffer = loop.readBuffer();
+        try {
+            int n;
+            while ((n = channel.read(buffer.clear())) > 0) {
+                buffer.flip();
+                if (!decoder.decode(buffer)) {
+                    handler.disconnect();
+                    return;
+                }
+            }
+            if (n < 0) {
+                handler.disconnect();
+            }
+        } catch (IOException e) {
+            handler.disconnect();
+        }
+    }
+
+    @Override
+    public void onWritable() {
+        flush();
+    }
+
+    @Override
+    public boolean send(ByteBuffer data) {
+        if (closed.get()) {
+            return true;
+        }
+        switch (outbound.offer(data)) {
+            case OVERFLOW:
+                // 不在广播线程中直接断开，避免在遍历用户表时重入广播
+                loop.execute(this::close);
+                return true;
+            case DROPPED:
+                return false;
+            default:
+                break;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (loop.inEventLoop()) {
+                flush();
+            } else {
+                loop.execute(this::flush);
+            }
+        }
+        return true;
+    }
+
+    private void flush() {
+        if (closed.get() || key == null) {
+            return;
+        }
+        try {
+            while (true) {
+                int count;
+                while ((count = outbound.fill(batch)) > 0) {
+                    // 将队列中的多条消息合并为一次聚集写
+                    long written = channel.write(batch, 0, count);
+                    outbound.consumed(written);
+                    boolean blocked = batch[count - 1].hasRemaining();
+                    Arrays.fill(batch, 0, count, null);
+                    if (blocked) {
+                        // socket 发送缓冲区已满，等待可写事件
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                flushScheduled.set(false);
+                if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            handler.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!loop.inEventLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        outbound.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (ClosedChannelException ignored) {
+            // 已经关闭
+        } catch (IOException e) {
+            Log.warn("关闭连接失败：" + remoteAddress, e);
+        }
+        handler.disconnect();
+    }
+
+    @Override
+    public boolean awaitDrain(long bytes, Runnable task) {
+        return outbound.awaitDrain(bytes, task);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+    @Override
+    public String remoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String remoteHost() {
+        return remoteHost;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 基于 Selector 的 Reactor 连接引擎：一个接收线程加每个 CPU 核一个事件循环。
+ * 每条连接只占用少量对象，不再为每个客户端创建平台线程，可以承载数万个空闲连接。
+ */
+public class NioConnectionEngine implements ConnectionEngine {
+
+    private static final int BACKLOG = 1024;
+
+    private final ServerContext context;
+    private final NioEventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    public NioConnectionEngine(ServerContext context, int eventLoops) {
+        this.context = context;
+        this.loops = new NioEventLoop[Math.max(1, eventLoops)];
+    }
+
+    @Override
+    public void start(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("nio-event-loop-" + i);
+            loops[i].start();
+        }
+        serverChannel = ConnectionEngine.bind(port, BACKLOG);
+
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = ConnectionEngine.accept(serverChannel);
+            } catch (ClosedChannelException e) {
+                break;
+            }
+            if (channel == null) {
+                continue;
+            }
+            ServerMetrics.connectionOpened();
+            context.heartbeat().enableKeepAlive(channel);
+
+            // 轮询分配到各个事件循环
+            NioEventLoop loop = loops[next];
+            next = (next + 1) % loops.length;
+            try {
+                NioConnection connection = new NioConnection(channel, loop);
+                connection.register(new ClientHandler(connection, context));
+            } catch (IOException e) {
+                Log.error("无法建立连接", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // 连接尚未注册到事件循环，关闭失败无需处理
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stopAccepting() throws IOException {
+        running = false;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopAccepting();
+        for (NioEventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+}
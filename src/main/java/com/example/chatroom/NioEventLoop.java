@@ -0,0 +1,150 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 单线程 Selector 事件循环，负责一组连接的读写事件。
+ * 所有连接共享同一块直接内存读缓冲区，连接本身不持有读缓冲。
+ * 服务器的客户端连接与 {@link ChatClient} 的连接都以 {@link Handler} 的形式注册。
+ */
+final class NioEventLoop implements Runnable {
+
+    /**
+     * 注册在事件循环中的通道，作为 {@link SelectionKey} 的附件，所有方法都在事件循环线程中调用。
+     */
+    interface Handler {
+
+        void onReadable();
+
+        void onWritable();
+
+        /**
+         * 非阻塞连接已建立或失败，只有注册了 OP_CONNECT 的通道会收到。
+         */
+        default void onConnectable() {
+        }
+
+        void close();
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 在事件循环线程中执行任务，可从任意线程调用。
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    dispatch(key);
+                }
+                // 放在处理完读写事件之后，事件处理中提交的任务（如登录回调）在本轮执行，
+                // 而不是等到下一次 select 被其他事件唤醒
+                runTasks();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.error("事件循环异常退出", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Handler) key.attachment()).close();
+            }
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.warn("关闭 Selector 失败", e);
+            }
+        }
+    }
+
+    /**
+     * 处理一个通道的就绪事件。处理器抛出的异常只关闭该通道，不影响同一事件循环中的其他连接。
+     */
+    private static void dispatch(SelectionKey key) {
+        Handler handler = (Handler) key.attachment();
+        try {
+            if (!key.isValid()) {
+                handler.close();
+                return;
+            }
+            if (key.isConnectable()) {
+                handler.onConnectable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                handler.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                handler.onWritable();
+            }
+        } catch (RuntimeException e) {
+            Log.error("处理连接事件失败，关闭连接", e);
+            try {
+                handler.close();
+            } catch (RuntimeException closeError) {
+                Log.error("关闭连接失败", closeError);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("事件循环任务执行失败", e);
+            }
+        }
+    }
+}
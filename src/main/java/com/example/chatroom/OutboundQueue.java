@@ -0,0 +1,334 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 每个客户端独立的有界出站队列。
+ * 广播线程只负责入队，由连接的写任务批量取出并通过一次聚集写（gather write）发送，
+ * 因此一个读取缓慢的客户端不会拖慢其他发送者。
+ * 多个线程可以并发入队，但同一时刻只能有一个写任务消费队列。
+ */
+final class OutboundQueue {
+
+    /** 单次聚集写最多合并的缓冲区数量 */
+    static final int MAX_BATCH = 64;
+
+    private static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+    private static final long DEFAULT_MAX_SPILL_BYTES = 256L * 1024 * 1024;
+    private static final int SPILL_READ_SIZE = 64 * 1024;
+
+    /**
+     * 入队结果。
+     */
+    enum Result {
+        QUEUED,
+        DROPPED,
+        /** 队列溢出且策略为断开，调用方应关闭连接 */
+        OVERFLOW
+    }
+
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final long maxBytes;
+    private final long maxSpillBytes;
+    private final SlowConsumerPolicy policy;
+    private long queuedBytes;
+    private long droppedMessages;
+    // 连接已关闭，等待中的写任务应当退出
+    private boolean closed;
+    // 等待队列排空的任务，由写任务在 consumed 中或关闭连接时执行
+    private final List<DrainWaiter> drainWaiters = new ArrayList<>();
+
+    // 溢出文件：写入位置与读取位置，两者相等时说明溢出数据已全部取回
+    private FileChannel spill;
+    private long spillWritePosition;
+    private long spillReadPosition;
+
+    OutboundQueue(long maxBytes, long maxSpillBytes, SlowConsumerPolicy policy) {
+        this.maxBytes = maxBytes;
+        this.maxSpillBytes = maxSpillBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * 按系统属性 chat.outbound.maxBytes、chat.outbound.maxSpillBytes 与 chat.outbound.policy 创建队列。
+     */
+    static OutboundQueue fromSystemProperties() {
+        return new OutboundQueue(
+                Long.getLong("chat.outbound.maxBytes", DEFAULT_MAX_BYTES),
+                Long.getLong("chat.outbound.maxSpillBytes", DEFAULT_MAX_SPILL_BYTES),
+                SlowConsumerPolicy.fromSystemProperty());
+    }
+
+    /**
+     * 将一条已编码的消息加入队列。
+     *
+     * @param buffer 处于读模式的缓冲区，入队后不可再修改
+     * @return 入队结果
+     */
+    Result offer(ByteBuffer buffer) {
+        int size = buffer.remaining();
+        lock.lock();
+        try {
+            if (spilling() || queuedBytes + size > maxBytes) {
+                switch (policy) {
+                    case DROP:
+                        droppedMessages++;
+                        ServerMetrics.messageDropped();
+                        return Result.DROPPED;
+                    case DISCONNECT:
+                        ServerMetrics.messageDropped();
+                        return Result.OVERFLOW;
+                    case SPILL:
+                        if (!spill(buffer)) {
+                            ServerMetrics.messageDropped();
+                            return Result.OVERFLOW;
+                        }
+                        ServerMetrics.messageQueued(size, queue.size());
+                        return Result.QUEUED;
+                    default:
+                        throw new IllegalStateException(policy.name());
+                }
+            }
+            queue.addLast(buffer);
+            queuedBytes += size;
+            ServerMetrics.messageQueued(size, queue.size());
+            notEmpty.signal();
+            return Result.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 将队首的若干缓冲区填入数组用于聚集写，不会将其移出队列。
+     * 溢出文件中的数据只有在内存队列清空后才会被取回，以保证消息顺序。
+     *
+     * @param batch 目标数组
+     * @return 填入的缓冲区数量，0 表示队列为空
+     */
+    int fill(ByteBuffer[] batch) throws IOException {
+        lock.lock();
+        try {
+            if (queue.isEmpty() && spilling()) {
+                unspill();
+            }
+            int count = 0;
+            for (ByteBuffer buffer : queue) {
+                if (count == batch.length) {
+                    break;
+                }
+                batch[count++] = buffer;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 聚集写完成后调用，移除已完整写出的缓冲区。
+     *
+     * @param written 本次写出的字节数
+     */
+    void consumed(long written) {
+        List<Runnable> drained = null;
+        lock.lock();
+        try {
+            if (closed) {
+                // 阻塞式写任务在连接关闭前写出的数据，队列已被清空
+                ServerMetrics.bytesWritten(written);
+                return;
+            }
+            queuedBytes -= written;
+            ServerMetrics.bytesWritten(written);
+            ByteBuffer head;
+            while ((head = queue.peekFirst()) != null && !head.hasRemaining()) {
+                queue.pollFirst();
+            }
+            if (!drainWaiters.isEmpty()) {
+                drained = takeDrainWaiters(pendingBytes());
+            }
+        } finally {
+            lock.unlock();
+        }
+        runAll(drained);
+    }
+
+    /**
+     * 队列中待发送的字节数（含溢出文件）超过 bytes 时登记任务，排空到 bytes 以下或队列被清空时在写任务的线程中执行一次。
+     *
+     * @return 已登记任务；未超过 bytes 时返回 false，任务不会执行
+     */
+    boolean awaitDrain(long bytes, Runnable task) {
+        lock.lock();
+        try {
+            if (pendingBytes() <= bytes) {
+                return false;
+            }
+            drainWaiters.add(new DrainWaiter(bytes, task));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 等待队列中出现待发送数据，供阻塞式写任务使用。入队与 {@link #clear()} 都会唤醒等待的线程。
+     *
+     * @return 队列已被清空（连接已关闭）时返回 false
+     */
+    boolean awaitNotEmpty() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !spilling() && !closed) {
+                notEmpty.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return queue.isEmpty() && !spilling();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long droppedMessages() {
+        lock.lock();
+        try {
+            return droppedMessages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 清空队列并删除溢出文件，连接关闭时调用；等待中的写任务随之返回。
+     */
+    void clear() {
+        List<Runnable> drained;
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            queue.clear();
+            ServerMetrics.bytesDiscarded(pendingBytes());
+            queuedBytes = 0;
+            closeSpill();
+            drained = takeDrainWaiters(0);
+        } finally {
+            lock.unlock();
+        }
+        runAll(drained);
+    }
+
+    private boolean spilling() {
+        return spillWritePosition > spillReadPosition;
+    }
+
+    private long pendingBytes() {
+        return queuedBytes + spillWritePosition - spillReadPosition;
+    }
+
+    private List<Runnable> takeDrainWaiters(long pending) {
+        List<Runnable> drained = new ArrayList<>();
+        drainWaiters.removeIf(waiter -> {
+            if (pending > waiter.bytes) {
+                return false;
+            }
+            drained.add(waiter.task);
+            return true;
+        });
+        return drained;
+    }
+
+    private static void runAll(List<Runnable> tasks) {
+        if (tasks == null) {
+            return;
+        }
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private static final class DrainWaiter {
+        final long bytes;
+        final Runnable task;
+
+        DrainWaiter(long bytes, Runnable task) {
+            this.bytes = bytes;
+            this.task = task;
+        }
+    }
+
+    private boolean spill(ByteBuffer buffer) {
+        if (spillWritePosition - spillReadPosition + buffer.remaining() > maxSpillBytes) {
+            return false;
+        }
+        try {
+            if (spill == null) {
+                spill = FileChannel.open(Files.createTempFile("chat-spill-", ".bin"), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            // 使用副本写入，避免改变共享缓冲区的位置
+            ByteBuffer copy = buffer.duplicate();
+            while (copy.hasRemaining()) {
+                spillWritePosition += spill.write(copy, spillWritePosition);
+            }
+            notEmpty.signal();
+            return true;
+        } catch (IOException e) {
+            Log.error("无法写入溢出文件", e);
+            return false;
+        }
+    }
+
+    private void unspill() throws IOException {
+        int size = (int) Math.min(SPILL_READ_SIZE, spillWritePosition - spillReadPosition);
+        ByteBuffer chunk = ByteBuffer.allocate(size);
+        while (chunk.hasRemaining()) {
+            int n = spill.read(chunk, spillReadPosition + chunk.position());
+            if (n < 0) {
+                throw new IOException("溢出文件被截断");
+            }
+        }
+        spillReadPosition += size;
+        if (spillReadPosition == spillWritePosition) {
+            // 溢出数据已全部取回，重用文件
+            spillReadPosition = 0;
+            spillWritePosition = 0;
+            spill.truncate(0);
+        }
+        queue.addLast(chunk.flip());
+        queuedBytes += size;
+    }
+
+    private void closeSpill() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                Log.error("无法关闭溢出文件", e);
+            }
+            spill = null;
+        }
+        spillReadPosition = 0;
+        spillWritePosition = 0;
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.chatroom;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在线状态跟踪。用户上下线不再向所有人广播完整的用户列表，而是：
+ * <ul>
+ *   <li>新登录的客户端收到一次带版本号的完整快照；</li>
+ *   <li>此后的上下线在一个短时间窗口内合并，窗口结束时以一个带版本号的增量帧广播。</li>
+ * </ul>
+ * 集中登录时每个窗口只广播一次，客户端按版本号丢弃早于快照的增量。
+ *
+ * <p>在线用户表的修改与待广播变化的记录在同一把锁内完成，
+ * 保证合并后的每个用户的最终状态与在线用户表一致。</p>
+ *
+ * <p>加入集群时，本节点的上下线同时通知 {@link ClusterRelay}，其他节点上的用户与本节点的用户
+ * 一起出现在快照与增量中；同名用户在任一节点在线即视为在线。</p>
+ */
+public class PresenceTracker {
+
+    private static final long DEFAULT_COALESCE_MILLIS = 100;
+
+    private final ConcurrentHashMap<String, ClientHandler> clients;
+    private final ClusterRelay cluster;
+    // 其他节点上的在线用户，值为所在节点
+    private final Map<String, String> remote = new HashMap<>();
+    private final long coalesceMillis;
+    private final ScheduledExecutorService scheduler;
+    // 窗口内每个用户的最终状态：true 为上线，false 为下线
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private long version;
+    private boolean flushScheduled;
+
+    /**
+     * @param clients        在线用户表
+     * @param cluster        集群转发
+     * @param coalesceMillis 合并上下线的时间窗口
+     */
+    public PresenceTracker(ConcurrentHashMap<String, ClientHandler> clients, ClusterRelay cluster,
+                           long coalesceMillis) {
+        this.clients = clients;
+        this.cluster = cluster;
+        this.coalesceMillis = coalesceMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 按系统属性 chat.presence.coalesceMillis 创建。
+     */
+    public static PresenceTracker fromSystemProperties(ConcurrentHashMap<String, ClientHandler> clients,
+                                                       ClusterRelay cluster) {
+        return new PresenceTracker(clients, cluster,
+                Long.getLong("chat.presence.coalesceMillis", DEFAULT_COALESCE_MILLIS));
+    }
+
+    /**
+     * 用户上线：加入在线用户表，并向该用户发送当前版本的完整快照。
+     * 快照在锁内入队，保证客户端先收到快照再收到之后的增量。
+     * 同名用户已在本节点在线时旧的处理器被取代并断开，不会留在原来的房间中。
+     */
+    public void join(String username, ClientHandler handler) {
+        ClientHandler previous;
+        synchronized (this) {
+            previous = clients.put(username, handler);
+            record(username, true);
+            cluster.userJoined(username);
+            handler.sendMessage(Frame.userList(version, users()));
+        }
+        // 在锁外通知，旧处理器断开时会再次进入本对象
+        if (previous != null && previous != handler) {
+            previous.replaced();
+        }
+    }
+
+    /**
+     * 用户下线：只有表中仍是该处理器时才移除，同名用户重新登录后旧连接的下线不会影响新连接。
+     */
+    public void leave(String username, ClientHandler handler) {
+        synchronized (this) {
+            if (clients.remove(username, handler)) {
+                cluster.userLeft(username);
+                if (!remote.containsKey(username)) {
+                    record(username, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 用户在本节点或其他节点上在线
+     */
+    public synchronized boolean isOnline(String username) {
+        return clients.containsKey(username) || remote.containsKey(username);
+    }
+
+    /**
+     * 其他节点的用户上线。
+     */
+    public synchronized void remoteJoin(String node, String username) {
+        if (remote.put(username, node) == null && !clients.containsKey(username)) {
+            record(username, true);
+        }
+    }
+
+    /**
+     * 其他节点的用户下线，该用户已在另一个节点重新登录时忽略。
+     */
+    public synchronized void remoteLeave(String node, String username) {
+        if (remote.remove(username, node) && !clients.containsKey(username)) {
+            record(username, false);
+        }
+    }
+
+    /**
+     * 以完整列表取代某个节点上的在线用户，链路断开时传入空列表。
+     */
+    public synchronized void remoteReset(String node, Collection<String> usernames) {
+        Set<String> current = new HashSet<>(usernames);
+        for (Iterator<Map.Entry<String, String>> it = remote.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> entry = it.next();
+            if (entry.getValue().equals(node) && !current.contains(entry.getKey())) {
+                it.remove();
+                if (!clients.containsKey(entry.getKey())) {
+                    record(entry.getKey(), false);
+                }
+            }
+        }
+        for (String username : current) {
+            remoteJoin(node, username);
+        }
+    }
+
+    /**
+     * @return 用户所在的其他节点，不在其他节点上在线时返回 null
+     */
+    public synchronized String remoteNode(String username) {
+        return remote.get(username);
+    }
+
+    // 本节点与其他节点的在线用户，同名用户只出现一次
+    private List<String> users() {
+        List<String> users = new ArrayList<>(clients.keySet());
+        for (String username : remote.keySet()) {
+            if (!clients.containsKey(username)) {
+                users.add(username);
+            }
+        }
+        return users;
+    }
+
+    private void record(String username, boolean online) {
+        // 先删除再放入，使 LinkedHashMap 按最后一次变化的顺序排列
+        pending.remove(username);
+        pending.put(username, online);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, coalesceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        Frame frame;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (Map.Entry<String, Boolean> entry : pending.entrySet()) {
+                (entry.getValue() ? joined : left).add(entry.getKey());
+            }
+            pending.clear();
+            version++;
+            frame = Frame.presence(version, joined, left, users());
+        }
+        // 锁外广播；此后登录的客户端快照版本不低于该增量，会将其丢弃
+        ClientHandler.broadcast(clients.values(), frame);
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.chatroom;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 已登录客户端的消息限流：按用户名与客户端地址各维护一组令牌桶，分别限制消息数与字节数。
+ * 同一用户的多个连接共享用户的额度，同一地址的所有连接共享地址的额度。
+ *
+ * <p>令牌桶用 GCRA 算法实现：每个桶只保存一个“理论到达时间”，取得令牌就是把它向后推，
+ * 推过当前时间加上突发容量就拒绝。更新只需一次 CAS，不加锁，也不需要定时补充令牌的线程。</p>
+ *
+ * <p>通过 -Dchat.limits.enabled=false 关闭。用户与地址的速率与突发容量分别由
+ * chat.limits.userMessagesPerSecond、chat.limits.userMessageBurst、chat.limits.userBytesPerSecond、
+ * chat.limits.userByteBurst 与对应的 chat.limits.host* 配置，地址的额度较大，以容纳同一出口后的多个用户。</p>
+ */
+final class RateLimiter {
+
+    // 记录数超过该值时清理已恢复满额的桶
+    private static final int CLEANUP_THRESHOLD = 10_000;
+
+    private final Limits user;
+    private final Limits host;
+    private final ConcurrentHashMap<String, Buckets> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Buckets> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * 一组速率与突发容量。
+     */
+    static final class Limits {
+        final long messagesPerSecond;
+        final long messageBurst;
+        final long bytesPerSecond;
+        final long byteBurst;
+
+        Limits(long messagesPerSecond, long messageBurst, long bytesPerSecond, long byteBurst) {
+            this.messagesPerSecond = messagesPerSecond;
+            this.messageBurst = messageBurst;
+            this.bytesPerSecond = bytesPerSecond;
+            this.byteBurst = byteBurst;
+        }
+    }
+
+    /**
+     * @param user 每个用户的额度，为 null 时不限流
+     * @param host 每个地址的额度，为 null 时不限流
+     */
+    RateLimiter(Limits user, Limits host) {
+        this.user = user;
+        this.host = host;
+    }
+
+    static RateLimiter fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("chat.limits.enabled", "true"))) {
+            return new RateLimiter(null, null);
+        }
+        return new RateLimiter(
+                new Limits(Long.getLong("chat.limits.userMessagesPerSecond", 20),
+                        Long.getLong("chat.limits.userMessageBurst", 40),
+                        Long.getLong("chat.limits.userBytesPerSecond", 1024 * 1024),
+                        Long.getLong("chat.limits.userByteBurst", 4 * 1024 * 1024)),
+                new Limits(Long.getLong("chat.limits.hostMessagesPerSecond", 200),
+                        Long.getLong("chat.limits.hostMessageBurst", 400),
+                        Long.getLong("chat.limits.hostBytesPerSecond", 8 * 1024 * 1024),
+                        Long.getLong("chat.limits.hostByteBurst", 32 * 1024 * 1024)));
+    }
+
+    boolean isEnabled() {
+        return user != null;
+    }
+
+    /**
+     * 为一条消息取得额度，用户或地址任一方不足时拒绝，拒绝的消息不消耗额度。
+     *
+     * @param bytes 消息的字节数
+     * @return 0 表示允许，否则为建议的重试等待时间（毫秒，至少为 1）
+     */
+    long tryAcquire(String username, String remoteHost, int bytes) {
+        if (user == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        Buckets byUser = buckets(users, username, user, now);
+        long wait = byUser.tryAcquire(bytes, now);
+        if (wait > 0) {
+            return toMillis(wait);
+        }
+        Buckets byHost = buckets(hosts, remoteHost, host, now);
+        wait = byHost.tryAcquire(bytes, now);
+        if (wait > 0) {
+            // 用户已经扣除的额度退回，避免被地址拒绝的消息占用用户额度
+            byUser.refund(bytes);
+            return toMillis(wait);
+        }
+        return 0;
+    }
+
+    /**
+     * 记入一条不能丢弃的消息（如已开始上传的图片的数据块），额度不足时透支，之后的消息会被拒绝到额度恢复。
+     */
+    void charge(String username, String remoteHost, int bytes) {
+        if (user == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        buckets(users, username, user, now).charge(bytes, now);
+        buckets(hosts, remoteHost, host, now).charge(bytes, now);
+    }
+
+    private static Buckets buckets(ConcurrentHashMap<String, Buckets> map, String key, Limits limits, long now) {
+        Buckets buckets = map.get(key);
+        if (buckets == null) {
+            if (map.size() > CLEANUP_THRESHOLD) {
+                map.values().removeIf(b -> b.isFull(now));
+            }
+            buckets = map.computeIfAbsent(key, k -> new Buckets(limits));
+        }
+        return buckets;
+    }
+
+    private static long toMillis(long nanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * 一个键的消息数与字节数两个桶。
+     */
+    private static final class Buckets {
+        private final Bucket messages;
+        private final Bucket bytes;
+
+        Buckets(Limits limits) {
+            this.messages = new Bucket(limits.messagesPerSecond, limits.messageBurst);
+            this.bytes = new Bucket(limits.bytesPerSecond, limits.byteBurst);
+        }
+
+        long tryAcquire(int size, long now) {
+            long wait = messages.tryAcquire(1, now);
+            if (wait > 0) {
+                return wait;
+            }
+            wait = bytes.tryAcquire(size, now);
+            if (wait > 0) {
+                messages.refund(1);
+            }
+            return wait;
+        }
+
+        void charge(int size, long now) {
+            messages.charge(1, now);
+            bytes.charge(size, now);
+        }
+
+        void refund(int size) {
+            messages.refund(1);
+            bytes.refund(size);
+        }
+
+        boolean isFull(long now) {
+            return messages.isFull(now) && bytes.isFull(now);
+        }
+    }
+
+    /**
+     * GCRA 令牌桶：每个令牌对应 intervalNanos 的时间，桶满时理论到达时间不晚于当前时间。
+     */
+    private static final class Bucket {
+        private final long ratePerSecond;
+        private final long toleranceNanos;
+        // 理论到达时间，以 System.nanoTime() 计
+        private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE / 2);
+
+        Bucket(long ratePerSecond, long burst) {
+            this.ratePerSecond = Math.max(1, ratePerSecond);
+            this.toleranceNanos = cost(Math.max(1, burst));
+        }
+
+        /**
+         * @return 0 表示已取得，否则为还需等待的纳秒数
+         */
+        long tryAcquire(long tokens, long now) {
+            long cost = cost(tokens);
+            while (true) {
+                long current = tat.get();
+                long next = Math.max(current, now) + cost;
+                long excess = next - now - toleranceNanos;
+                if (excess > 0) {
+                    return excess;
+                }
+                if (tat.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        void charge(long tokens, long now) {
+            long cost = cost(tokens);
+            tat.getAndUpdate(current -> Math.max(current, now) + cost);
+        }
+
+        void refund(long tokens) {
+            tat.addAndGet(-cost(tokens));
+        }
+
+        boolean isFull(long now) {
+            return tat.get() <= now;
+        }
+
+        private long cost(long tokens) {
+            return tokens * TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.chatroom;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 聊天房间：房间名与订阅者集合。广播只遍历本房间的订阅者，
+ * 代价与房间人数成正比，而不是与服务器在线总人数成正比。
+ */
+public final class Room {
+
+    private final String name;
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return 订阅者的实时视图，可在其他线程加入或离开时安全遍历
+     */
+    public Collection<ClientHandler> members() {
+        return members;
+    }
+
+    boolean add(ClientHandler handler) {
+        return members.add(handler);
+    }
+
+    boolean remove(ClientHandler handler) {
+        return members.remove(handler);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+}
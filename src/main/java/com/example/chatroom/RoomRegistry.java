@@ -0,0 +1,50 @@
+package com.example.chatroom;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务器上的全部房间。加入房间时按需创建，最后一个订阅者离开后移除，默认房间始终存在。
+ * 房间的创建、加入、离开与移除都在 {@link ConcurrentHashMap#compute} 中完成，
+ * 不会出现加入一个刚被移除的房间。
+ */
+public class RoomRegistry {
+
+    public static final String DEFAULT_ROOM = "大厅";
+    public static final int MAX_NAME_LENGTH = 64;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * @return 加入后的房间
+     */
+    public Room join(String name, ClientHandler handler) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(key);
+            }
+            room.add(handler);
+            return room;
+        });
+    }
+
+    /**
+     * @return 指定名称的房间，没有订阅者的房间不存在，返回 null
+     */
+    public Room find(String name) {
+        return rooms.get(name);
+    }
+
+    public void leave(Room room, ClientHandler handler) {
+        rooms.computeIfPresent(room.name(), (key, current) -> {
+            current.remove(handler);
+            return current.isEmpty() && !key.equals(DEFAULT_ROOM) ? null : current;
+        });
+    }
+
+    /**
+     * @return 房间名是否非空、不含首尾空白且不超过长度上限
+     */
+    public static boolean isValidName(String name) {
+        return !name.isBlank() && name.equals(name.trim()) && name.length() <= MAX_NAME_LENGTH;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.chatroom;
+
+/**
+ * 历史消息搜索的一条结果，按相关度从高到低返回。
+ */
+public final class SearchHit {
+
+    private final long offset;
+    private final long timestamp;
+    private final String sender;
+    private final String text;
+
+    public SearchHit(long offset, long timestamp, String sender, String text) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.text = text;
+    }
+
+    /**
+     * @return 消息在日志中的偏移量，可以用 HISTORY 请求它前后的消息
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * @return 服务器写入日志的时间，毫秒
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public String sender() {
+        return sender;
+    }
+
+    public String text() {
+        return text;
+    }
+}
@@ -0,0 +1,616 @@
+package com.example.chatroom;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * 聊天消息的倒排索引，由 {@link MessageJournal} 在写入日志时提交消息，按房间搜索。
+ *
+ * <p>分词按字符类别切分：连续的汉字、假名与谚文按相邻两字切成二元组，单独出现的一个字自成一词；
+ * 字母与数字组成的词转为小写。因此中文查询无需词典，任意两个以上字的片段都能命中，
+ * 单字查询只能匹配单独出现的字。</p>
+ *
+ * <ul>
+ *   <li>消息进入有界队列，由单独的索引线程写入内存中的倒排表，不增加广播与写日志的延迟；</li>
+ *   <li>内存中的倒排表超过预算时整体写出为一个只读的段文件并以内存映射方式读取，
+ *       段内按词排序，倒排表以变长整数差值编码，内存中只保留每隔 {@value #SPARSE_INTERVAL} 个词的稀疏词典；</li>
+ *   <li>日志删除旧段后，偏移量全部早于日志起点的索引段随之删除；</li>
+ *   <li>启动时从日志中补建最后一个索引段之后的消息，内存中未写出的部分不会丢失。</li>
+ * </ul>
+ *
+ * <p>搜索时取各查询词的倒排表，多数查询词（两个词以内为全部）都出现的消息才算命中，
+ * 按命中词的逆文档频率之和排序，相同时较新的消息在前。候选消息只从最稀有的几个词中产生，
+ * 其余词用二分查找判断，常见词不会拖慢查询。</p>
+ */
+final class SearchIndex implements AutoCloseable {
+
+    static final String SUFFIX = ".idx";
+    private static final int MAGIC = 0x43484958;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 8;
+    private static final int SPARSE_INTERVAL = 64;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_QUERY_TERMS = 32;
+    private static final int MAX_WORD_LENGTH = 32;
+    // 内存中每个词与每个倒排项的估算开销
+    private static final int TERM_OVERHEAD = 96;
+    private static final int POSTING_BYTES = 8;
+
+    private final Path dir;
+    private final long memoryBudget;
+    private final BlockingQueue<Document> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Thread indexer;
+    private volatile boolean running = true;
+    private final AtomicLong documents = new AtomicLong();
+    private volatile long indexedUpTo = -1;
+
+    // 以下字段由 this 保护：正在写入的倒排表，以及正在写出为段文件、尚未可读的倒排表
+    private Map<String, Postings> memory = new HashMap<>();
+    private Map<String, Postings> flushing = Collections.emptyMap();
+    private long memoryBytes;
+
+    /**
+     * @param dir          段文件目录
+     * @param memoryBudget 内存中倒排表的估算字节上限
+     */
+    SearchIndex(Path dir, long memoryBudget) throws IOException {
+        this.dir = dir;
+        this.memoryBudget = memoryBudget;
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.sorted().toList()) {
+                if (file.getFileName().toString().endsWith(SUFFIX + ".tmp")) {
+                    // 写出中断留下的临时文件
+                    Files.delete(file);
+                    continue;
+                }
+                if (!file.getFileName().toString().endsWith(SUFFIX)) {
+                    continue;
+                }
+                try {
+                    Segment segment = Segment.open(file);
+                    segments.add(segment);
+                    documents.addAndGet(segment.documents);
+                    indexedUpTo = Math.max(indexedUpTo, segment.maxOffset);
+                } catch (IOException e) {
+                    // 写出中断的段不完整，丢弃后从日志重建
+                    Log.warn("丢弃无效的索引段：" + file, e);
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        this.indexer = new Thread(this::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+    }
+
+    /**
+     * 启动索引线程。
+     *
+     * @param catchUp 在处理队列之前执行，用于从日志补建 {@link #indexedUpTo()} 之后的消息
+     */
+    void start(Runnable catchUp) {
+        queue.add(new Document(catchUp));
+        indexer.start();
+    }
+
+    /**
+     * @return 已写入索引的最大偏移量
+     */
+    long indexedUpTo() {
+        return indexedUpTo;
+    }
+
+    /**
+     * 提交一条聊天消息，队列已满时丢弃。正文在索引线程中取出，从载荷编码的消息不在广播线程上解码。
+     */
+    void submit(String room, Frame frame) {
+        if (!queue.offer(new Document(room, frame))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * @return 因队列已满而未索引的消息数
+     */
+    long droppedDocuments() {
+        return dropped.sum();
+    }
+
+    private void indexLoop() {
+        while (running || !queue.isEmpty()) {
+            try {
+                Document document = queue.poll(1, TimeUnit.SECONDS);
+                if (document == null) {
+                    continue;
+                }
+                if (document.catchUp != null) {
+                    document.catchUp.run();
+                } else {
+                    add(document.frame.sequence(), document.room, document.frame.content());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException | RuntimeException e) {
+                Log.error("写入搜索索引失败", e);
+            }
+        }
+    }
+
+    /**
+     * 写入一条消息，只由索引线程调用。偏移量不大于已索引位置的消息会被忽略。
+     */
+    void add(long offset, String room, String text) throws IOException {
+        if (offset <= indexedUpTo) {
+            return;
+        }
+        synchronized (this) {
+            for (String token : tokens(text)) {
+                String key = key(room, token);
+                Postings postings = memory.get(key);
+                if (postings == null) {
+                    postings = new Postings();
+                    memory.put(key, postings);
+                    memoryBytes += TERM_OVERHEAD + 2L * key.length();
+                }
+                postings.add(offset);
+                memoryBytes += POSTING_BYTES;
+            }
+        }
+        documents.incrementAndGet();
+        indexedUpTo = offset;
+        if (memoryBytes > memoryBudget) {
+            flush();
+        }
+    }
+
+    /**
+     * 把内存中的倒排表写出为段文件。写出期间新消息写入新的倒排表，搜索仍能读到正在写出的部分。
+     */
+    private void flush() throws IOException {
+        Map<String, Postings> frozen;
+        synchronized (this) {
+            frozen = memory;
+            flushing = frozen;
+            memory = new HashMap<>();
+            memoryBytes = 0;
+        }
+        Segment segment = Segment.write(dir, frozen);
+        synchronized (this) {
+            segments.add(segment);
+            flushing = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * 删除偏移量全部早于 offset 的段，日志中已不存在这些消息。
+     */
+    void retainFrom(long offset) {
+        for (Segment segment : segments) {
+            if (segment.maxOffset < offset) {
+                segments.remove(segment);
+                documents.addAndGet(-segment.documents);
+                try {
+                    Files.deleteIfExists(segment.file);
+                } catch (IOException e) {
+                    Log.error("无法删除索引段", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param limit 最多返回的结果数
+     * @return 命中消息的偏移量，按相关度从高到低排列
+     */
+    long[] search(String room, String query, int limit) {
+        List<String> terms = new ArrayList<>(tokens(query));
+        if (terms.isEmpty() || limit <= 0) {
+            return new long[0];
+        }
+        if (terms.size() > MAX_QUERY_TERMS) {
+            terms = terms.subList(0, MAX_QUERY_TERMS);
+        }
+        long[][] lists = new long[terms.size()][];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings(key(room, terms.get(i)));
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+        int required = lists.length <= 2 ? lists.length : (int) Math.ceil(lists.length * 0.75);
+        double total = Math.max(1, documents.get());
+        double[] weights = new double[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            weights[i] = Math.log(1 + total / (lists[i].length + 1));
+        }
+        // 命中的消息至少包含最稀有的 lists.length - required + 1 个词之一
+        Set<Long> candidates = new HashSet<>();
+        for (int i = 0; i <= lists.length - required; i++) {
+            for (long offset : lists[i]) {
+                candidates.add(offset);
+            }
+        }
+        PriorityQueue<Scored> top = new PriorityQueue<>();
+        for (long offset : candidates) {
+            int matched = 0;
+            double score = 0;
+            for (int i = 0; i < lists.length; i++) {
+                if (Arrays.binarySearch(lists[i], offset) >= 0) {
+                    matched++;
+                    score += weights[i];
+                }
+            }
+            if (matched < required) {
+                continue;
+            }
+            top.add(new Scored(offset, score));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        long[] result = new long[top.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = top.poll().offset;
+        }
+        return result;
+    }
+
+    /**
+     * @return 一个词在所有段与内存中的倒排表，按偏移量升序
+     */
+    private long[] postings(String key) {
+        List<long[]> parts = new ArrayList<>();
+        Postings frozen;
+        Postings current;
+        List<Segment> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(segments);
+            frozen = flushing.get(key);
+            current = memory.get(key);
+            if (current != null) {
+                current = current.copy();
+            }
+        }
+        // 各段的偏移量范围互不重叠且按写出顺序递增，依次拼接即为有序
+        for (Segment segment : snapshot) {
+            long[] part = segment.postings(key);
+            if (part != null) {
+                parts.add(part);
+            }
+        }
+        if (frozen != null) {
+            parts.add(frozen.toArray());
+        }
+        if (current != null) {
+            parts.add(current.toArray());
+        }
+        int length = 0;
+        for (long[] part : parts) {
+            length += part.length;
+        }
+        long[] result = new long[length];
+        int position = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+
+    private static String key(String room, String token) {
+        return room + '\u0000' + token;
+    }
+
+    /**
+     * 把文本切分为不重复的词。
+     */
+    static Set<String> tokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int codePoint = text.codePointAt(i);
+            if (isCjk(codePoint)) {
+                int start = i;
+                int previous = -1;
+                int count = 0;
+                while (i < length && isCjk(codePoint = text.codePointAt(i))) {
+                    if (previous >= 0) {
+                        tokens.add(new StringBuilder(4).appendCodePoint(previous).appendCodePoint(codePoint).toString());
+                    }
+                    previous = codePoint;
+                    count++;
+                    i += Character.charCount(codePoint);
+                }
+                if (count == 1) {
+                    tokens.add(text.substring(start, i));
+                }
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                StringBuilder word = new StringBuilder();
+                while (i < length && Character.isLetterOrDigit(codePoint = text.codePointAt(i))
+                        && !isCjk(codePoint)) {
+                    if (word.length() < MAX_WORD_LENGTH) {
+                        word.appendCodePoint(Character.toLowerCase(codePoint));
+                    }
+                    i += Character.charCount(codePoint);
+                }
+                tokens.add(word.toString());
+            } else {
+                i += Character.charCount(codePoint);
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (indexer.isAlive()) {
+            try {
+                indexer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 队列中的一条消息，或启动时补建索引的任务。
+     */
+    private static final class Document {
+        final String room;
+        final Frame frame;
+        final Runnable catchUp;
+
+        Document(String room, Frame frame) {
+            this.room = room;
+            this.frame = frame;
+            this.catchUp = null;
+        }
+
+        Document(Runnable catchUp) {
+            this.room = null;
+            this.frame = null;
+            this.catchUp = catchUp;
+        }
+    }
+
+    /**
+     * 一个词的倒排表，偏移量按写入顺序递增。
+     */
+    private static final class Postings {
+        long[] offsets = new long[2];
+        int size;
+
+        void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        Postings copy() {
+            Postings copy = new Postings();
+            copy.offsets = toArray();
+            copy.size = size;
+            return copy;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(offsets, size);
+        }
+    }
+
+    private static final class Scored implements Comparable<Scored> {
+        final long offset;
+        final double score;
+
+        Scored(long offset, double score) {
+            this.offset = offset;
+            this.score = score;
+        }
+
+        // 堆顶为最差的结果：分数较低，分数相同时较旧
+        @Override
+        public int compareTo(Scored other) {
+            int byScore = Double.compare(score, other.score);
+            return byScore != 0 ? byScore : Long.compare(offset, other.offset);
+        }
+    }
+
+    /**
+     * 写出到磁盘的只读索引段。
+     *
+     * <p>文件格式：文件头（魔数、词数、消息数、最小与最大偏移量、词表位置），
+     * 各词的倒排表（变长整数的数量、首个偏移量与之后的差值），以及按词排序的词表
+     * （带长度前缀的 UTF-8 词与倒排表位置）。先写入临时文件，完整写出后再改名。</p>
+     */
+    private static final class Segment {
+        final Path file;
+        final MappedByteBuffer buffer;
+        final int documents;
+        final long maxOffset;
+        // 稀疏词典：每隔 SPARSE_INTERVAL 个词记录一次词与它在词表中的位置
+        final String[] sparseTerms;
+        final int[] sparsePositions;
+
+        private Segment(Path file, MappedByteBuffer buffer) throws IOException {
+            this.file = file;
+            this.buffer = buffer;
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("索引段格式无效：" + file);
+            }
+            int termCount = buffer.getInt(4);
+            this.documents = buffer.getInt(8);
+            this.maxOffset = buffer.getLong(20);
+            int termsStart = (int) buffer.getLong(28);
+            int sparseCount = (termCount + SPARSE_INTERVAL - 1) / SPARSE_INTERVAL;
+            this.sparseTerms = new String[sparseCount];
+            this.sparsePositions = new int[sparseCount];
+            ByteBuffer terms = buffer.duplicate().position(termsStart);
+            for (int i = 0; i < termCount; i++) {
+                int position = terms.position();
+                String term = BinaryProtocol.getShortString(terms);
+                terms.getLong();
+                if (i % SPARSE_INTERVAL == 0) {
+                    sparseTerms[i / SPARSE_INTERVAL] = term;
+                    sparsePositions[i / SPARSE_INTERVAL] = position;
+                }
+            }
+        }
+
+        static Segment open(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return new Segment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (RuntimeException e) {
+                throw new IOException("索引段格式无效：" + file, e);
+            }
+        }
+
+        static Segment write(Path dir, Map<String, Postings> postings) throws IOException {
+            List<String> terms = new ArrayList<>(postings.keySet());
+            Collections.sort(terms);
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            Set<Long> distinct = new HashSet<>();
+            for (Postings list : postings.values()) {
+                min = Math.min(min, list.offsets[0]);
+                max = Math.max(max, list.offsets[list.size - 1]);
+                for (int i = 0; i < list.size; i++) {
+                    distinct.add(list.offsets[i]);
+                }
+            }
+            String name = String.format("%020d", min) + SUFFIX;
+            Path temp = dir.resolve(name + ".tmp");
+            int termsStart;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(terms.size());
+                out.writeInt(distinct.size());
+                out.writeLong(min);
+                out.writeLong(max);
+                // 词表位置在写完倒排表后回填
+                out.writeLong(0);
+                int[] positions = new int[terms.size()];
+                for (int i = 0; i < terms.size(); i++) {
+                    positions[i] = out.size();
+                    Postings list = postings.get(terms.get(i));
+                    writeVarLong(out, list.size);
+                    long previous = 0;
+                    for (int j = 0; j < list.size; j++) {
+                        writeVarLong(out, list.offsets[j] - previous);
+                        previous = list.offsets[j];
+                    }
+                }
+                termsStart = out.size();
+                for (int i = 0; i < terms.size(); i++) {
+                    byte[] term = terms.get(i).getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(term.length);
+                    out.write(term);
+                    out.writeLong(positions[i]);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(8).putLong(0, termsStart), 28);
+                channel.force(true);
+            }
+            Path file = dir.resolve(name);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return open(file);
+        }
+
+        /**
+         * @return 词的倒排表，段中没有该词时返回 null
+         */
+        long[] postings(String term) {
+            int index = Arrays.binarySearch(sparseTerms, term);
+            if (index < 0) {
+                index = -index - 2;
+                if (index < 0) {
+                    return null;
+                }
+            }
+            ByteBuffer terms = buffer.duplicate().position(sparsePositions[index]);
+            try {
+                for (int i = 0; i < SPARSE_INTERVAL && terms.hasRemaining(); i++) {
+                    int comparison = BinaryProtocol.getShortString(terms).compareTo(term);
+                    long position = terms.getLong();
+                    if (comparison == 0) {
+                        return decode(buffer.duplicate().position((int) position));
+                    }
+                    if (comparison > 0) {
+                        return null;
+                    }
+                }
+            } catch (ProtocolException e) {
+                // 打开时已读过全部词条，只有文件被外部修改时才会出现
+                Log.error("索引段已损坏：" + file, e);
+            }
+            return null;
+        }
+
+        private static long[] decode(ByteBuffer in) {
+            long[] offsets = new long[(int) readVarLong(in)];
+            long previous = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                previous += readVarLong(in);
+                offsets[i] = previous;
+            }
+            return offsets;
+        }
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.chatroom;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务器范围内共享的状态，由连接引擎传递给每个 ClientHandler。
+ */
+public class ServerContext {
+
+    private final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    private final MediaCache mediaCache;
+    private final AuthService authService;
+    private final MessageJournal journal;
+    private final ClusterRelay cluster;
+    private final PresenceTracker presence;
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final SessionRegistry sessions = SessionRegistry.fromSystemProperties();
+    private final ImageTranscoder transcoder;
+    private final RateLimiter rateLimiter;
+    private final Heartbeat heartbeat = Heartbeat.fromSystemProperties();
+    private volatile boolean draining;
+
+    /**
+     * 限流额度按系统属性配置，见 {@link RateLimiter#fromSystemProperties()}。
+     */
+    public ServerContext(MediaCache mediaCache, AuthService authService, MessageJournal journal,
+                         ClusterRelay cluster) {
+        this(mediaCache, authService, journal, cluster, RateLimiter.fromSystemProperties());
+    }
+
+    /**
+     * @param rateLimiter 已登录客户端的消息限流
+     */
+    ServerContext(MediaCache mediaCache, AuthService authService, MessageJournal journal, ClusterRelay cluster,
+                  RateLimiter rateLimiter) {
+        this.mediaCache = mediaCache;
+        this.authService = authService;
+        this.journal = journal;
+        this.cluster = cluster;
+        this.rateLimiter = rateLimiter;
+        this.presence = PresenceTracker.fromSystemProperties(clients, cluster);
+        this.transcoder = ImageTranscoder.fromSystemProperties(mediaCache);
+    }
+
+    /**
+     * @return 在线用户表，键为用户名
+     */
+    public ConcurrentHashMap<String, ClientHandler> clients() {
+        return clients;
+    }
+
+    public MediaCache mediaCache() {
+        return mediaCache;
+    }
+
+    public AuthService authService() {
+        return authService;
+    }
+
+    public PresenceTracker presence() {
+        return presence;
+    }
+
+    public MessageJournal journal() {
+        return journal;
+    }
+
+    public RoomRegistry rooms() {
+        return rooms;
+    }
+
+    public SessionRegistry sessions() {
+        return sessions;
+    }
+
+    public ClusterRelay cluster() {
+        return cluster;
+    }
+
+    ImageTranscoder transcoder() {
+        return transcoder;
+    }
+
+    RateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    Heartbeat heartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * @return 服务器正在停机排空，不再接受登录与会话恢复
+     */
+    boolean isDraining() {
+        return draining;
+    }
+
+    void startDraining() {
+        draining = true;
+    }
+}
@@ -0,0 +1,371 @@
+package com.example.chatroom;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * 服务器运行指标：连接数、收发消息数与速率、发送字节数、出站队列、广播扇出延迟、登录延迟与帧压缩。
+ *
+ * <p>计数器都是 {@link LongAdder}，延迟与队列长度记录到 {@link LatencyHistogram}，
+ * 热路径上只有无竞争的自增。统计线程定期调用 {@link #sample(long)} 计算速率与百分位数，
+ * 结果通过 JMX 与 {@link MetricsEndpoint} 的文本接口读取。</p>
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+    private static final LongAdder connectionsOpened = new LongAdder();
+    private static final LongAdder connectionsClosed = new LongAdder();
+    private static final LongAdder messagesIn = new LongAdder();
+    private static final LongAdder messagesOut = new LongAdder();
+    private static final LongAdder bytesSent = new LongAdder();
+    private static final LongAdder queuedBytes = new LongAdder();
+    private static final LongAdder droppedMessages = new LongAdder();
+    private static final LongAdder compressionIn = new LongAdder();
+    private static final LongAdder compressionOut = new LongAdder();
+    private static final LongAdder compressionNanos = new LongAdder();
+    private static final LongAdder throttledMessages = new LongAdder();
+    private static final LongAdder floodDisconnects = new LongAdder();
+    private static final LongAdder heartbeatTimeouts = new LongAdder();
+    private static final LongAdder userCacheHits = new LongAdder();
+    private static final LongAdder userCacheMisses = new LongAdder();
+    private static final LatencyHistogram fanoutNanos = new LatencyHistogram();
+    private static final LatencyHistogram authNanos = new LatencyHistogram();
+    private static final LatencyHistogram queueDepth = new LatencyHistogram();
+
+    // 最近一个统计周期的结果
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+    private volatile long[] fanout = new long[2];
+    private volatile long[] auth = new long[2];
+    private volatile long[] depth = new long[2];
+    private long lastSampleNanos = System.nanoTime();
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+
+    private ServerMetrics() {
+    }
+
+    static void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    static void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    static void messageIn() {
+        messagesIn.increment();
+    }
+
+    /**
+     * 一条消息进入某个客户端的出站队列。
+     *
+     * @param bytes 消息大小
+     * @param depth 入队后该客户端队列中的消息数
+     */
+    static void messageQueued(int bytes, int depth) {
+        messagesOut.increment();
+        queuedBytes.add(bytes);
+        queueDepth.record(depth);
+    }
+
+    static void messageDropped() {
+        droppedMessages.increment();
+    }
+
+    /**
+     * 出站数据已写入 socket。
+     */
+    static void bytesWritten(long bytes) {
+        bytesSent.add(bytes);
+        queuedBytes.add(-bytes);
+    }
+
+    /**
+     * 连接关闭时丢弃了尚未发送的数据。
+     */
+    static void bytesDiscarded(long bytes) {
+        queuedBytes.add(-bytes);
+    }
+
+    static void fanout(long nanos) {
+        fanoutNanos.record(nanos);
+    }
+
+    static void auth(long nanos) {
+        authNanos.record(nanos);
+    }
+
+    /**
+     * 压缩了一个帧，没有收益而按原样发送的帧压缩后字节数与压缩前相同。
+     */
+    static void compressed(int inputBytes, int outputBytes, long nanos) {
+        compressionIn.add(inputBytes);
+        compressionOut.add(outputBytes);
+        compressionNanos.add(nanos);
+    }
+
+    /**
+     * 一条消息因超出发送频率限制被丢弃。
+     */
+    static void messageThrottled() {
+        throttledMessages.increment();
+    }
+
+    /**
+     * 一个连接因持续超出发送频率限制被断开。
+     */
+    static void floodDisconnected() {
+        floodDisconnects.increment();
+    }
+
+    /**
+     * 一个连接因心跳超时被断开。
+     */
+    static void heartbeatTimedOut() {
+        heartbeatTimeouts.increment();
+    }
+
+    /**
+     * 登录时在 {@link UserDao} 的缓存中找到了用户。
+     */
+    static void userCacheHit() {
+        userCacheHits.increment();
+    }
+
+    /**
+     * 登录时 {@link UserDao} 的缓存中没有该用户或已过期，需要查询数据库。
+     */
+    static void userCacheMiss() {
+        userCacheMisses.increment();
+    }
+
+    /**
+     * 注册 JMX MBean。
+     */
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+                    new ObjectName("com.example.chatroom:type=ServerMetrics"));
+        } catch (JMException e) {
+            Log.warn("无法注册 JMX 指标", e);
+        }
+    }
+
+    public static ServerMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * 计算最近一个统计周期的速率与百分位数，只由统计线程调用。
+     *
+     * @param nowNanos 当前的 {@link System#nanoTime()}
+     */
+    public synchronized void sample(long nowNanos) {
+        double seconds = Math.max(1, nowNanos - lastSampleNanos) / 1e9;
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        messagesInPerSecond = (in - lastMessagesIn) / seconds;
+        messagesOutPerSecond = (out - lastMessagesOut) / seconds;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+        lastSampleNanos = nowNanos;
+        fanout = fanoutNanos.interval(50, 99);
+        auth = authNanos.interval(50, 99);
+        depth = queueDepth.interval(50, 99);
+    }
+
+    /**
+     * @return 单行的指标摘要，用于定期输出日志
+     */
+    public String report() {
+        return String.format(Locale.ROOT,
+                "connections=%d in/s=%.1f out/s=%.1f bytesSent=%d queuedBytes=%d dropped=%d"
+                        + " fanoutP50=%dus fanoutP99=%dus authP50=%dus authP99=%dus queueDepthP99=%d"
+                        + " compressionRatio=%.2f compressionCpu=%dms throttled=%d floodDisconnects=%d"
+                        + " heartbeatTimeouts=%d userCacheHits=%d userCacheMisses=%d",
+                getActiveConnections(), messagesInPerSecond, messagesOutPerSecond, getBytesSent(), getQueuedBytes(),
+                getDroppedMessages(), getFanoutLatencyP50Micros(), getFanoutLatencyP99Micros(),
+                getAuthLatencyP50Micros(), getAuthLatencyP99Micros(), getQueueDepthP99(),
+                getCompressionRatio(), getCompressionCpuMillis(), getThrottledMessages(), getFloodDisconnects(),
+                getHeartbeatTimeouts(), getUserCacheHits(), getUserCacheMisses());
+    }
+
+    /**
+     * @return Prometheus 文本格式的全部指标
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        gauge(out, "chat_connections_active", getActiveConnections());
+        counter(out, "chat_connections_opened_total", getConnectionsOpened());
+        counter(out, "chat_messages_in_total", getMessagesIn());
+        counter(out, "chat_messages_out_total", getMessagesOut());
+        gauge(out, "chat_messages_in_per_second", messagesInPerSecond);
+        gauge(out, "chat_messages_out_per_second", messagesOutPerSecond);
+        counter(out, "chat_bytes_sent_total", getBytesSent());
+        gauge(out, "chat_queued_bytes", getQueuedBytes());
+        counter(out, "chat_messages_dropped_total", getDroppedMessages());
+        gauge(out, "chat_fanout_latency_p50_microseconds", getFanoutLatencyP50Micros());
+        gauge(out, "chat_fanout_latency_p99_microseconds", getFanoutLatencyP99Micros());
+        gauge(out, "chat_auth_latency_p50_microseconds", getAuthLatencyP50Micros());
+        gauge(out, "chat_auth_latency_p99_microseconds", getAuthLatencyP99Micros());
+        gauge(out, "chat_queue_depth_p50", getQueueDepthP50());
+        gauge(out, "chat_queue_depth_p99", getQueueDepthP99());
+        counter(out, "chat_log_dropped_total", getDroppedLogEntries());
+        counter(out, "chat_compression_input_bytes_total", getCompressionInputBytes());
+        counter(out, "chat_compression_output_bytes_total", getCompressionOutputBytes());
+        gauge(out, "chat_compression_ratio", getCompressionRatio());
+        counter(out, "chat_compression_cpu_milliseconds_total", getCompressionCpuMillis());
+        counter(out, "chat_messages_throttled_total", getThrottledMessages());
+        counter(out, "chat_flood_disconnects_total", getFloodDisconnects());
+        counter(out, "chat_heartbeat_timeouts_total", getHeartbeatTimeouts());
+        counter(out, "chat_user_cache_hits_total", getUserCacheHits());
+        counter(out, "chat_user_cache_misses_total", getUserCacheMisses());
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, double value) {
+        out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ');
+        if (value == Math.rint(value)) {
+            out.append((long) value);
+        } else {
+            out.append(String.format(Locale.ROOT, "%.2f", value));
+        }
+        out.append('\n');
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    @Override
+    public long getFanoutLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(fanout[0]);
+    }
+
+    @Override
+    public long getFanoutLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(fanout[1]);
+    }
+
+    @Override
+    public long getAuthLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(auth[0]);
+    }
+
+    @Override
+    public long getAuthLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(auth[1]);
+    }
+
+    @Override
+    public long getQueueDepthP50() {
+        return depth[0];
+    }
+
+    @Override
+    public long getQueueDepthP99() {
+        return depth[1];
+    }
+
+    @Override
+    public long getDroppedLogEntries() {
+        return Log.droppedEntries();
+    }
+
+    @Override
+    public long getCompressionInputBytes() {
+        return compressionIn.sum();
+    }
+
+    @Override
+    public long getCompressionOutputBytes() {
+        return compressionOut.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long in = compressionIn.sum();
+        return in > 0 ? (double) compressionOut.sum() / in : 1;
+    }
+
+    @Override
+    public long getCompressionCpuMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compressionNanos.sum());
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return throttledMessages.sum();
+    }
+
+    @Override
+    public long getFloodDisconnects() {
+        return floodDisconnects.sum();
+    }
+
+    @Override
+    public long getHeartbeatTimeouts() {
+        return heartbeatTimeouts.sum();
+    }
+
+    @Override
+    public long getUserCacheHits() {
+        return userCacheHits.sum();
+    }
+
+    @Override
+    public long getUserCacheMisses() {
+        return userCacheMisses.sum();
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.chatroom;
+
+/**
+ * 通过 JMX 暴露的服务器指标，注册名为 {@code com.example.chatroom:type=ServerMetrics}。
+ * 速率与百分位数按最近一个统计周期计算，其余为启动以来的累计值或当前值。
+ */
+public interface ServerMetricsMXBean {
+
+    long getActiveConnections();
+
+    long getConnectionsOpened();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getBytesSent();
+
+    long getQueuedBytes();
+
+    long getDroppedMessages();
+
+    long getFanoutLatencyP50Micros();
+
+    long getFanoutLatencyP99Micros();
+
+    long getAuthLatencyP50Micros();
+
+    long getAuthLatencyP99Micros();
+
+    long getQueueDepthP50();
+
+    long getQueueDepthP99();
+
+    long getDroppedLogEntries();
+
+    long getCompressionInputBytes();
+
+    long getCompressionOutputBytes();
+
+    /**
+     * @return 压缩后与压缩前的字节数之比，未压缩过任何帧时为 1
+     */
+    double getCompressionRatio();
+
+    long getCompressionCpuMillis();
+
+    /**
+     * @return 因超出发送频率限制而丢弃的消息数
+     */
+    long getThrottledMessages();
+
+    long getFloodDisconnects();
+
+    long getHeartbeatTimeouts();
+
+    /**
+     * @return 登录查询用户时命中缓存的次数
+     */
+    long getUserCacheHits();
+
+    /**
+     * @return 登录查询用户时未命中缓存、需要访问数据库的次数
+     */
+    long getUserCacheMisses();
+}
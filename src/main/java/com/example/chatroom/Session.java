@@ -0,0 +1,147 @@
+package com.example.chatroom;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 二进制客户端登录后的会话，连接短暂断开后可以在宽限期内恢复。
+ *
+ * <p>会话建立后发给客户端的每一帧都隐式编号：服务器记录已发送的帧数，客户端记录已收到的帧数，
+ * 帧本身不携带序号。最近发送的帧保存在有界的重放缓冲区中（与广播共享内容，只是只读视图），
+ * 客户端恢复时报告已收到的帧数，服务器只重发缺失的部分。</p>
+ *
+ * <p>帧的记录与写入连接在同一把锁内完成，重放缓冲区中的顺序与客户端收到的顺序一致。</p>
+ */
+public final class Session {
+
+    private final String token;
+    private final ClientHandler owner;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ArrayDeque<ByteBuffer> replay = new ArrayDeque<>();
+    private long replayBytes;
+    // 已发送的帧数，重放缓冲区中最后一帧的编号
+    private long sent;
+    private Connection connection;
+    private long detachments;
+    private boolean closed;
+
+    Session(String token, ClientHandler owner, Connection connection, int maxMessages, long maxBytes) {
+        this.token = token;
+        this.owner = owner;
+        this.connection = connection;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    public String token() {
+        return token;
+    }
+
+    /**
+     * @return 会话所属的处理器，恢复后新连接上的消息都交给它处理
+     */
+    public ClientHandler owner() {
+        return owner;
+    }
+
+    /**
+     * @return 会话当前所在的连接，断开期间为 null
+     */
+    synchronized Connection connection() {
+        return connection;
+    }
+
+    /**
+     * 记录并发送一帧。连接断开期间只记录，恢复后再重发；被慢消费者策略丢弃的帧客户端不会收到，不计入编号也不记录。
+     */
+    public synchronized void send(ByteBuffer data) {
+        if (closed) {
+            return;
+        }
+        // 入队后写线程会移动 data 的读位置，先取得副本
+        ByteBuffer copy = data.duplicate();
+        if (connection != null && !connection.send(data)) {
+            return;
+        }
+        sent++;
+        replay.addLast(copy);
+        replayBytes += copy.remaining();
+        // 超出上限时淘汰最早的帧，淘汰过多的客户端无法恢复
+        while (replay.size() > maxMessages || replayBytes > maxBytes) {
+            replayBytes -= replay.removeFirst().remaining();
+        }
+    }
+
+    /**
+     * 连接断开，会话进入宽限期。
+     *
+     * @param lost 断开的连接
+     * @return 本次断开的编号，宽限期结束时凭此判断期间是否恢复过；
+     *         断开的连接已被新连接取代时返回 0，会话已关闭时返回 -1
+     */
+    synchronized long detach(Connection lost) {
+        if (closed) {
+            return -1;
+        }
+        if (connection != lost) {
+            return 0;
+        }
+        connection = null;
+        return ++detachments;
+    }
+
+    /**
+     * 宽限期结束：若期间没有恢复则关闭会话。
+     *
+     * @param detachment {@link #detach} 返回的编号
+     * @return 会话因此关闭时返回 true
+     */
+    synchronized boolean expire(long detachment) {
+        if (closed || connection != null || detachments != detachment) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * 在新连接上恢复会话：先发送确认，再重发客户端未收到的帧。
+     *
+     * @param received 客户端已收到的帧数
+     * @param ack      恢复成功的确认帧，不计入编号
+     * @return 会话已关闭或缺失的帧已被淘汰时返回 false
+     */
+    synchronized boolean resume(Connection replacement, long received, ByteBuffer ack) {
+        long first = sent - replay.size() + 1;
+        if (closed || received > sent || received + 1 < first) {
+            return false;
+        }
+        Connection previous = connection;
+        connection = replacement;
+        replacement.send(ack);
+        long number = first;
+        for (ByteBuffer data : replay) {
+            if (number++ > received && !replacement.send(data.duplicate())) {
+                // 重发的帧被丢弃后客户端的编号无法再与服务器对齐，结束会话，客户端需要重新登录
+                close();
+                replacement.close();
+                break;
+            }
+        }
+        if (previous != null) {
+            // 旧连接半开时由新连接接管
+            previous.close();
+        }
+        return true;
+    }
+
+    /**
+     * 关闭会话，之后无法恢复。
+     */
+    synchronized void close() {
+        closed = true;
+        replay.clear();
+        replayBytes = 0;
+    }
+}
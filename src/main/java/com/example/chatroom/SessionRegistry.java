@@ -0,0 +1,105 @@
+package com.example.chatroom;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可恢复会话的注册表。连接断开后会话保留一个宽限期，期间用户仍在线、仍在房间中，
+ * 发给它的帧进入重放缓冲区；宽限期内用令牌恢复时没有下线与上线的广播，
+ * 宽限期结束仍未恢复才真正下线。
+ */
+public class SessionRegistry {
+
+    public static final int TOKEN_SIZE = 16;
+    private static final long DEFAULT_GRACE_MILLIS = 30_000;
+    private static final int DEFAULT_REPLAY_MESSAGES = 1024;
+    private static final long DEFAULT_REPLAY_BYTES = 512 * 1024;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long graceMillis;
+    private final int replayMessages;
+    private final long replayBytes;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param graceMillis    断开后保留会话的时间
+     * @param replayMessages 每个会话重放缓冲区的帧数上限
+     * @param replayBytes    每个会话重放缓冲区的字节数上限
+     */
+    public SessionRegistry(long graceMillis, int replayMessages, long replayBytes) {
+        this.graceMillis = graceMillis;
+        this.replayMessages = replayMessages;
+        this.replayBytes = replayBytes;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 按系统属性 chat.session.graceMillis、chat.session.replayMessages 与 chat.session.replayBytes 创建。
+     */
+    public static SessionRegistry fromSystemProperties() {
+        return new SessionRegistry(
+                Long.getLong("chat.session.graceMillis", DEFAULT_GRACE_MILLIS),
+                Integer.getInteger("chat.session.replayMessages", DEFAULT_REPLAY_MESSAGES),
+                Long.getLong("chat.session.replayBytes", DEFAULT_REPLAY_BYTES));
+    }
+
+    /**
+     * 为登录成功的客户端创建会话。
+     */
+    public Session open(ClientHandler owner, Connection connection) {
+        byte[] token = new byte[TOKEN_SIZE];
+        random.nextBytes(token);
+        Session session = new Session(HexFormat.of().formatHex(token), owner, connection,
+                replayMessages, replayBytes);
+        sessions.put(session.token(), session);
+        return session;
+    }
+
+    /**
+     * 连接断开。会话已关闭时立即执行 offline，否则在宽限期结束且期间未恢复时执行。
+     */
+    public void detach(Session session, Connection lost, Runnable offline) {
+        long detachment = session.detach(lost);
+        if (detachment < 0) {
+            sessions.remove(session.token(), session);
+            offline.run();
+        } else if (detachment > 0) {
+            scheduler.schedule(() -> {
+                if (session.expire(detachment)) {
+                    sessions.remove(session.token(), session);
+                    offline.run();
+                }
+            }, graceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 在新连接上恢复会话。
+     *
+     * @param received 客户端已收到的帧数
+     * @param ack      恢复成功的确认帧
+     * @return 恢复的会话，令牌无效、会话已过期或缺失的帧已被淘汰时返回 null
+     */
+    public Session resume(byte[] token, long received, Connection replacement, ByteBuffer ack) {
+        Session session = sessions.get(HexFormat.of().formatHex(token));
+        return session != null && session.resume(replacement, received, ack) ? session : null;
+    }
+
+    /**
+     * 客户端主动退出，会话不再可恢复。
+     */
+    public void close(Session session) {
+        session.close();
+        sessions.remove(session.token(), session);
+    }
+}
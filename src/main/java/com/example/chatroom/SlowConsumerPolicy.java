@@ -0,0 +1,23 @@
+package com.example.chatroom;
+
+import java.util.Locale;
+
+/**
+ * 客户端出站队列写满（对端读取过慢）时的处理策略。
+ */
+public enum SlowConsumerPolicy {
+    /** 丢弃新消息，连接保持不变 */
+    DROP,
+    /** 断开该客户端 */
+    DISCONNECT,
+    /** 溢出部分写入临时文件，待客户端赶上后再发送 */
+    SPILL;
+
+    /**
+     * 从系统属性 chat.outbound.policy 读取策略，默认为 DISCONNECT。
+     */
+    public static SlowConsumerPolicy fromSystemProperty() {
+        String value = System.getProperty("chat.outbound.policy", DISCONNECT.name());
+        return valueOf(value.toUpperCase(Locale.ROOT));
+    }
+}
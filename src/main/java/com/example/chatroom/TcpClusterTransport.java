@@ -0,0 +1,335 @@
+package com.example.chatroom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 基于 TCP 的节点间链路。
+ *
+ * <ul>
+ *   <li>每个节点在配置的地址上监听一个集群端口，并主动连接配置中的节点，断开后定期重连；</li>
+ *   <li>连接建立后双方先交换节点标识与随机数，配置了共享密钥时再互相发送对方随机数的 HMAC-SHA256，
+ *       校验失败的连接直接关闭，之后每个批次编码为 4 字节长度加内容；</li>
+ *   <li>两个节点互相配置时同时连接会建立两条链路，双方都保留由标识较小的一方发起的那条；
+ *       与某节点已有链路时不再连接它，链路断开后标识较大的一方多等一个重连间隔，通常由标识较小的一方重新发起；</li>
+ *   <li>每条链路有独立的写线程与有界队列，慢节点不会阻塞向其他节点的转发，队列满时丢弃批次。</li>
+ * </ul>
+ */
+public class TcpClusterTransport implements ClusterTransport {
+
+    private static final long RECONNECT_MILLIS = 2000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_BATCH_BYTES = 64 * 1024 * 1024;
+    private static final int SEND_QUEUE_CAPACITY = 1024;
+    private static final int NONCE_SIZE = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final String nodeId;
+    private final InetAddress bindAddress;
+    private final int port;
+    private final byte[] secret;
+    private final List<InetSocketAddress> peers;
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private volatile Listener listener;
+    private volatile boolean running = true;
+    private final SecureRandom random = new SecureRandom();
+    private ServerSocket serverSocket;
+
+    /**
+     * @param nodeId      本节点标识，集群内唯一
+     * @param bindAddress 集群端口绑定的地址
+     * @param port        节点间的监听端口
+     * @param peers       主动连接的节点地址
+     * @param secret      节点间的共享密钥，为 null 时不校验对方身份
+     */
+    public TcpClusterTransport(String nodeId, InetAddress bindAddress, int port, List<InetSocketAddress> peers,
+                               byte[] secret) {
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.peers = peers;
+        this.secret = secret;
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        serverSocket = new ServerSocket(port, 0, bindAddress);
+        daemon(this::acceptLoop, "cluster-acceptor").start();
+        for (InetSocketAddress peer : peers) {
+            daemon(() -> dialLoop(peer), "cluster-dial-" + peer.getHostString() + ":" + peer.getPort()).start();
+        }
+        Log.info("集群节点 " + nodeId + " 监听地址：" + bindAddress.getHostAddress() + ":" + port
+                + "，连接节点：" + peers + (secret == null ? "，未配置共享密钥" : ""));
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                daemon(() -> {
+                    try (socket) {
+                        Link link = handshake(socket, false);
+                        if (link != null) {
+                            run(link);
+                        }
+                    } catch (IOException e) {
+                        // 握手失败或链路断开
+                    }
+                }, "cluster-link").start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("集群端口接受连接失败", e);
+                }
+            }
+        }
+    }
+
+    private void dialLoop(InetSocketAddress address) {
+        // 该地址上节点的标识，第一次握手后得知
+        String peer = null;
+        while (running) {
+            // 已有链路（可能由对方发起）时不再连接，避免双方反复建立又被拒绝的链路
+            if (peer == null || !links.containsKey(peer)) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                            CONNECT_TIMEOUT_MILLIS);
+                    Link link = handshake(socket, true);
+                    if (link != null) {
+                        peer = link.peer;
+                        run(link);
+                    }
+                } catch (IOException e) {
+                    // 对方未启动、握手失败或链路断开，稍后重连
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+                if (peer != null && nodeId.compareTo(peer) > 0) {
+                    // 标识较大的一方多等一个间隔，让对方先发起
+                    Thread.sleep(RECONNECT_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 交换节点标识与随机数，配置了共享密钥时校验对方的 HMAC。
+     *
+     * @param outbound 是否由本节点发起
+     * @return 握手成功时返回新链路，对方是本节点自身时返回 null
+     */
+    private Link handshake(Socket socket, boolean outbound) throws IOException {
+        socket.setTcpNoDelay(true);
+        // 握手阶段限制等待时间，未完成握手的连接不会一直占用线程
+        socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        output.writeUTF(nodeId);
+        output.write(nonce);
+        output.flush();
+        String peer = input.readUTF();
+        byte[] peerNonce = new byte[NONCE_SIZE];
+        input.readFully(peerNonce);
+        if (peer.equals(nodeId)) {
+            return null;
+        }
+        if (secret != null) {
+            output.write(mac(nodeId, peerNonce));
+            output.flush();
+            byte[] expected = mac(peer, nonce);
+            byte[] proof = new byte[expected.length];
+            input.readFully(proof);
+            if (!MessageDigest.isEqual(proof, expected)) {
+                Log.warn("集群节点 " + peer + " 身份校验失败：" + socket.getRemoteSocketAddress());
+                return null;
+            }
+        }
+        socket.setSoTimeout(0);
+        return new Link(peer, socket, input, output, outbound ? nodeId : peer);
+    }
+
+    /**
+     * @return 用共享密钥对节点标识与随机数计算的 HMAC
+     */
+    private byte[] mac(String node, byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            mac.update(node.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC 不可用", e);
+        }
+    }
+
+    /**
+     * 在当前线程中读取对方发来的批次，直到链路断开。
+     */
+    private void run(Link link) throws IOException {
+        if (!register(link)) {
+            return;
+        }
+        String peer = link.peer;
+        try {
+            link.writer.start();
+            listener.peerUp(peer);
+            while (true) {
+                int length = link.input.readInt();
+                if (length < 0 || length > MAX_BATCH_BYTES) {
+                    throw new IOException("集群批次过大：" + length);
+                }
+                byte[] batch = new byte[length];
+                link.input.readFully(batch);
+                listener.received(peer, ByteBuffer.wrap(batch));
+            }
+        } finally {
+            link.close();
+            if (links.remove(peer, link)) {
+                listener.peerDown(peer);
+            }
+        }
+    }
+
+    /**
+     * 登记新链路。与同一节点已有链路时保留由标识较小的一方发起的链路，发起方相同时新链路取代旧链路。
+     *
+     * @return 新链路是否被保留
+     */
+    private synchronized boolean register(Link link) {
+        Link existing = links.get(link.peer);
+        if (existing != null && existing.dialer.compareTo(link.dialer) < 0) {
+            return false;
+        }
+        links.put(link.peer, link);
+        if (existing != null) {
+            existing.close();
+        }
+        return true;
+    }
+
+    @Override
+    public void send(String peer, ByteBuffer batch) {
+        Link link = links.get(peer);
+        if (link != null) {
+            link.send(batch);
+        }
+    }
+
+    /**
+     * @return 因写队列已满而丢弃的批次数
+     */
+    public long droppedBatches() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            Log.error("无法关闭集群端口", e);
+        }
+        links.values().forEach(Link::close);
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private final class Link {
+        final String peer;
+        final Socket socket;
+        final DataInputStream input;
+        final DataOutputStream output;
+        // 发起该链路的节点
+        final String dialer;
+        final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(SEND_QUEUE_CAPACITY);
+        final Thread writer;
+
+        Link(String peer, Socket socket, DataInputStream input, DataOutputStream output, String dialer) {
+            this.peer = peer;
+            this.socket = socket;
+            this.input = input;
+            this.output = output;
+            this.dialer = dialer;
+            this.writer = daemon(this::writeLoop, "cluster-writer-" + peer);
+        }
+
+        void send(ByteBuffer batch) {
+            if (!queue.offer(batch)) {
+                dropped.increment();
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                while (true) {
+                    ByteBuffer batch = queue.take();
+                    output.writeInt(batch.remaining());
+                    if (batch.hasArray()) {
+                        output.write(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+                    } else {
+                        byte[] bytes = new byte[batch.remaining()];
+                        batch.duplicate().get(bytes);
+                        output.write(bytes);
+                    }
+                    // 队列中还有批次时合并写入
+                    if (queue.isEmpty()) {
+                        output.flush();
+                    }
+                }
+            } catch (InterruptedException | SocketException e) {
+                // 链路关闭
+            } catch (IOException e) {
+                Log.warn("向集群节点 " + peer + " 发送失败", e);
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.error("无法关闭集群链路", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.chatroom;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 哈希时间轮：大量精度要求不高的超时共用一个线程与一个环形数组。
+ *
+ * <p>时间按固定的 tick 推进，超时按到期的 tick 放入对应的槽，每个 tick 只处理一个槽，
+ * 到期时间超过一圈的超时在槽中多停留几圈。添加与取消都是 O(1)：添加先进入无锁队列，由时间轮线程在下一个 tick 放入槽中；
+ * 取消只做标记，轮到该槽时丢弃。与每个超时一个 {@link java.util.concurrent.ScheduledExecutorService}
+ * 任务相比，没有堆的 O(log n) 维护，也没有取消后残留在堆中的任务。</p>
+ *
+ * <p>到期的任务在时间轮线程中执行，必须很快返回，耗时的工作应转交给其他线程。</p>
+ */
+final class TimerWheel implements AutoCloseable {
+
+    /**
+     * 一个已添加的超时。
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] slots;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startNanos = System.nanoTime();
+    // 已经过的 tick 数，只由时间轮线程写入
+    private volatile long tick;
+    private volatile boolean running = true;
+
+    /**
+     * @param name       线程名
+     * @param tickMillis 每个 tick 的时长，即超时的精度
+     * @param wheelSize  槽数，向上取整为 2 的幂
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.slots = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 在 delayMillis 之后执行任务，实际时间向上取整到 tick，可从任意线程调用。
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(task, tick + ticks);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return 时间轮启动以来的毫秒数，精度为一个 tick，读取开销只有一次 volatile 读
+     */
+    long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tick * tickNanos);
+    }
+
+    private void run() {
+        while (running) {
+            long next = startNanos + (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long current = tick + 1;
+            tick = current;
+            transferPending(current);
+            expire(slots[(int) (current & mask)], current);
+        }
+    }
+
+    private void transferPending(long current) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (!timeout.cancelled) {
+                // 添加时已经过的 tick 在当前槽中立即处理
+                slots[(int) (Math.max(timeout.deadline, current) & mask)].add(timeout);
+            }
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> slot, long current) {
+        for (int n = slot.size(); n > 0; n--) {
+            Timeout timeout = slot.poll();
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.deadline > current) {
+                // 还有若干圈才到期
+                slot.add(timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                Log.error("定时任务执行失败", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+}
@@ -1,19 +1,74 @@
 package com.example.chatroom;
 
-import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 数据库操作类，提供通过用户名获取用户的功能。
+ *
+ * <p>数据库连接来自连接池并复用预编译语句；查询结果缓存在一个有界的 LRU 缓存中，
+ * 条目超过存活时间后失效，因此服务器重启后的集中登录不会对每次登录都访问数据库。
+ * 查询不到的用户也会以较短的存活时间缓存，避免重复查询不存在的用户。</p>
  */
-public class UserDao {
+public class UserDao implements AutoCloseable {
+
+    private static final String DB_URL = System.getProperty("chat.db.url",
+            "jdbc:mysql://localhost:3306/java_homework?serverTimezone=Asia/Shanghai&verifyServerCertificate=false&useSSL=false");
+    private static final String DB_USER = System.getProperty("chat.db.user", "root");
+    private static final String DB_PASSWORD = System.getProperty("chat.db.password", "root");
+
+    private static final String QUERY_BY_NAME = "SELECT id, username, password FROM users WHERE username = ?";
+    private static final String UPDATE_PASSWORD = "UPDATE users SET password = ? WHERE username = ?";
+
+    private static final int DEFAULT_POOL_SIZE = 8;
+    private static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 5_000;
+    private static final int DEFAULT_CACHE_SIZE = 10_000;
+    private static final long DEFAULT_CACHE_TTL_MILLIS = 5 * 60_000;
+    private static final long DEFAULT_NEGATIVE_TTL_MILLIS = 5_000;
+
+    private final ConnectionPool pool;
+    private final int cacheSize;
+    private final long cacheTtlMillis;
+    private final long negativeTtlMillis;
+    private final LinkedHashMap<String, CachedUser> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
 
-    private static final String DB_URL = "jdbc:mysql://localhost:3306/java_homework?serverTimezone=Asia/Shanghai&verifyServerCertificate=false&useSSL=false";
-    private static final String DB_USER = "root";
-    private static final String DB_PASSWORD = "root";
+    /**
+     * 使用默认的 MySQL 配置创建，连接在第一次查询时才建立。
+     * 系统属性 chat.db.url、chat.db.user 与 chat.db.password 可以覆盖默认的地址与账号。
+     */
+    public UserDao() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * 使用默认的 MySQL 配置创建。
+     *
+     * @param poolSize 连接池大小
+     */
+    public UserDao(int poolSize) {
+        this(new ConnectionPool(() -> DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD),
+                        poolSize, DEFAULT_BORROW_TIMEOUT_MILLIS),
+                DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    /**
+     * @param pool              数据库连接池，可以指向任意 JDBC 实现（如内存数据库）
+     * @param cacheSize         用户缓存的条目上限
+     * @param cacheTtlMillis    查询到的用户在缓存中的存活时间
+     * @param negativeTtlMillis 查询不到的用户在缓存中的存活时间
+     */
+    public UserDao(ConnectionPool pool, int cacheSize, long cacheTtlMillis, long negativeTtlMillis) {
+        this.pool = pool;
+        this.cacheSize = cacheSize;
+        this.cacheTtlMillis = cacheTtlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
 
     /**
      * 根据用户名获取用户信息。
@@ -23,34 +78,115 @@ public class UserDao {
      * @throws SQLException 如果与数据库交互时发生错误
      */
     public User getUserByName(String username) throws SQLException {
-        // SQL查询语句
-        String query = "SELECT id, username, password FROM users WHERE username = ?";
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            CachedUser cached = cache.get(username);
+            if (cached != null && cached.expiresAt > now) {
+                cacheHits.increment();
+                ServerMetrics.userCacheHit();
+                return cached.copy();
+            }
+        }
+        cacheMisses.increment();
+        ServerMetrics.userCacheMiss();
+
+        User user = queryUserByName(username);
+        synchronized (cache) {
+            cache.put(username, new CachedUser(user, now + (user != null ? cacheTtlMillis : negativeTtlMillis)));
+            if (cache.size() > cacheSize) {
+                // 淘汰最久未访问的条目
+                cache.remove(cache.keySet().iterator().next());
+            }
+        }
+        return user == null ? null : new User(user.getId(), user.getUsername(), user.getPassword());
+    }
+
+    /**
+     * 更新用户的密码（应为 {@link PasswordHasher#hash(String)} 的结果），并使缓存失效。
+     *
+     * @throws SQLException 如果与数据库交互时发生错误
+     */
+    public void updatePassword(String username, String storedPassword) throws SQLException {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement pstmt = conn.prepare(UPDATE_PASSWORD);
+                pstmt.setString(1, storedPassword);
+                pstmt.setString(2, username);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                conn.markBroken();
+                throw e;
+            }
+        } finally {
+            invalidate(username);
+        }
+    }
 
-        // 使用try-with-resources确保资源自动关闭
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
+    /**
+     * 使缓存中的用户失效，例如修改密码之后。
+     */
+    public void invalidate(String username) {
+        synchronized (cache) {
+            cache.remove(username);
+        }
+    }
 
-            // 设置参数值
-            pstmt.setString(1, username);
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
 
-            // 执行查询
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    // 创建User对象并设置其属性
-                    return new User(rs.getLong("id"), rs.getString("username"), rs.getString("password"));
+    public long cacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    private User queryUserByName(String username) throws SQLException {
+        // 从连接池借用连接，语句由连接缓存复用
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement pstmt = conn.prepare(QUERY_BY_NAME);
+
+                // 设置参数值
+                pstmt.setString(1, username);
+
+                // 执行查询
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        // 创建User对象并设置其属性
+                        return new User(rs.getLong("id"), rs.getString("username"), rs.getString("password"));
+                    }
                 }
-            }
-            catch (Exception e){
-                System.out.println(e.getMessage());
+            } catch (SQLException e) {
+                // 出错的连接不再放回池中
+                conn.markBroken();
+                throw e;
             }
         }
-        catch (Exception e){
-            System.out.println(e.getMessage());
-        }
         // 如果没有找到匹配的记录，则返回null
         return null;
     }
 
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * 缓存条目，user 为 null 表示用户不存在。缓存中保存的是副本，调用方修改返回值不会影响缓存。
+     */
+    private static final class CachedUser {
+        private final User user;
+        private final long expiresAt;
+
+        CachedUser(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+
+        User copy() {
+            return user == null ? null : new User(user.getId(), user.getUsername(), user.getPassword());
+        }
+    }
+
     // 假设有一个User类用于表示用户实体
     public static class User {
         private long id;
@@ -0,0 +1,219 @@
+package com.example.chatroom;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于 Java 21 虚拟线程的连接引擎：保留阻塞式读写的编程模型，
+ * 但每个客户端只占用一个虚拟线程，不再消耗平台线程栈。
+ */
+public class VirtualThreadConnectionEngine implements ConnectionEngine {
+
+    private static final int BACKLOG = 1024;
+    // 每条连接的读缓冲区，保持较小以控制大量空闲连接时的堆占用
+    private static final int READ_BUFFER_SIZE = 2048;
+
+    private final ServerContext context;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    public VirtualThreadConnectionEngine(ServerContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public void start(int port) throws IOException {
+        serverChannel = ConnectionEngine.bind(port, BACKLOG);
+
+        Thread.Builder builder = Thread.ofVirtual().name("client-", 0);
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = ConnectionEngine.accept(serverChannel);
+            } catch (ClosedChannelException e) {
+                break;
+            }
+            if (channel == null) {
+                continue;
+            }
+            ServerMetrics.connectionOpened();
+            context.heartbeat().enableKeepAlive(channel);
+            builder.start(() -> serve(channel));
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        BlockingConnection connection = new BlockingConnection(channel);
+        ClientHandler handler = new ClientHandler(connection, context);
+        InboundDecoder decoder = new InboundDecoder(handler);
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+            while (channel.read(buffer.clear()) >= 0) {
+                buffer.flip();
+                // 解码时持有处理锁，与异步任务的回调互斥
+                connection.handlerLock.lock();
+                try {
+                    if (!decoder.decode(buffer)) {
+                        break;
+                    }
+                } finally {
+                    connection.handlerLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            // 连接被对端重置或已关闭
+        } finally {
+            connection.execute(handler::disconnect);
+        }
+    }
+
+    @Override
+    public void stopAccepting() throws IOException {
+        running = false;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopAccepting();
+    }
+
+    /**
+     * 阻塞式连接：广播线程只将消息放入出站队列，
+     * 由每个连接独立的写线程（同样是虚拟线程）批量取出并阻塞写出。
+     *
+     * <p>异步任务与 NIO 引擎一样只入队，不在调用方的线程中执行：调用方可能持有其他连接的处理锁，
+     * 就地执行会在两个互相广播的连接之间形成锁顺序死锁。任务由按需启动的任务线程依次执行，
+     * 写线程阻塞在缓慢的客户端上时心跳超时等任务仍能执行。读线程与任务线程通过 handlerLock 串行地调用 ClientHandler。</p>
+     */
+    private static final class BlockingConnection implements Connection {
+
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private final String remoteHost;
+        private final ReentrantLock handlerLock = new ReentrantLock();
+        private final OutboundQueue outbound = OutboundQueue.fromSystemProperties();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // 任务线程已启动，尚未取完队列中的任务
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        BlockingConnection(SocketChannel channel) {
+            this.channel = channel;
+            SocketAddress address;
+            try {
+                address = channel.getRemoteAddress();
+            } catch (IOException e) {
+                address = null;
+            }
+            this.remoteAddress = String.valueOf(address);
+            this.remoteHost = address instanceof InetSocketAddress inet ? inet.getHostString() : "unknown";
+            Thread.ofVirtual().name("writer-" + remoteAddress).start(this::writeLoop);
+        }
+
+        @Override
+        public boolean send(ByteBuffer data) {
+            if (closed.get()) {
+                return true;
+            }
+            switch (outbound.offer(data)) {
+                case OVERFLOW:
+                    // 关闭通道后读线程会收到异常并执行断开流程
+                    close();
+                    return true;
+                case DROPPED:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
+        private void writeLoop() {
+            ByteBuffer[] batch = new ByteBuffer[OutboundQueue.MAX_BATCH];
+            try {
+                // 关闭连接时清空队列，等待随之返回
+                while (outbound.awaitNotEmpty()) {
+                    int count;
+                    while ((count = outbound.fill(batch)) > 0) {
+                        long written = 0;
+                        while (batch[count - 1].hasRemaining()) {
+                            written += channel.write(batch, 0, count);
+                        }
+                        outbound.consumed(written);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public boolean awaitDrain(long bytes, Runnable task) {
+            return outbound.awaitDrain(bytes, task);
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            outbound.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("关闭连接失败：" + remoteAddress, e);
+            }
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (draining.compareAndSet(false, true)) {
+                Thread.ofVirtual().name("tasks-" + remoteAddress).start(this::runTasks);
+            }
+        }
+
+        private void runTasks() {
+            do {
+                handlerLock.lock();
+                try {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            Log.error("连接任务执行失败：" + remoteAddress, e);
+                        }
+                    }
+                } finally {
+                    handlerLock.unlock();
+                }
+                draining.set(false);
+                // 释放标记后入队的任务可能没有启动新的任务线程，由本线程继续执行
+            } while (!tasks.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        @Override
+        public String remoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String remoteHost() {
+            return remoteHost;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.chatroom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 使用 H2 内存数据库测试 {@link AuthService} 的登录结果。
+ */
+class AuthServiceTest {
+
+    private static final String URL = "jdbc:h2:mem:auth;DB_CLOSE_DELAY=-1";
+
+    private AuthService auth;
+
+    @BeforeEach
+    void createTable() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(URL);
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS users");
+            statement.execute("CREATE TABLE users (id BIGINT PRIMARY KEY, username VARCHAR(64), password VARCHAR(255))");
+            statement.execute("INSERT INTO users VALUES (1, 'alice', '" + PasswordHasher.hash("secret") + "')");
+        }
+    }
+
+    @AfterEach
+    void close() {
+        if (auth != null) {
+            auth.close();
+        }
+    }
+
+    private static AuthService auth(ConnectionPool.ConnectionFactory factory, boolean allowGuests) {
+        UserDao dao = new UserDao(new ConnectionPool(factory, 2, 1_000), 16, 60_000, 60_000);
+        return new AuthService(dao, 2, 16, new LoginRateLimiter(100, 100, 60_000), allowGuests);
+    }
+
+    private LoginStatus login(String username, String password) throws Exception {
+        CompletableFuture<LoginStatus> result = new CompletableFuture<>();
+        auth.authenticate(username, password, "127.0.0.1", result::complete);
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void unknownUserAndWrongPasswordGetTheSameResult() throws Exception {
+        auth = auth(() -> DriverManager.getConnection(URL), false);
+        assertEquals(LoginStatus.OK, login("alice", "secret"));
+        assertEquals(LoginStatus.BAD_CREDENTIALS, login("alice", "wrong"));
+        assertEquals(LoginStatus.BAD_CREDENTIALS, login("mallory", "wrong"));
+    }
+
+    @Test
+    void guestsAreRejectedByDefault() throws Exception {
+        auth = auth(() -> DriverManager.getConnection(URL), false);
+        assertEquals(LoginStatus.GUESTS_DISABLED, login("bob", null));
+    }
+
+    @Test
+    void guestCannotUseRegisteredName() throws Exception {
+        auth = auth(() -> DriverManager.getConnection(URL), true);
+        assertEquals(LoginStatus.BAD_CREDENTIALS, login("alice", null));
+        assertEquals(LoginStatus.OK, login("bob", null));
+    }
+
+    @Test
+    void unexpectedExceptionCompletesWithError() throws Exception {
+        auth = auth(() -> {
+            throw new IllegalStateException("驱动异常");
+        }, true);
+        assertEquals(LoginStatus.ERROR, login("alice", "secret"));
+        assertEquals(LoginStatus.ERROR, login("bob", null));
+    }
+}
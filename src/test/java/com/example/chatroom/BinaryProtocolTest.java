@@ -0,0 +1,49 @@
+package com.example.chatroom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 测试 {@link BinaryProtocol} 对格式错误的载荷的检查。
+ */
+class BinaryProtocolTest {
+
+    @Test
+    void readsShortString() throws ProtocolException {
+        byte[] utf8 = "你好".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = BinaryProtocol.putShortString(ByteBuffer.allocate(16), utf8).putInt(42).flip();
+        assertEquals("你好", BinaryProtocol.getShortString(buffer));
+        assertEquals(42, buffer.getInt());
+    }
+
+    @Test
+    void shortStringLongerThanPayloadIsRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(5).putShort((short) 10).put(new byte[3]).flip();
+        assertThrows(ProtocolException.class, () -> BinaryProtocol.getShortString(buffer));
+    }
+
+    @Test
+    void missingLengthPrefixIsRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(1).put((byte) 1).flip();
+        assertThrows(ProtocolException.class, () -> BinaryProtocol.getShortString(buffer));
+    }
+
+    @Test
+    void requireRemainingChecksFixedFields() throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(7);
+        BinaryProtocol.requireRemaining(buffer, 7);
+        assertThrows(ProtocolException.class, () -> BinaryProtocol.requireRemaining(buffer, 8));
+    }
+
+    @Test
+    void utf8LengthMatchesEncoding() {
+        for (String text : new String[] {"", "hello", "héllo", "聊天室", "emoji 😀"}) {
+            assertEquals(text.getBytes(StandardCharsets.UTF_8).length, BinaryProtocol.utf8Length(text), text);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.chatroom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 测试 {@link ClientHandler} 对图片帧的限流与格式错误的二进制帧的处理。
+ * 客户端以免密码方式登录，用户表为 H2 内存数据库中的空表，发送的帧记录在内存中。
+ */
+class ClientHandlerTest {
+
+    private static final String URL = "jdbc:h2:mem:handler;DB_CLOSE_DELAY=-1";
+    private static final int LARGE = 1 << 30;
+
+    private AuthService auth;
+    private ServerContext context;
+
+    @BeforeEach
+    void createContext() throws Exception {
+        try (java.sql.Connection db = DriverManager.getConnection(URL);
+             Statement statement = db.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS users");
+            statement.execute("CREATE TABLE users (id BIGINT PRIMARY KEY, username VARCHAR(64), password VARCHAR(255))");
+        }
+        UserDao dao = new UserDao(new ConnectionPool(() -> DriverManager.getConnection(URL), 2, 1_000), 16, 60_000, 60_000);
+        auth = new AuthService(dao, 2, 16, new LoginRateLimiter(100, 100, 60_000), true);
+        // 每个用户突发 4 条消息，每秒恢复 1 条；地址不限
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limits(1, 4, LARGE, LARGE),
+                new RateLimiter.Limits(LARGE, LARGE, LARGE, LARGE));
+        context = new ServerContext(new MediaCache(64L * 1024 * 1024, 8L * 1024 * 1024, null, 0), auth,
+                new MessageJournal(null, 0, 0, 0, 0), new ClusterRelay(null, 0, 0), limiter);
+    }
+
+    @AfterEach
+    void close() {
+        auth.close();
+    }
+
+    @Test
+    void imageFramesOutsideUploadAreDropped() throws Exception {
+        RecordingConnection aliceConnection = new RecordingConnection();
+        ClientHandler alice = loginBinary(aliceConnection, "alice");
+        RecordingConnection bobConnection = new RecordingConnection();
+        loginBinary(bobConnection, "bob");
+
+        assertTrue(alice.handle(MessageType.IMAGE_CHUNK, ByteBuffer.wrap(new byte[16])));
+        assertTrue(alice.handle(MessageType.IMAGE_END, ByteBuffer.allocate(0)));
+        assertEquals(0, bobConnection.count(MessageType.IMAGE_CHUNK));
+        assertEquals(0, bobConnection.count(MessageType.IMAGE_END));
+
+        // 声明 1 块的上传只转发 1 个数据块
+        assertTrue(alice.handle(MessageType.IMAGE_START, ByteBuffer.allocate(4).putInt(1).flip()));
+        assertTrue(alice.handle(MessageType.IMAGE_CHUNK, ByteBuffer.wrap(new byte[16])));
+        assertTrue(alice.handle(MessageType.IMAGE_CHUNK, ByteBuffer.wrap(new byte[16])));
+        assertTrue(alice.handle(MessageType.IMAGE_END, ByteBuffer.allocate(0)));
+        assertEquals(1, bobConnection.count(MessageType.IMAGE_START));
+        assertEquals(1, bobConnection.count(MessageType.IMAGE_CHUNK));
+        assertEquals(1, bobConnection.count(MessageType.IMAGE_END));
+    }
+
+    @Test
+    void imageFramesOutsideUploadAreThrottled() throws Exception {
+        RecordingConnection aliceConnection = new RecordingConnection();
+        ClientHandler alice = loginBinary(aliceConnection, "alice");
+        RecordingConnection bobConnection = new RecordingConnection();
+        loginBinary(bobConnection, "bob");
+
+        // 上传中的数据块只记入额度，即使超出突发容量也不会被拒绝
+        assertTrue(alice.handle(MessageType.IMAGE_START, ByteBuffer.allocate(4).putInt(4).flip()));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(alice.handle(MessageType.IMAGE_CHUNK, ByteBuffer.wrap(new byte[16])));
+        }
+        assertTrue(alice.handle(MessageType.IMAGE_END, ByteBuffer.allocate(0)));
+        assertEquals(4, bobConnection.count(MessageType.IMAGE_CHUNK));
+        assertEquals(0, aliceConnection.count(MessageType.THROTTLED));
+
+        // 上传结束后的数据块与拉取请求都要取得额度，额度已透支
+        assertTrue(alice.handle(MessageType.IMAGE_CHUNK, ByteBuffer.wrap(new byte[16])));
+        assertTrue(alice.handle(MessageType.IMAGE_FETCH, ByteBuffer.allocate(MediaCache.HASH_SIZE + 4)));
+        assertEquals(4, bobConnection.count(MessageType.IMAGE_CHUNK));
+        assertEquals(0, aliceConnection.count(MessageType.MEDIA_CHUNK));
+        assertTrue(aliceConnection.count(MessageType.THROTTLED) > 0);
+    }
+
+    @Test
+    void textImageChunkOutsideUploadIsDropped() throws Exception {
+        RecordingConnection carolConnection = new RecordingConnection();
+        ClientHandler carol = new ClientHandler(carolConnection, context);
+        carol.handle("carol");
+        awaitOnline("carol", carol);
+        RecordingConnection bobConnection = new RecordingConnection();
+        loginBinary(bobConnection, "bob");
+
+        assertTrue(carol.handle("@IMAGE_CHUNK@AAAA"));
+        assertTrue(carol.handle("@IMAGE_END@"));
+        assertEquals(0, bobConnection.count(MessageType.IMAGE_CHUNK));
+        assertEquals(0, bobConnection.count(MessageType.IMAGE_END));
+
+        assertTrue(carol.handle("@IMAGE_START@1"));
+        assertTrue(carol.handle("@IMAGE_CHUNK@AAAA"));
+        assertTrue(carol.handle("@IMAGE_END@"));
+        assertEquals(1, bobConnection.count(MessageType.IMAGE_CHUNK));
+        assertEquals(1, bobConnection.count(MessageType.IMAGE_END));
+    }
+
+    @Test
+    void malformedFramesCloseTheConnection() throws Exception {
+        ClientHandler alice = loginBinary(new RecordingConnection(), "alice");
+        // 定长字段不完整
+        assertFalse(alice.handle(MessageType.HISTORY, ByteBuffer.allocate(3)));
+        // 字符串长度前缀超过载荷
+        ByteBuffer direct = ByteBuffer.allocate(4).putShort((short) 10).put(new byte[2]).flip();
+        assertFalse(loginBinary(new RecordingConnection(), "bob").handle(MessageType.DIRECT, direct));
+        // 登录帧同样检查
+        ClientHandler mallory = new ClientHandler(new RecordingConnection(), context);
+        mallory.handle(BinaryProtocol.HANDSHAKE + BinaryProtocol.VERSION);
+        ByteBuffer login = ByteBuffer.allocate(5).putShort((short) 20).put(new byte[3]).flip();
+        assertFalse(mallory.handle(MessageType.LOGIN, login));
+    }
+
+    private ClientHandler loginBinary(RecordingConnection connection, String name) throws InterruptedException {
+        ClientHandler handler = new ClientHandler(connection, context);
+        handler.handle(BinaryProtocol.HANDSHAKE + BinaryProtocol.VERSION);
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        handler.handle(MessageType.LOGIN, ByteBuffer.allocate(2 + utf8.length).putShort((short) utf8.length)
+                .put(utf8).flip());
+        awaitOnline(name, handler);
+        return handler;
+    }
+
+    // 登录在校验线程中异步完成，处理器登记到在线用户表后才能收发消息
+    private void awaitOnline(String name, ClientHandler handler) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (context.clients().get(name) != handler) {
+            assertTrue(System.nanoTime() < deadline, "登录超时：" + name);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 记录发送数据的连接，异步任务立即在调用线程中执行。
+     */
+    private static final class RecordingConnection implements Connection {
+
+        private final List<ByteBuffer> sent = new CopyOnWriteArrayList<>();
+
+        /**
+         * @return 收到的某种类型的二进制帧数
+         */
+        int count(MessageType type) {
+            int count = 0;
+            for (ByteBuffer data : sent) {
+                if (data.remaining() >= BinaryProtocol.HEADER_SIZE && data.get(0) == type.code()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public boolean send(ByteBuffer data) {
+            sent.add(ByteBuffer.allocate(data.remaining()).put(data.duplicate()).flip());
+            return true;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public boolean awaitDrain(long bytes, Runnable task) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String remoteAddress() {
+            return "test";
+        }
+
+        @Override
+        public String remoteHost() {
+            return "127.0.0.1";
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.chatroom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 使用 H2 内存数据库测试 {@link ConnectionPool}。
+ */
+class ConnectionPoolTest {
+
+    private static final String URL = "jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1";
+
+    // 工厂创建过的全部物理连接
+    private final List<Connection> created = new ArrayList<>();
+    private ConnectionPool pool;
+
+    private ConnectionPool pool(int maxSize, long borrowTimeoutMillis, long validateAfterIdleMillis) {
+        pool = new ConnectionPool(() -> {
+            Connection connection = DriverManager.getConnection(URL);
+            created.add(connection);
+            return connection;
+        }, maxSize, borrowTimeoutMillis, validateAfterIdleMillis);
+        return pool;
+    }
+
+    @AfterEach
+    void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    void reusesReturnedConnectionAndStatements() throws SQLException {
+        ConnectionPool pool = pool(2, 1_000, 30_000);
+        Object statement;
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            statement = connection.prepare("SELECT 1");
+        }
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            assertSame(statement, connection.prepare("SELECT 1"));
+        }
+        assertEquals(1, created.size());
+    }
+
+    @Test
+    void borrowTimesOutWhenPoolIsExhausted() throws SQLException {
+        ConnectionPool pool = pool(1, 100, 30_000);
+        try (ConnectionPool.PooledConnection ignored = pool.borrow()) {
+            long start = System.nanoTime();
+            SQLException error = assertThrows(SQLException.class, pool::borrow);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100, error.getMessage());
+        }
+        // 归还后可以再次借出，且不会创建新连接
+        try (ConnectionPool.PooledConnection ignored = pool.borrow()) {
+            assertEquals(1, created.size());
+        }
+    }
+
+    @Test
+    void waitingBorrowGetsConnectionReturnedByAnotherThread() throws Exception {
+        ConnectionPool pool = pool(1, 2_000, 30_000);
+        ConnectionPool.PooledConnection first = pool.borrow();
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            first.close();
+        });
+        releaser.start();
+        try (ConnectionPool.PooledConnection ignored = pool.borrow()) {
+            assertEquals(1, created.size());
+        }
+        releaser.join();
+    }
+
+    @Test
+    void replacesInvalidIdleConnection() throws SQLException {
+        // 每次借出都校验
+        ConnectionPool pool = pool(1, 1_000, 0);
+        try (ConnectionPool.PooledConnection ignored = pool.borrow()) {
+            assertEquals(1, created.size());
+        }
+        // 模拟空闲期间被数据库断开的连接
+        created.get(0).close();
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            assertEquals(2, created.size());
+            connection.prepare("SELECT 1").executeQuery().close();
+        }
+    }
+
+    @Test
+    void brokenConnectionIsNotReturnedToPool() throws SQLException {
+        ConnectionPool pool = pool(1, 1_000, 30_000);
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            connection.markBroken();
+        }
+        assertTrue(created.get(0).isClosed());
+        try (ConnectionPool.PooledConnection ignored = pool.borrow()) {
+            assertEquals(2, created.size());
+            assertNotSame(created.get(0), created.get(1));
+        }
+    }
+
+    @Test
+    void failedCreateReleasesPermit() throws SQLException {
+        int[] attempts = {0};
+        pool = new ConnectionPool(() -> {
+            if (attempts[0]++ == 0) {
+                throw new SQLException("数据库不可用");
+            }
+            return DriverManager.getConnection(URL);
+        }, 1, 100);
+        assertThrows(SQLException.class, pool::borrow);
+        try (ConnectionPool.PooledConnection ignored = pool.borrow()) {
+            assertEquals(2, attempts[0]);
+        }
+    }
+
+    @Test
+    void closedPoolRejectsBorrow() {
+        ConnectionPool pool = pool(1, 100, 30_000);
+        pool.close();
+        assertThrows(SQLException.class, pool::borrow);
+    }
+}
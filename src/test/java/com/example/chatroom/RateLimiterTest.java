@@ -0,0 +1,74 @@
+package com.example.chatroom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 测试 {@link RateLimiter} 的 GCRA 令牌桶。速率取每秒 1 个令牌，测试期间额度不会明显恢复。
+ */
+class RateLimiterTest {
+
+    private static final int LARGE = 1 << 30;
+
+    @Test
+    void allowsBurstThenThrottles() {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limits(1, 3, LARGE, LARGE),
+                new RateLimiter.Limits(LARGE, LARGE, LARGE, LARGE));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("alice", "10.0.0.1", 10));
+        }
+        long retryAfter = limiter.tryAcquire("alice", "10.0.0.1", 10);
+        assertTrue(retryAfter > 0 && retryAfter <= 1000, "重试等待时间应为一个令牌的间隔以内：" + retryAfter);
+        // 被拒绝的消息不消耗额度，其他用户不受影响
+        assertTrue(limiter.tryAcquire("alice", "10.0.0.1", 10) > 0);
+        assertEquals(0, limiter.tryAcquire("bob", "10.0.0.1", 10));
+    }
+
+    @Test
+    void limitsBytesSeparatelyFromMessages() {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limits(LARGE, LARGE, 1, 1000),
+                new RateLimiter.Limits(LARGE, LARGE, LARGE, LARGE));
+        assertEquals(0, limiter.tryAcquire("alice", "10.0.0.1", 800));
+        assertTrue(limiter.tryAcquire("alice", "10.0.0.1", 300) > 0);
+        assertEquals(0, limiter.tryAcquire("alice", "10.0.0.1", 200));
+    }
+
+    @Test
+    void hostRejectionRefundsUserQuota() {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limits(1, 2, LARGE, LARGE),
+                new RateLimiter.Limits(1, 2, LARGE, LARGE));
+        assertEquals(0, limiter.tryAcquire("alice", "10.0.0.1", 10));
+        assertEquals(0, limiter.tryAcquire("bob", "10.0.0.1", 10));
+        // 同一地址的额度已用完
+        assertTrue(limiter.tryAcquire("carol", "10.0.0.1", 10) > 0);
+        // carol 的用户额度没有被扣除，换一个地址仍有完整的突发容量
+        for (int i = 0; i < 2; i++) {
+            assertEquals(0, limiter.tryAcquire("carol", "10.0.0.2", 10));
+        }
+        assertTrue(limiter.tryAcquire("carol", "10.0.0.2", 10) > 0);
+    }
+
+    @Test
+    void chargeOverdrawsQuota() {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limits(1, 2, LARGE, LARGE),
+                new RateLimiter.Limits(LARGE, LARGE, LARGE, LARGE));
+        for (int i = 0; i < 5; i++) {
+            limiter.charge("alice", "10.0.0.1", 10);
+        }
+        long retryAfter = limiter.tryAcquire("alice", "10.0.0.1", 10);
+        assertTrue(retryAfter > 1000, "透支后需要等待多个令牌的间隔：" + retryAfter);
+    }
+
+    @Test
+    void disabledLimiterAllowsEverything() {
+        RateLimiter limiter = new RateLimiter(null, null);
+        assertFalse(limiter.isEnabled());
+        for (int i = 0; i < 1000; i++) {
+            limiter.charge("alice", "10.0.0.1", LARGE);
+            assertEquals(0, limiter.tryAcquire("alice", "10.0.0.1", LARGE));
+        }
+    }
+}
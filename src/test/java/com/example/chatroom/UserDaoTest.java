@@ -0,0 +1,114 @@
+package com.example.chatroom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 使用 H2 内存数据库测试 {@link UserDao} 的用户缓存。
+ */
+class UserDaoTest {
+
+    private static final String URL = "jdbc:h2:mem:users;DB_CLOSE_DELAY=-1";
+    private static final long TTL_MILLIS = 200;
+    private static final long NEGATIVE_TTL_MILLIS = 100;
+
+    private UserDao dao;
+
+    @BeforeEach
+    void createTable() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(URL);
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS users");
+            statement.execute("CREATE TABLE users (id BIGINT PRIMARY KEY, username VARCHAR(64), password VARCHAR(255))");
+            statement.execute("INSERT INTO users VALUES (1, 'alice', 'secret')");
+        }
+        dao = dao(16);
+    }
+
+    private static UserDao dao(int cacheSize) {
+        return new UserDao(new ConnectionPool(() -> DriverManager.getConnection(URL), 2, 1_000),
+                cacheSize, TTL_MILLIS, NEGATIVE_TTL_MILLIS);
+    }
+
+    @AfterEach
+    void close() {
+        dao.close();
+    }
+
+    private static void execute(String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(URL);
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    @Test
+    void secondLookupHitsCache() throws SQLException {
+        long metricHits = ServerMetrics.get().getUserCacheHits();
+        long metricMisses = ServerMetrics.get().getUserCacheMisses();
+        assertEquals("secret", dao.getUserByName("alice").getPassword());
+        // 数据库中的修改在缓存过期前不可见
+        execute("UPDATE users SET password = 'changed' WHERE username = 'alice'");
+        assertEquals("secret", dao.getUserByName("alice").getPassword());
+        assertEquals(1, dao.cacheHits());
+        assertEquals(1, dao.cacheMisses());
+        assertEquals(metricHits + 1, ServerMetrics.get().getUserCacheHits());
+        assertEquals(metricMisses + 1, ServerMetrics.get().getUserCacheMisses());
+    }
+
+    @Test
+    void entryExpiresAfterTtl() throws Exception {
+        dao.getUserByName("alice");
+        execute("UPDATE users SET password = 'changed' WHERE username = 'alice'");
+        Thread.sleep(TTL_MILLIS + 50);
+        assertEquals("changed", dao.getUserByName("alice").getPassword());
+        assertEquals(0, dao.cacheHits());
+        assertEquals(2, dao.cacheMisses());
+    }
+
+    @Test
+    void missingUserIsCachedWithShorterTtl() throws Exception {
+        assertNull(dao.getUserByName("bob"));
+        execute("INSERT INTO users VALUES (2, 'bob', 'pw')");
+        assertNull(dao.getUserByName("bob"));
+        Thread.sleep(NEGATIVE_TTL_MILLIS + 50);
+        assertNotNull(dao.getUserByName("bob"));
+        assertEquals(1, dao.cacheHits());
+        assertEquals(2, dao.cacheMisses());
+    }
+
+    @Test
+    void updatePasswordInvalidatesCache() throws SQLException {
+        dao.getUserByName("alice");
+        dao.updatePassword("alice", "rehashed");
+        assertEquals("rehashed", dao.getUserByName("alice").getPassword());
+        assertEquals(2, dao.cacheMisses());
+    }
+
+    @Test
+    void returnedUserIsACopy() throws SQLException {
+        dao.getUserByName("alice").setPassword("tampered");
+        assertEquals("secret", dao.getUserByName("alice").getPassword());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedEntry() throws SQLException {
+        dao.close();
+        dao = dao(1);
+        execute("INSERT INTO users VALUES (2, 'bob', 'pw')");
+        dao.getUserByName("alice");
+        dao.getUserByName("bob");
+        dao.getUserByName("alice");
+        assertEquals(0, dao.cacheHits());
+        assertEquals(3, dao.cacheMisses());
+    }
+}